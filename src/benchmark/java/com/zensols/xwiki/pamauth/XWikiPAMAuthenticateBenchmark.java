@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * {@link XWikiPAMAuthServiceImpl#authenticate(String, String, XWikiContext)} end to end: password verification and
+ * account lookup on the PAM executor against the {@link MemoryUserBackend}, then the lookup of the up to date profile
+ * in the mocked oldcore.  The latency of the backend simulates the cost of pwauth or libpam; sampling gives the
+ * percentiles of the login time.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XWikiPAMAuthenticateBenchmark
+{
+    /** The latency of each backend operation in milliseconds. */
+    @Param({ "0", "5" })
+    public String latency;
+
+    /** Let concurrent logins of a user with the same password share one verification. */
+    @Param({ "0", "1" })
+    public String coalescing;
+
+    private XWikiPAMBenchmarkEnvironment environment;
+
+    /**
+     * The login of a thread, each thread having its own user.
+     */
+    @State(Scope.Thread)
+    public static class Login
+    {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        private String userName;
+
+        private String sharedUserName;
+
+        private XWikiContext context;
+
+        /**
+         * @param benchmark the benchmark state
+         * @throws XWikiException if the user can't be authenticated
+         */
+        @Setup
+        public void setUp(XWikiPAMAuthenticateBenchmark benchmark) throws XWikiException
+        {
+            XWikiPAMBenchmarkEnvironment environment = benchmark.environment;
+
+            this.userName =
+                environment.getUserName(THREADS.getAndIncrement() % XWikiPAMBenchmarkEnvironment.USER_COUNT);
+            this.sharedUserName = environment.getUserName(0);
+            this.context =
+                environment.createContext(null, XWikiPAMBenchmarkEnvironment.createSession(false), null);
+
+            if (environment.getAuthenticator().authenticate(this.userName, XWikiPAMBenchmarkEnvironment.PASSWORD,
+                this.context) == null) {
+                throw new IllegalStateException("Authentication of [" + this.userName + "] failed");
+            }
+        }
+    }
+
+    /**
+     * Create the authenticator.
+     *
+     * @throws Exception if the components can't be registered
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        Map<String, String> cfg = new HashMap<>();
+
+        cfg.put("xwiki.authentication.pam.memory_latency", this.latency);
+        cfg.put("xwiki.authentication.pam.login_coalescing", this.coalescing);
+        this.environment = new XWikiPAMBenchmarkEnvironment(Collections.emptyMap(), cfg);
+    }
+
+    /**
+     * Stop the threads of the authenticator.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.environment.dispose();
+    }
+
+    /**
+     * @param login the login of the thread
+     * @return the principal of the user
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    public Principal authenticate(Login login) throws XWikiException
+    {
+        return this.environment.getAuthenticator().authenticate(login.userName,
+            XWikiPAMBenchmarkEnvironment.PASSWORD, login.context);
+    }
+
+    /**
+     * @param login the login of the thread
+     * @return null, the password being wrong
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    public Principal authenticateWrongPassword(Login login) throws XWikiException
+    {
+        return this.environment.getAuthenticator().authenticate(login.userName, "wrong", login.context);
+    }
+
+    /**
+     * @param login the login of the thread
+     * @return the principal of the user
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    @Threads(16)
+    public Principal authenticateConcurrent(Login login) throws XWikiException
+    {
+        return this.environment.getAuthenticator().authenticate(login.userName,
+            XWikiPAMBenchmarkEnvironment.PASSWORD, login.context);
+    }
+
+    /**
+     * @param login the login of the thread
+     * @return the principal of the user shared by all threads, whose logins are coalesced if enabled
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    @Threads(16)
+    public Principal authenticateSameUser(Login login) throws XWikiException
+    {
+        return this.environment.getAuthenticator().authenticate(login.sharedUserName,
+            XWikiPAMBenchmarkEnvironment.PASSWORD, login.context);
+    }
+}
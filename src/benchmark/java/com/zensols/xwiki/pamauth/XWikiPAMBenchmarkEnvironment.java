@@ -0,0 +1,284 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpSession;
+
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.internal.DefaultExecution;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.web.Utils;
+import com.xpn.xwiki.web.XWikiRequest;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * An authenticator wired to in memory components for the benchmarks: the configuration snapshot is built from maps,
+ * the accounts come from the {@link MemoryUserBackend} and the user profiles from a mocked oldcore, so that the
+ * measures are those of the authenticator and not of a database or of the system accounts.
+ * <p>
+ * The users <code>user0</code> to <code>user(USER_COUNT - 1)</code> have an up to date profile known to the profile
+ * index; the other users of the backend have none.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class XWikiPAMBenchmarkEnvironment
+{
+    /** The number of users having a profile. */
+    static final int USER_COUNT = 64;
+
+    /** The identifier of the wiki of the benchmarks. */
+    static final String WIKI = "xwiki";
+
+    /** The password of the users of the backend. */
+    static final String PASSWORD = "password";
+
+    /** The HTTP header carrying the remote user of SSO requests. */
+    static final String HTTP_HEADER = "X-Remote-User";
+
+    private static final String USER_SPACE = "XWiki";
+
+    private final XWikiPAMConfig configuration;
+
+    private final XWiki xwiki;
+
+    private final XWikiPAMAuthServiceImpl authenticator;
+
+    /**
+     * @param preferences the PAM parameters of XWikiPreferences, overriding the benchmark defaults
+     * @param cfg the PAM parameters of xwiki.cfg
+     * @throws Exception if the components can't be registered
+     */
+    XWikiPAMBenchmarkEnvironment(Map<String, String> preferences, Map<String, String> cfg) throws Exception
+    {
+        Map<String, String> parameters = new HashMap<>();
+
+        parameters.put("pam", "1");
+        // Profiles are up to date: a login doesn't save anything
+        parameters.put("pam_sync_interval", "3600000");
+        parameters.putAll(preferences);
+
+        Map<String, String> cfgParameters = new HashMap<>(cfg);
+
+        cfgParameters.putIfAbsent("xwiki.authentication.pam.httpHeader", HTTP_HEADER);
+        cfgParameters.put("xwiki.authentication.pam.backend", XWikiPAMConfig.BACKEND_MEMORY);
+        cfgParameters.put("xwiki.authentication.pam.memory_password", PASSWORD);
+
+        this.configuration = new XWikiPAMConfig(createSource(parameters), createSource(cfgParameters)).snapshot();
+        this.xwiki = stub(XWiki.class);
+
+        PAMProfileXClass profileClass = stub(PAMProfileXClass.class);
+        PAMProfileIndex index = stub(PAMProfileIndex.class);
+
+        for (int i = 0; i < USER_COUNT; ++i) {
+            String userName = getUserName(i);
+            DocumentReference reference = new DocumentReference(WIKI, USER_SPACE, userName);
+            XWikiDocument profile = stub(XWikiDocument.class);
+
+            when(profile.getDocumentReference()).thenReturn(reference);
+            when(profile.getFullName()).thenReturn(USER_SPACE + '.' + userName);
+            when(profile.getPrefixedFullName()).thenReturn(WIKI + ':' + USER_SPACE + '.' + userName);
+            when(this.xwiki.getDocument(eq(reference), any(XWikiContext.class))).thenReturn(profile);
+            when(index.getByUserName(userName, WIKI)).thenReturn(reference);
+            when(profileClass.getUserName(profile)).thenReturn(userName);
+        }
+        when(profileClass.isSynchronized(any(XWikiDocument.class), anyString(), anyLong(), anyLong()))
+            .thenReturn(true);
+
+        PAMProfileClassCache classCache = stub(PAMProfileClassCache.class);
+
+        when(classCache.getProfileClass(any(XWikiContext.class))).thenReturn(profileClass);
+
+        EmbeddableComponentManager componentManager = new EmbeddableComponentManager();
+
+        register(componentManager, ComponentManager.class, "context", componentManager);
+        register(componentManager, Execution.class, "default", new DefaultExecution());
+        register(componentManager, PAMConfigurationCache.class, "default", new PAMConfigurationCache()
+        {
+            @Override
+            public XWikiPAMConfig getConfiguration()
+            {
+                return XWikiPAMBenchmarkEnvironment.this.configuration;
+            }
+
+            @Override
+            public void invalidate(String wikiId)
+            {
+            }
+
+            @Override
+            public void invalidateAll()
+            {
+            }
+        });
+        register(componentManager, PAMProfileClassCache.class, "default", classCache);
+        register(componentManager, PAMProfileIndex.class, "default", index);
+        register(componentManager, PAMUserBackend.class, XWikiPAMConfig.BACKEND_MEMORY, new MemoryUserBackend());
+        Utils.setComponentManager(componentManager);
+
+        this.authenticator = new XWikiPAMAuthServiceImpl();
+    }
+
+    /**
+     * @param properties the parameters of the source
+     * @return a configuration source reading the map on each call, like the XWikiPreferences source
+     */
+    static ConfigurationSource createSource(final Map<String, String> properties)
+    {
+        return (ConfigurationSource) Proxy.newProxyInstance(
+            XWikiPAMBenchmarkEnvironment.class.getClassLoader(), new Class<?>[] { ConfigurationSource.class },
+            (proxy, method, args) -> {
+                if ("getKeys".equals(method.getName())) {
+                    return new ArrayList<>(properties.keySet());
+                } else if ("getProperty".equals(method.getName())) {
+                    return properties.get(args[0]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    /**
+     * Mocks only answering the stubbed calls: the benchmarks call them millions of times.
+     */
+    private static <T> T stub(Class<T> type)
+    {
+        return mock(type, withSettings().stubOnly());
+    }
+
+    private static <T> void register(EmbeddableComponentManager componentManager, Type role, String hint,
+        T instance) throws Exception
+    {
+        DefaultComponentDescriptor<T> descriptor = new DefaultComponentDescriptor<>();
+
+        descriptor.setRoleType(role);
+        descriptor.setRoleHint(hint);
+        componentManager.registerComponent(descriptor, instance);
+    }
+
+    /**
+     * @param index the number of the user
+     * @return the UNIX name of the user
+     */
+    String getUserName(int index)
+    {
+        return this.configuration.getMemoryUserPrefix() + index;
+    }
+
+    /**
+     * @return the configuration snapshot of the wiki
+     */
+    XWikiPAMConfig getConfiguration()
+    {
+        return this.configuration;
+    }
+
+    /**
+     * @return the authenticator under test
+     */
+    XWikiPAMAuthServiceImpl getAuthenticator()
+    {
+        return this.authenticator;
+    }
+
+    /**
+     * @param remoteUser the value of the SSO HTTP header or null for an anonymous request
+     * @param session the session of the request
+     * @param cookie the cookie returned for any name or null
+     * @return a new context of a request of the wiki
+     */
+    XWikiContext createContext(String remoteUser, HttpSession session, Cookie cookie)
+    {
+        XWikiRequest request = stub(XWikiRequest.class);
+
+        when(request.getHeader(HTTP_HEADER)).thenReturn(remoteUser);
+        when(request.getSession()).thenReturn(session);
+        when(request.getCookie(anyString())).thenReturn(cookie);
+        when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+
+        XWikiContext context = new XWikiContext();
+
+        context.setWiki(this.xwiki);
+        context.setWikiId(WIKI);
+        context.setMainXWiki(WIKI);
+        context.setRequest(request);
+
+        return context;
+    }
+
+    /**
+     * @param stateful true to keep the attributes, false for a session that forgets them (each request of a
+     *            stateless client)
+     * @return a new HTTP session
+     */
+    static HttpSession createSession(boolean stateful)
+    {
+        HttpSession session = stub(HttpSession.class);
+
+        if (stateful) {
+            Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+            when(session.getAttribute(anyString()))
+                .thenAnswer(invocation -> attributes.get(invocation.getArguments()[0]));
+            doAnswer(invocation -> {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }).when(session).setAttribute(anyString(), any());
+        }
+
+        return session;
+    }
+
+    /**
+     * Stop the threads of the authenticator.
+     */
+    void dispose()
+    {
+        if (this.authenticator.getExecutor() != null) {
+            this.authenticator.getExecutor().shutdown();
+        }
+        if (this.authenticator.getUpdateQueue() != null) {
+            this.authenticator.getUpdateQueue().shutdown();
+        }
+    }
+}
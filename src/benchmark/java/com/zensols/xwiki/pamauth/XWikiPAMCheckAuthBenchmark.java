@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.user.api.XWikiUser;
+
+/**
+ * {@link XWikiPAMAuthServiceImpl#checkAuth(XWikiContext)} on each request:
+ * <ul>
+ * <li>anonymous: no remote user, the servlet request is not stubbed so that the XWiki form authentication stops
+ * right away and only the work added by PAM is measured</li>
+ * <li>SSO session: the remote user was authenticated earlier in the session</li>
+ * <li>SSO cookie: the remote user was authenticated by another node (new session with the SSO cookie)</li>
+ * <li>header SSO: the remote user is authenticated (trusted PAM account lookup and profile lookup) on each request,
+ * as for clients not keeping the session</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XWikiPAMCheckAuthBenchmark
+{
+    private XWikiPAMBenchmarkEnvironment environment;
+
+    /**
+     * The requests of a thread, each thread having its own user.
+     */
+    @State(Scope.Thread)
+    public static class Requests
+    {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        private XWikiContext anonymous;
+
+        private XWikiContext session;
+
+        private XWikiContext cookie;
+
+        private XWikiContext header;
+
+        private XWikiContext sharedHeader;
+
+        /**
+         * @param benchmark the benchmark state
+         * @throws XWikiException if the user can't be authenticated
+         */
+        @Setup
+        public void setUp(XWikiPAMCheckAuthBenchmark benchmark) throws XWikiException
+        {
+            XWikiPAMBenchmarkEnvironment environment = benchmark.environment;
+            String userName =
+                environment.getUserName(THREADS.getAndIncrement() % XWikiPAMBenchmarkEnvironment.USER_COUNT);
+            XWikiPAMSSOCookie signer = new XWikiPAMSSOCookie(environment.getConfiguration().getSSOCookieKeys(),
+                environment.getConfiguration().getSSOCookieTTL());
+            Cookie ssoCookie = new Cookie(environment.getConfiguration().getSSOCookieName(), signer.sign(
+                XWikiPAMBenchmarkEnvironment.WIKI + ":XWiki." + userName, userName, System.currentTimeMillis()));
+
+            this.anonymous = environment.createContext(null, XWikiPAMBenchmarkEnvironment.createSession(false), null);
+            this.session = environment.createContext(userName, XWikiPAMBenchmarkEnvironment.createSession(true), null);
+            this.cookie =
+                environment.createContext(userName, XWikiPAMBenchmarkEnvironment.createSession(false), ssoCookie);
+            this.header = environment.createContext(userName, XWikiPAMBenchmarkEnvironment.createSession(false), null);
+            this.sharedHeader = environment.createContext(environment.getUserName(0),
+                XWikiPAMBenchmarkEnvironment.createSession(false), null);
+
+            // Log in the session, and make sure each scenario authenticates the user
+            for (XWikiContext context : new XWikiContext[] { this.session, this.cookie, this.header }) {
+                if (environment.getAuthenticator().checkAuth(context) == null) {
+                    throw new IllegalStateException("SSO authentication of [" + userName + "] failed");
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the authenticator, with the SSO HTTP header and the SSO cookie enabled.
+     *
+     * @throws Exception if the components can't be registered
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        Map<String, String> cfg = new HashMap<>();
+
+        cfg.put("xwiki.authentication.pam.sso_cookie_keys", "benchmark-key");
+        cfg.put("xwiki.authentication.pam.sso_cookie_ttl", String.valueOf(TimeUnit.DAYS.toMillis(1)));
+        this.environment = new XWikiPAMBenchmarkEnvironment(Collections.emptyMap(), cfg);
+    }
+
+    /**
+     * Stop the threads of the authenticator.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.environment.dispose();
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the user, null for an anonymous request
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    public XWikiUser anonymous(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.anonymous);
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the user found in the session
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    public XWikiUser ssoSession(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.session);
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the user found in the session
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    @Threads(8)
+    public XWikiUser ssoSessionConcurrent(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.session);
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the user of the SSO cookie
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    public XWikiUser ssoCookie(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.cookie);
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the authenticated user
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    public XWikiUser headerSSO(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.header);
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the authenticated user
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    @Threads(8)
+    public XWikiUser headerSSOConcurrent(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.header);
+    }
+
+    /**
+     * @param requests the requests of the thread
+     * @return the authenticated user, the same for all threads which wait for each other on the lock of the user
+     * @throws XWikiException if the authentication fails
+     */
+    @Benchmark
+    @Threads(8)
+    public XWikiUser headerSSOSameUser(Requests requests) throws XWikiException
+    {
+        return this.environment.getAuthenticator().checkAuth(requests.sharedHeader);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parameter resolution of {@link XWikiPAMConfig}, read on each request: a live configuration reads the configuration
+ * sources and parses lists and maps (<code>splitParam</code>) on each call, a snapshot only once.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XWikiPAMConfigBenchmark
+{
+    /** Read the parameters from a snapshot instead of the configuration sources. */
+    @Param({ "false", "true" })
+    public boolean snapshot;
+
+    private XWikiPAMConfig live;
+
+    private XWikiPAMConfig configuration;
+
+    /**
+     * Create the configuration of a wiki mapping a few groups, with the HTTP header in xwiki.cfg.
+     */
+    @Setup
+    public void setUp()
+    {
+        Map<String, String> preferences = new HashMap<>();
+        Map<String, String> cfg = new HashMap<>();
+
+        preferences.put("pam", "1");
+        preferences.put("pam_timeout", "2500");
+        preferences.put("pam_allowed_groups", "staff,wiki\\,users,developers,admin,guests");
+        preferences.put("pam_group_mapping",
+            "staff=XWiki.StaffGroup|developers=XWiki.DevelopersGroup|admin=XWiki.XWikiAdminGroup"
+            + "|wiki\\|users=XWiki.XWikiAllGroup|guests=XWiki.GuestGroup");
+        cfg.put("xwiki.authentication.pam.httpHeader", XWikiPAMBenchmarkEnvironment.HTTP_HEADER);
+        cfg.put("xwiki.authentication.pam.service", "xwiki");
+
+        this.live = new XWikiPAMConfig(XWikiPAMBenchmarkEnvironment.createSource(preferences),
+            XWikiPAMBenchmarkEnvironment.createSource(cfg));
+        this.configuration = this.snapshot ? this.live.snapshot() : this.live;
+    }
+
+    /**
+     * @return a parameter of XWikiPreferences
+     */
+    @Benchmark
+    public boolean getPAMParam()
+    {
+        return this.configuration.isPAMEnabled();
+    }
+
+    /**
+     * @return a parameter missing from XWikiPreferences, read from xwiki.cfg
+     */
+    @Benchmark
+    public String getPAMParamFromCfg()
+    {
+        return this.configuration.getPAMService();
+    }
+
+    /**
+     * @return a numeric parameter
+     */
+    @Benchmark
+    public long getPAMParamAsLong()
+    {
+        return this.configuration.getPAMTimeout();
+    }
+
+    /**
+     * @return a list parameter with an escaped separator
+     */
+    @Benchmark
+    public List<String> getPAMListParam()
+    {
+        return this.configuration.getAllowedGroups();
+    }
+
+    /**
+     * @return a map parameter with an escaped separator
+     */
+    @Benchmark
+    public Map<String, String> getPAMMapParam()
+    {
+        return this.configuration.getGroupMappings();
+    }
+
+    /**
+     * @return a map parameter read by all the request threads at once
+     */
+    @Benchmark
+    @Threads(8)
+    public Map<String, String> getPAMMapParamConcurrent()
+    {
+        return this.configuration.getGroupMappings();
+    }
+
+    /**
+     * @return a new snapshot of the live configuration, the work done once per wiki and XWikiPreferences change
+     */
+    @Benchmark
+    public XWikiPAMConfig createSnapshot()
+    {
+        return this.live.snapshot();
+    }
+}
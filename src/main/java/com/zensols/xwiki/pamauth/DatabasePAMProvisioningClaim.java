@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+
+/**
+ * The default {@link PAMProvisioningClaim}: a claim is a row of the <code>pamauth_claim</code> table of the wiki
+ * database, whose primary key is the claimed provisioning, so only one node can insert it.  The table is created on
+ * first use with portable types only.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(XWikiPAMConfig.PROVISIONING_CLAIM_DATABASE)
+@Singleton
+public class DatabasePAMProvisioningClaim implements PAMProvisioningClaim
+{
+    private static final String CREATE = "create table pamauth_claim (claim_key varchar(255) not null, "
+        + "claim_owner varchar(255) not null, claim_expires varchar(20) not null, primary key (claim_key))";
+
+    private static final String INSERT =
+        "insert into pamauth_claim (claim_key, claim_owner, claim_expires) values (?, ?, ?)";
+
+    private static final String SELECT = "select claim_expires from pamauth_claim where claim_key = ?";
+
+    private static final String TAKE_OVER = "update pamauth_claim set claim_owner = ?, claim_expires = ? "
+        + "where claim_key = ? and claim_expires = ?";
+
+    private static final String DELETE = "delete from pamauth_claim where claim_key = ? and claim_owner = ?";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("hibernate")
+    private XWikiStoreInterface store;
+
+    /** Identifies the claims of this node. */
+    private final String owner = UUID.randomUUID().toString();
+
+    /** The wikis whose claim table is known to exist. */
+    private final Set<String> initializedWikis = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public boolean claim(String key, long ttl, XWikiContext context) throws XWikiException
+    {
+        XWikiHibernateStore hibernateStore = getStore();
+        long now = System.currentTimeMillis();
+        String expires = String.valueOf(now + ttl);
+
+        initialize(hibernateStore, context);
+
+        try {
+            hibernateStore.executeWrite(context, session -> session.createSQLQuery(INSERT).setString(0, key)
+                .setString(1, this.owner).setString(2, expires).executeUpdate());
+            return true;
+        } catch (XWikiException e) {
+            // Most likely a duplicate key: the claim of another node
+            String current = getExpiration(hibernateStore, key, context);
+
+            if (current == null) {
+                throw e;
+            }
+
+            // Take over the expired claim of a node which never released it, unless another node just did
+            return Long.parseLong(current) <= now && hibernateStore.executeWrite(context,
+                session -> session.createSQLQuery(TAKE_OVER).setString(0, this.owner).setString(1, expires)
+                    .setString(2, key).setString(3, current).executeUpdate()) == 1;
+        }
+    }
+
+    @Override
+    public void release(String key, XWikiContext context) throws XWikiException
+    {
+        getStore().executeWrite(context, session -> session.createSQLQuery(DELETE).setString(0, key)
+            .setString(1, this.owner).executeUpdate());
+    }
+
+    private XWikiHibernateStore getStore() throws XWikiException
+    {
+        if (!(this.store instanceof XWikiHibernateStore)) {
+            throw new XWikiPAMException("Provisioning claims need the Hibernate store");
+        }
+
+        return (XWikiHibernateStore) this.store;
+    }
+
+    private String getExpiration(XWikiHibernateStore hibernateStore, String key, XWikiContext context)
+        throws XWikiException
+    {
+        Object expires = hibernateStore.executeRead(context,
+            session -> session.createSQLQuery(SELECT).setString(0, key).uniqueResult());
+
+        return expires != null ? expires.toString().trim() : null;
+    }
+
+    private void initialize(XWikiHibernateStore hibernateStore, XWikiContext context) throws XWikiException
+    {
+        String wikiId = context.getWikiId();
+
+        if (this.initializedWikis.contains(wikiId)) {
+            return;
+        }
+
+        try {
+            getExpiration(hibernateStore, "", context);
+        } catch (XWikiException e) {
+            this.logger.info("Creating the PAM provisioning claim table of wiki [{}]", wikiId);
+            try {
+                hibernateStore.executeWrite(context, session -> session.createSQLQuery(CREATE).executeUpdate());
+            } catch (XWikiException createError) {
+                // Created by another node meanwhile?
+                this.logger.debug("Failed to create the claim table of wiki [{}]", wikiId, createError);
+                getExpiration(hibernateStore, "", context);
+            }
+        }
+
+        this.initializedWikis.add(wikiId);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default {@link PAMConfigurationCache}: snapshots are built on first use in each wiki.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+public class DefaultPAMConfigurationCache implements PAMConfigurationCache
+{
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    @Named("wiki")
+    private ConfigurationSource configurationSource;
+
+    @Inject
+    @Named("xwikicfg")
+    private ConfigurationSource cfgConfigurationSource;
+
+    private final ConcurrentMap<String, XWikiPAMConfig> snapshots = new ConcurrentHashMap<>();
+
+    /** Incremented on each invalidation so a snapshot built meanwhile is not kept. */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public XWikiPAMConfig getConfiguration()
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        XWikiPAMConfig configuration = new XWikiPAMConfig(this.configurationSource, this.cfgConfigurationSource);
+
+        if (xcontext == null || xcontext.getWikiId() == null) {
+            return configuration.snapshot();
+        }
+
+        String wikiId = xcontext.getWikiId();
+        XWikiPAMConfig snapshot = this.snapshots.get(wikiId);
+
+        if (snapshot == null) {
+            long current = this.generation.get();
+
+            snapshot = configuration.snapshot();
+            if (this.generation.get() == current) {
+                XWikiPAMConfig previous = this.snapshots.putIfAbsent(wikiId, snapshot);
+                if (previous != null) {
+                    snapshot = previous;
+                }
+            }
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public void invalidate(String wikiId)
+    {
+        this.generation.incrementAndGet();
+        this.snapshots.remove(wikiId);
+    }
+
+    @Override
+    public void invalidateAll()
+    {
+        this.generation.incrementAndGet();
+        this.snapshots.clear();
+    }
+}
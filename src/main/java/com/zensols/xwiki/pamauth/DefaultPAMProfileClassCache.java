@@ -0,0 +1,170 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.objects.classes.BaseClass;
+
+/**
+ * Default {@link PAMProfileClassCache}: keeps the verified class of each wiki.  The profiles missing the normalized
+ * user name are migrated once per wiki on a background thread; until the migration completes, the profiles are
+ * searched by comparing lower cased user names.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+public class DefaultPAMProfileClassCache implements PAMProfileClassCache, Disposable
+{
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    private final ConcurrentMap<String, BaseClass> classes = new ConcurrentHashMap<>();
+
+    /** The wikis whose profiles all have a normalized user name. */
+    private final Set<String> normalized = ConcurrentHashMap.newKeySet();
+
+    /** The wikis whose profiles are being migrated, so a migration runs at most once at a time per wiki. */
+    private final Set<String> migrating = ConcurrentHashMap.newKeySet();
+
+    /** Incremented on each invalidation so a class verified meanwhile (e.g. by its own save) is not kept. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Migrates the wikis one at a time. */
+    private final ExecutorService migrator = createMigrator();
+
+    @Override
+    public PAMProfileXClass getProfileClass(XWikiContext context) throws XWikiException
+    {
+        String wikiId = context.getWikiId();
+        BaseClass pamClass = this.classes.get(wikiId);
+
+        if (pamClass == null) {
+            long current = this.generation.get();
+
+            pamClass = new PAMProfileXClass(context).getXClass();
+            // Saving profiles doesn't change the class, only its own changes invalidate it
+            if (this.generation.get() == current) {
+                this.classes.putIfAbsent(wikiId, pamClass);
+            }
+        }
+
+        boolean wikiNormalized = this.normalized.contains(wikiId);
+        if (!wikiNormalized) {
+            startMigration(wikiId);
+        }
+
+        return new PAMProfileXClass(pamClass, wikiNormalized, context);
+    }
+
+    @Override
+    public void invalidate(String wikiId)
+    {
+        this.generation.incrementAndGet();
+        this.classes.remove(wikiId);
+        this.normalized.remove(wikiId);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.migrator.shutdownNow();
+    }
+
+    private static ExecutorService createMigrator()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "PAM user name migration");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private void startMigration(String wikiId)
+    {
+        if (this.migrating.add(wikiId)) {
+            try {
+                this.migrator.execute(() -> migrate(wikiId));
+            } catch (RejectedExecutionException e) {
+                this.migrating.remove(wikiId);
+            }
+        }
+    }
+
+    /**
+     * Store the normalized user name in the profiles of a wiki that don't have it yet.
+     */
+    private void migrate(String wikiId)
+    {
+        try {
+            this.executionContextManager.initialize(new ExecutionContext());
+            try {
+                XWikiContext context = this.xcontextProvider.get();
+                context.setWikiId(wikiId);
+                new PAMProfileXClass(context).normalizeUserNames(MIGRATION_BATCH_SIZE);
+                this.normalized.add(wikiId);
+            } finally {
+                this.execution.removeContext();
+            }
+        } catch (Exception e) {
+            this.logger.warn("Failed to normalize the PAM user names of wiki [{}]", wikiId, e);
+        } finally {
+            this.migrating.remove(wikiId);
+        }
+    }
+}
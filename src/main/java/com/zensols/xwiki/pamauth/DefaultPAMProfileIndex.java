@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Default {@link PAMProfileIndex}.  Only profiles in the <code>XWiki</code> space are indexed, others are found by
+ * the database search.  To stay compact the index maps to page names.  The scan of a wiki runs on a background
+ * thread, so the first login to a wiki doesn't wait for it but searches the database like any login until the index
+ * is ready.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+public class DefaultPAMProfileIndex implements PAMProfileIndex, Disposable
+{
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String SPACE_PREFIX = PAMProfileXClass.XWIKI_USER_SPACE + '.';
+
+    /** User and page names of the PAM profile objects, after the last object id. */
+    private static final String SCAN = "select obj.id, obj.name, prop.value from BaseObject as obj, "
+        + "StringProperty as prop where obj.className=:className and obj.id=prop.id.id and prop.name=:propertyName "
+        + "and obj.id>:lastId order by obj.id";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    private final ConcurrentMap<String, WikiIndex> wikis = new ConcurrentHashMap<>();
+
+    /** Scans the wikis one at a time. */
+    private final ExecutorService scanner = createScanner();
+
+    /**
+     * The profiles of a wiki.
+     */
+    private static final class WikiIndex
+    {
+        private final ConcurrentMap<String, String> userNames = new ConcurrentHashMap<>();
+
+        private volatile boolean ready;
+    }
+
+    @Override
+    public DocumentReference getByUserName(String userName, String wikiId)
+    {
+        WikiIndex index = getIndex(wikiId);
+        String page = index != null ? index.userNames.get(PAMProfileXClass.normalizeUserName(userName)) : null;
+
+        return page != null ? new DocumentReference(wikiId, PAMProfileXClass.XWIKI_USER_SPACE, page) : null;
+    }
+
+    @Override
+    public void update(XWikiDocument document)
+    {
+        WikiIndex index = this.wikis.get(document.getDocumentReference().getWikiReference().getName());
+
+        if (index == null) {
+            return;
+        }
+
+        XWikiDocument original = document.getOriginalDocument();
+        if (original != null) {
+            String page = getPage(original.getFullName());
+            BaseObject pamObject = original.getXObject(PAMProfileXClass.PAMPROFILECLASS_REFERENCE);
+
+            if (page != null && pamObject != null) {
+                index.userNames.remove(
+                    PAMProfileXClass.normalizeUserName(pamObject.getStringValue(PAMProfileXClass.PAM_XFIELD_USER_NAME)),
+                    page);
+            }
+        }
+
+        String page = getPage(document.getFullName());
+        BaseObject pamObject = document.getXObject(PAMProfileXClass.PAMPROFILECLASS_REFERENCE);
+
+        if (page != null && pamObject != null) {
+            put(index.userNames,
+                PAMProfileXClass.normalizeUserName(pamObject.getStringValue(PAMProfileXClass.PAM_XFIELD_USER_NAME)),
+                page);
+        }
+    }
+
+    @Override
+    public void invalidate(String wikiId)
+    {
+        this.wikis.remove(wikiId);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.scanner.shutdownNow();
+    }
+
+    private static ExecutorService createScanner()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "PAM profile index");
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * @return the index of the wiki, whose scan is started by the first caller, or null if it's not ready yet
+     */
+    private WikiIndex getIndex(String wikiId)
+    {
+        WikiIndex index = this.wikis.get(wikiId);
+
+        if (index == null) {
+            WikiIndex created = new WikiIndex();
+
+            index = this.wikis.putIfAbsent(wikiId, created);
+            if (index == null) {
+                // Registered before the scan so the documents saved meanwhile are indexed
+                index = created;
+                try {
+                    this.scanner.execute(() -> build(wikiId, created));
+                } catch (RejectedExecutionException e) {
+                    this.wikis.remove(wikiId, created);
+                }
+            }
+        }
+
+        return index.ready ? index : null;
+    }
+
+    private void build(String wikiId, WikiIndex index)
+    {
+        long start = System.currentTimeMillis();
+
+        try {
+            this.executionContextManager.initialize(new ExecutionContext());
+            try {
+                scan(wikiId, index.userNames);
+            } finally {
+                this.execution.removeContext();
+            }
+            index.ready = true;
+
+            this.logger.debug("Indexed {} PAM profiles of wiki [{}] in {}ms", index.userNames.size(), wikiId,
+                              System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            this.logger.warn("Failed to index the PAM profiles of wiki [{}], searching the database instead", wikiId,
+                             e);
+            this.wikis.remove(wikiId, index);
+        }
+    }
+
+    /**
+     * Read the user names of the PAM profiles page by page, without loading the documents.
+     */
+    private void scan(String wikiId, ConcurrentMap<String, String> map) throws QueryException
+    {
+        long lastId = Long.MIN_VALUE;
+
+        while (true) {
+            Query query = this.queryManager.createQuery(SCAN, Query.HQL)
+                .bindValue("className", PAMProfileXClass.PAM_XCLASS)
+                .bindValue("propertyName", PAMProfileXClass.PAM_XFIELD_USER_NAME)
+                .bindValue("lastId", lastId).setLimit(PAGE_SIZE).setWiki(wikiId);
+            List<Object[]> rows = query.execute();
+
+            for (Object[] row : rows) {
+                String page = getPage((String) row[1]);
+                String value = (String) row[2];
+
+                if (page != null && value != null) {
+                    // Documents saved during the scan are more recent
+                    map.putIfAbsent(PAMProfileXClass.normalizeUserName(value), page);
+                }
+            }
+
+            if (rows.size() < PAGE_SIZE) {
+                break;
+            }
+            lastId = ((Number) rows.get(rows.size() - 1)[0]).longValue();
+        }
+    }
+
+    private static void put(ConcurrentMap<String, String> map, String key, String page)
+    {
+        if (StringUtils.isNotEmpty(key)) {
+            map.put(key, page);
+        }
+    }
+
+    /**
+     * @return the page name of a document of the <code>XWiki</code> space, or null for other documents
+     */
+    private static String getPage(String fullName)
+    {
+        if (fullName == null || !fullName.startsWith(SPACE_PREFIX)) {
+            return null;
+        }
+
+        String page = fullName.substring(SPACE_PREFIX.length());
+
+        // Skip nested spaces and escaped names
+        return page.isEmpty() || page.indexOf('.') >= 0 || page.indexOf('\\') >= 0 ? null : page;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Backend calling libpam and libc in process, see {@link XWikiPAMLibPAM}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(XWikiPAMConfig.BACKEND_LIBPAM)
+@Singleton
+public class LibPAMUserBackend implements PAMUserBackend
+{
+    @Override
+    public PAMAccount getAccount(String userName, XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        return new XWikiPAMLibPAM(configuration).getAccount(userName);
+    }
+
+    @Override
+    public boolean verify(String userName, String password, XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        return new XWikiPAMLibPAM(configuration).verify(userName, password);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * A {@link PAMProvisioningClaim} for single node installations: the provisionings are only single-flight within the
+ * JVM, which needs no claim.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(XWikiPAMConfig.PROVISIONING_CLAIM_LOCAL)
+@Singleton
+public class LocalPAMProvisioningClaim implements PAMProvisioningClaim
+{
+    @Override
+    public boolean claim(String key, long ttl, XWikiContext context)
+    {
+        return true;
+    }
+
+    @Override
+    public void release(String key, XWikiContext context)
+    {
+        // Nothing was claimed
+    }
+}
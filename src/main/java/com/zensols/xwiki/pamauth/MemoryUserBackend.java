@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * An in memory backend for load tests and benchmarks, which doesn't need pwauth or any system account.
+ * <p>
+ * It knows the users <code>&lt;prefix&gt;0</code> to <code>&lt;prefix&gt;(count - 1)</code>, all sharing the same
+ * password, with uids starting at a configurable value and full names <code>&lt;Prefix&gt; &lt;n&gt;</code>.  Users
+ * are computed from their name, so any number of them costs no memory.  Each operation sleeps for the configured
+ * latency plus a random jitter to simulate the cost of a real backend.
+ * <p>
+ * It isn't registered in the shipped components.txt: the benchmarks register it themselves, and it refuses to work
+ * without an explicit password and a non empty prefix.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(XWikiPAMConfig.BACKEND_MEMORY)
+@Singleton
+public class MemoryUserBackend implements PAMUserBackend
+{
+    @Override
+    public PAMAccount getAccount(String userName, XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        checkConfiguration(configuration);
+        simulateLatency(configuration);
+
+        int index = getIndex(userName, configuration);
+        PAMAccount account = null;
+
+        if (index >= 0) {
+            String prefix = configuration.getMemoryUserPrefix();
+            String fullName = Character.toUpperCase(prefix.charAt(0)) + prefix.substring(1) + ' ' + index;
+            account = new PAMAccount(userName, String.valueOf(configuration.getMemoryFirstUid() + index), fullName);
+        }
+
+        return account;
+    }
+
+    @Override
+    public boolean verify(String userName, String password, XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        checkConfiguration(configuration);
+        simulateLatency(configuration);
+
+        return getIndex(userName, configuration) >= 0 && configuration.getMemoryPassword().equals(password);
+    }
+
+    private void checkConfiguration(XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        if (StringUtils.isEmpty(configuration.getMemoryPassword())) {
+            throw new XWikiPAMException("The memory backend needs pam_memory_password in xwiki.cfg");
+        }
+        if (StringUtils.isEmpty(configuration.getMemoryUserPrefix())) {
+            throw new XWikiPAMException("The memory backend needs a non empty pam_memory_prefix");
+        }
+    }
+
+    /**
+     * @return the number of the user or -1 if it isn't one of the generated users
+     */
+    private int getIndex(String userName, XWikiPAMConfig configuration)
+    {
+        String prefix = configuration.getMemoryUserPrefix();
+        int index = -1;
+
+        if (userName.length() > prefix.length() && userName.startsWith(prefix)) {
+            String number = userName.substring(prefix.length());
+
+            // Reject leading zeros so each user has a single name
+            if (number.length() == 1 || number.charAt(0) != '0') {
+                try {
+                    index = Integer.parseInt(number);
+                } catch (NumberFormatException e) {
+                    index = -1;
+                }
+            }
+        }
+
+        return index < configuration.getMemoryUserCount() ? index : -1;
+    }
+
+    private void simulateLatency(XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        long latency = configuration.getMemoryLatency();
+        long jitter = configuration.getMemoryLatencyJitter();
+
+        if (jitter > 0) {
+            latency += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XWikiPAMException("Interrupted while simulating PAM latency", e);
+            }
+        }
+    }
+}
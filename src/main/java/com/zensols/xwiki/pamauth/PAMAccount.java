@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+/**
+ * The UNIX attributes of an existing system account.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class PAMAccount
+{
+    private final String userName;
+
+    private final String uid;
+
+    private final String fullName;
+
+    /**
+     * @param userName the UNIX user name
+     * @param uid the UNIX numeric user ID
+     * @param fullName the full name of the user (first GECOS field), or null if not set
+     */
+    public PAMAccount(String userName, String uid, String fullName)
+    {
+        this.userName = userName;
+        this.uid = uid;
+        this.fullName = fullName == null ? "" : fullName;
+    }
+
+    /**
+     * @return the UNIX user name
+     */
+    public String getUserName()
+    {
+        return this.userName;
+    }
+
+    /**
+     * @return the UNIX numeric user ID
+     */
+    public String getUid()
+    {
+        return this.uid;
+    }
+
+    /**
+     * @return the full name of the user, empty if not set
+     */
+    public String getFullName()
+    {
+        return this.fullName;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.userName + " (" + this.uid + "): " + this.fullName;
+    }
+}
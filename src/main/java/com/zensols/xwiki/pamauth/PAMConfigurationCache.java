@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Holds the {@link XWikiPAMConfig#snapshot() configuration snapshot} of each wiki, so the PAM parameters are read and
+ * parsed once instead of on each request.  Snapshots are dropped when the configuration of their wiki changes.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface PAMConfigurationCache
+{
+    /**
+     * @return the configuration snapshot of the current wiki
+     */
+    XWikiPAMConfig getConfiguration();
+
+    /**
+     * @param wikiId the identifier of the wiki whose configuration changed
+     */
+    void invalidate(String wikiId);
+
+    /**
+     * Drop the snapshots of all wikis.
+     */
+    void invalidateAll();
+}
@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import org.xwiki.component.annotation.Role;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Verifies (and if needed updates) the <code>XWiki.PAMProfileClass</code> of each wiki once, on first use, instead of
+ * on each login.  The class of a wiki is verified again after its document changes.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface PAMProfileClassCache
+{
+    /**
+     * @param context the XWiki context
+     * @return the PAM profile class helper of the current wiki
+     * @throws XWikiException if the class can't be loaded or updated
+     */
+    PAMProfileXClass getProfileClass(XWikiContext context) throws XWikiException;
+
+    /**
+     * @param wikiId the identifier of the wiki whose class document changed
+     */
+    void invalidate(String wikiId);
+}
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.bridge.event.WikiDeletedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Makes the PAM profile class of a wiki verified again when its document changes or the wiki is deleted.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(PAMProfileClassListener.NAME)
+@Singleton
+public class PAMProfileClassListener implements EventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "pamauth.profileclass";
+
+    private static final List<Event> EVENTS = Arrays.<Event>asList(new DocumentCreatedEvent(),
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent(), new WikiDeletedEvent());
+
+    @Inject
+    private PAMProfileClassCache profileClassCache;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof WikiDeletedEvent) {
+            this.profileClassCache.invalidate(((WikiDeletedEvent) event).getWikiId());
+        } else if (source instanceof XWikiDocument) {
+            DocumentReference reference = ((XWikiDocument) source).getDocumentReference();
+
+            if (PAMProfileXClass.PAMPROFILECLASS_REFERENCE.equals(reference.getLocalDocumentReference())) {
+                this.profileClassCache.invalidate(reference.getWikiReference().getName());
+            }
+        }
+    }
+}
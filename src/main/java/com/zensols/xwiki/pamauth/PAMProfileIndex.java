@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * In memory index of the PAM user profiles of each wiki by (lower cased) UNIX user name, so finding the profile of a
+ * user doesn't need a database query.  The index of a wiki is built by a background scan of the PAM profile objects
+ * started the first time the wiki is used and is kept current with the document events.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface PAMProfileIndex
+{
+    /**
+     * @param userName the UNIX user name
+     * @param wikiId the identifier of the wiki
+     * @return the profile of the user, or null if it's not indexed (or the index of the wiki isn't built yet)
+     */
+    DocumentReference getByUserName(String userName, String wikiId);
+
+    /**
+     * Index the PAM profile object of a created, updated or deleted document.
+     *
+     * @param document the saved or deleted document
+     */
+    void update(XWikiDocument document);
+
+    /**
+     * @param wikiId the identifier of the wiki whose index to drop
+     */
+    void invalidate(String wikiId);
+}
@@ -19,15 +19,22 @@
  */
 package com.zensols.xwiki.pamauth;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
 
 import com.xpn.xwiki.XWikiContext;
@@ -55,6 +62,22 @@ public class PAMProfileXClass
     public static final String PAM_XFIELD_UID = "uid";
     /** The user (UNIX numeric) ID description field in the XWiki page. */
     public static final String PAM_XFIELDPN_UID = "PAM UID";
+    /** The normalized (trimmed, lower cased) user name field in the XWiki page, compared for equality in queries. */
+    public static final String PAM_XFIELD_NORMALIZED_USER_NAME = "normalizedusername";
+    /** The normalized user name description field in the XWiki page. */
+    public static final String PAM_XFIELDPN_NORMALIZED_USER_NAME = "PAM normalized user name";
+    /** The hash of the PAM attributes of the last synchronization field in the XWiki page. */
+    public static final String PAM_XFIELD_FINGERPRINT = "fingerprint";
+    /** The fingerprint description field in the XWiki page. */
+    public static final String PAM_XFIELDPN_FINGERPRINT = "PAM attributes fingerprint";
+    /** The time (in milliseconds since the epoch) of the last synchronization field in the XWiki page. */
+    public static final String PAM_XFIELD_LAST_SYNC = "lastsync";
+    /** The last synchronization description field in the XWiki page. */
+    public static final String PAM_XFIELDPN_LAST_SYNC = "PAM last synchronization";
+    /** The number of consecutive resynchronizations that didn't find the account field in the XWiki page. */
+    public static final String PAM_XFIELD_MISSING = "missing";
+    /** The missing account description field in the XWiki page. */
+    public static final String PAM_XFIELDPN_MISSING = "PAM resynchronizations without account";
 
     /**
      * The XWiki space where users are stored.
@@ -75,13 +98,20 @@ public class PAMProfileXClass
 
     private final BaseClass pamClass;
 
+    /** True when all the profiles of the wiki have a normalized user name. */
+    private final boolean normalized;
+
     /**
+     * Load the class of the current wiki and update it if it doesn't contain the required properties.  See
+     * {@link PAMProfileClassCache} to do it only once per wiki.
+     *
      * @param context the XWiki context
      * @throws XWikiException for any XWiki system issues
      */
     public PAMProfileXClass(XWikiContext context) throws XWikiException
     {
         this.context = context;
+        this.normalized = false;
 
         XWikiDocument pamClassDoc = context.getWiki().getDocument(PAMPROFILECLASS_REFERENCE, context);
 
@@ -108,6 +138,29 @@ public class PAMProfileXClass
         }
     }
 
+    /**
+     * @param pamClass the already verified PAM profile class
+     * @param normalized true if all the profiles of the wiki have a normalized user name (see
+     *            {@link #normalizeUserNames(int)}), so searches don't need to compare lower cased user names
+     * @param context the XWiki context
+     * @since 1.1
+     */
+    public PAMProfileXClass(BaseClass pamClass, boolean normalized, XWikiContext context)
+    {
+        this.context = context;
+        this.pamClass = pamClass;
+        this.normalized = normalized;
+    }
+
+    /**
+     * @return the PAM profile class
+     * @since 1.1
+     */
+    public BaseClass getXClass()
+    {
+        return this.pamClass;
+    }
+
     private boolean updateClass()
     {
         // Generate the class from scratch
@@ -125,6 +178,20 @@ public class PAMProfileXClass
         TextAreaClass textAreaClass = (TextAreaClass) newClass.get(PAM_XFIELD_UID);
         textAreaClass.setContentType("PureText");
         newClass.addTextField(PAM_XFIELD_USER_NAME, PAM_XFIELDPN_USER_NAME, 80);
+        newClass.addTextField(PAM_XFIELD_NORMALIZED_USER_NAME, PAM_XFIELDPN_NORMALIZED_USER_NAME, 80);
+        newClass.addTextField(PAM_XFIELD_FINGERPRINT, PAM_XFIELDPN_FINGERPRINT, 30);
+        newClass.addNumberField(PAM_XFIELD_LAST_SYNC, PAM_XFIELDPN_LAST_SYNC, 20, "long");
+        newClass.addNumberField(PAM_XFIELD_MISSING, PAM_XFIELDPN_MISSING, 5, "integer");
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @return the user name as stored in the normalized user name field
+     * @since 1.1
+     */
+    public static String normalizeUserName(String userName)
+    {
+        return userName.trim().toLowerCase(Locale.ROOT);
     }
 
     /**
@@ -205,6 +272,12 @@ public class PAMProfileXClass
             needsUpdate = true;
         }
 
+        String normalizedUserName = normalizeUserName(userName);
+        if (!normalizedUserName.equals(pamObject.getStringValue(PAM_XFIELD_NORMALIZED_USER_NAME))) {
+            map.put(PAM_XFIELD_NORMALIZED_USER_NAME, normalizedUserName);
+            needsUpdate = true;
+        }
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("storing PAM object: objUserName={}, objUid={}, userName={}, uid={}, needsUpdate={}",
                          objUserName, objUid, userName, uid, needsUpdate);
@@ -217,6 +290,94 @@ public class PAMProfileXClass
         return needsUpdate;
     }
 
+    /**
+     * @param attributes the PAM attributes of a user
+     * @return a compact hash of the attributes, independent of their order
+     * @since 1.1
+     */
+    public static String fingerprint(Map<String, String> attributes)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        for (Map.Entry<String, String> entry : new TreeMap<>(attributes).entrySet()) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (entry.getValue() != null) {
+                digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+
+        // 128 bits are plenty to detect changes
+        return Base64.getEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16));
+    }
+
+    /**
+     * @param userDocument the user profile page
+     * @param fingerprint the fingerprint of the current PAM attributes of the user (see
+     *            {@link #fingerprint(Map)}) or null to only check the time of the last synchronization
+     * @param interval the number of milliseconds a synchronization stays current
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the profile was synchronized less than <code>interval</code> ago with the same attributes
+     * @since 1.1
+     */
+    public boolean isSynchronized(XWikiDocument userDocument, String fingerprint, long interval, long now)
+    {
+        BaseObject pamObject = userDocument.getXObject(this.pamClass.getDocumentReference());
+
+        return pamObject != null && isSynchronized(pamObject.getStringValue(PAM_XFIELD_FINGERPRINT),
+            pamObject.getLongValue(PAM_XFIELD_LAST_SYNC), fingerprint, interval, now);
+    }
+
+    /**
+     * @param syncedFingerprint the fingerprint recorded with the last synchronization
+     * @param lastSync the time of the last synchronization in milliseconds since the epoch, 0 if never recorded
+     * @param fingerprint the fingerprint of the current PAM attributes or null to only check the time
+     * @param interval the number of milliseconds a synchronization stays current
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the last synchronization is less than <code>interval</code> old and has the same attributes
+     */
+    static boolean isSynchronized(String syncedFingerprint, long lastSync, String fingerprint, long interval, long now)
+    {
+        return interval > 0 && lastSync > 0 && now - lastSync >= 0 && now - lastSync < interval
+            && (fingerprint == null || fingerprint.equals(syncedFingerprint));
+    }
+
+    /**
+     * Record a synchronization of the user profile when it changed the attributes or when the last recorded one is
+     * no longer current: an unchanged profile is then saved at most once per interval, which keeps the
+     * synchronizations of the following logins skipped.
+     *
+     * @param userDocument the user profile page to update
+     * @param fingerprint the fingerprint of the PAM attributes the profile was synchronized with
+     * @param interval the number of milliseconds a synchronization stays current
+     * @param now the time of the synchronization in milliseconds since the epoch
+     * @param saved true if the profile is saved anyway, so recording the synchronization costs nothing
+     * @return true if the synchronization had to be recorded (changed attributes or no current record), so the
+     *         profile must be saved
+     * @since 1.1
+     */
+    public boolean updateSyncState(XWikiDocument userDocument, String fingerprint, long interval, long now,
+        boolean saved)
+    {
+        BaseObject pamObject = userDocument.getXObject(this.pamClass.getDocumentReference(), true, this.context);
+        boolean record = !isSynchronized(pamObject.getStringValue(PAM_XFIELD_FINGERPRINT),
+            pamObject.getLongValue(PAM_XFIELD_LAST_SYNC), fingerprint, interval, now);
+
+        if (record || saved) {
+            pamObject.setStringValue(PAM_XFIELD_FINGERPRINT, fingerprint);
+            pamObject.setLongValue(PAM_XFIELD_LAST_SYNC, now);
+        }
+
+        return record;
+    }
+
     /**
      * Search the XWiki storage for a existing user profile with provided PAM user uid stored.
      * <p>
@@ -226,6 +387,65 @@ public class PAMProfileXClass
      * @return the user profile containing PAM uid.
      */
     public XWikiDocument searchDocumentByUserName(String userName)
+    {
+        XWikiDocument doc = null;
+        DocumentReference reference = searchReferenceByUserName(userName);
+
+        if (reference != null) {
+            try {
+                doc = this.context.getWiki().getDocument(reference, this.context);
+            } catch (XWikiException e) {
+                LOGGER.error("Fail to load user profile [" + reference + "] of pam userName [" + userName + "]", e);
+            }
+        } else if (!this.normalized) {
+            // Some profiles might not have a normalized user name yet
+            doc = searchDocumentByLowerCaseUserName(userName);
+        }
+
+        return doc;
+    }
+
+    /**
+     * Search the XWiki storage for the reference of an existing user profile by normalized user name, without
+     * loading the document.
+     * <p>
+     * If more than one profile is found the first one in returned and an error is logged.
+     *
+     * @param userName the UNIX user name (not uid)
+     * @return the reference of the user profile or null if none has the user name
+     * @since 1.1
+     */
+    public DocumentReference searchReferenceByUserName(String userName)
+    {
+        String normalizedUserName = normalizeUserName(userName);
+        List<DocumentReference> references;
+
+        try {
+            // Fetch up to 2 references to detect duplicates in the same query
+            String where = ", BaseObject as obj, StringProperty as prop where doc.fullName=obj.name and "
+                + "obj.className=? and obj.id=prop.id.id and prop.name=? and prop.value=?";
+
+            references = this.context.getWiki().getStore().searchDocumentReferences(where, 2, 0,
+                Arrays.asList(PAM_XCLASS, PAM_XFIELD_NORMALIZED_USER_NAME, normalizedUserName), this.context);
+        } catch (XWikiException e) {
+            LOGGER.error("Fail to search for document containing pam userName [" + userName + "]", e);
+
+            references = Collections.emptyList();
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("found {} references searching for id={}, {}={}", references.size(), PAM_XCLASS,
+                         PAM_XFIELD_NORMALIZED_USER_NAME, normalizedUserName);
+        }
+
+        if (references.size() > 1) {
+            LOGGER.error("There is more than one user profile for PAM userName [" + userName + "]");
+        }
+
+        return references.isEmpty() ? null : references.get(0);
+    }
+
+    private XWikiDocument searchDocumentByLowerCaseUserName(String userName)
     {
         XWikiDocument doc = null;
 
@@ -261,4 +481,55 @@ public class PAMProfileXClass
 
         return doc;
     }
+
+    /**
+     * Store the normalized user name in the profiles that don't have it yet (created by a previous version), saving
+     * <code>batchSize</code> profiles at a time.
+     *
+     * @param batchSize the number of profiles loaded and saved at a time
+     * @return the number of profiles updated
+     * @throws XWikiException if the profiles can't be searched or saved
+     * @since 1.1
+     */
+    public int normalizeUserNames(int batchSize) throws XWikiException
+    {
+        String where = ", BaseObject as obj where doc.fullName=obj.name and obj.className=? and obj.id not in "
+            + "(select prop.id.id from StringProperty as prop where prop.name=?)";
+        List<?> parameters = Arrays.asList(PAM_XCLASS, PAM_XFIELD_NORMALIZED_USER_NAME);
+        int count = 0;
+
+        while (true) {
+            List<DocumentReference> references = this.context.getWiki().getStore().searchDocumentReferences(where,
+                batchSize, 0, parameters, this.context);
+            int updated = 0;
+
+            for (DocumentReference reference : references) {
+                XWikiDocument userDocument = this.context.getWiki().getDocument(reference, this.context).clone();
+                BaseObject pamObject = userDocument.getXObject(this.pamClass.getDocumentReference());
+
+                if (pamObject != null) {
+                    String userName = getUserName(pamObject);
+                    pamObject.setStringValue(PAM_XFIELD_NORMALIZED_USER_NAME,
+                                             userName == null ? "" : normalizeUserName(userName));
+                    this.context.getWiki().saveDocument(userDocument, "Normalized PAM user name", true,
+                                                        this.context);
+                    updated++;
+                }
+            }
+
+            count += updated;
+            LOGGER.debug("Normalized the PAM user name of {} profiles", count);
+
+            // Stop when done, or if nothing could be updated to not search the same profiles forever
+            if (references.size() < batchSize || updated == 0) {
+                break;
+            }
+        }
+
+        if (count > 0) {
+            LOGGER.info("Normalized the PAM user name of {} profiles in wiki [{}]", count, this.context.getWikiId());
+        }
+
+        return count;
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import org.xwiki.component.annotation.Role;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Makes the creation of the profile of a user single-flight across the nodes of a cluster: the node holding the claim
+ * of a user creates its profile, the others wait for it.  The implementation used is selected with the
+ * <code>pam_provisioning_claim</code> parameter, which gives the component hint.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface PAMProvisioningClaim
+{
+    /**
+     * @param key identifies the provisioning (wiki and normalized user name)
+     * @param ttl the number of milliseconds after which the claim can be taken over if it was never released (e.g.
+     *            the node died)
+     * @param context the XWiki context
+     * @return true if this node holds the claim, false if another node does
+     * @throws XWikiException if the claim can't be checked
+     */
+    boolean claim(String key, long ttl, XWikiContext context) throws XWikiException;
+
+    /**
+     * @param key a provisioning claimed by this node
+     * @param context the XWiki context
+     * @throws XWikiException if the claim can't be released, in which case it expires
+     */
+    void release(String key, XWikiContext context) throws XWikiException;
+}
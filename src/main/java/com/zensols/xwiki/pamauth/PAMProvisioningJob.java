@@ -0,0 +1,245 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.environment.Environment;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Creates or synchronizes the profiles of the system accounts within a uid range before their first login, so the
+ * first logins after a rollout don't all create profiles at the same time.
+ * <p>
+ * The accounts are provisioned in batches, several batches at a time.  The highest uid up to which all the batches
+ * completed is saved in the permanent directory so an interrupted run can be resumed
+ * ({@link PAMProvisioningRequest#isResume()}).
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(PAMProvisioningJob.JOB_TYPE)
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class PAMProvisioningJob
+    extends AbstractJob<PAMProvisioningRequest, DefaultJobStatus<PAMProvisioningRequest>> implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOB_TYPE = "pamauth.provisioning";
+
+    private static final String CHECKPOINT_DIRECTORY = "pamauth";
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PAMConfigurationCache configurationCache;
+
+    @Inject
+    private Environment environment;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicInteger synchronizedCount = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    @Override
+    public String getType()
+    {
+        return JOB_TYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // One provisioning at a time per wiki
+        return new JobGroupPath(Arrays.asList(JOB_TYPE, getRequest().getWiki()));
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+
+        xcontext.setWikiId(getRequest().getWiki());
+        try {
+            provision(xcontext);
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
+    }
+
+    private void provision(XWikiContext xcontext) throws Exception
+    {
+        PAMProvisioningRequest provisioningRequest = getRequest();
+        boolean dryRun = provisioningRequest.isDryRun();
+        String passwdFile = provisioningRequest.getPasswdFile();
+        List<PAMAccount> accounts = XWikiPAMPasswd.read(passwdFile != null ? new File(passwdFile) : null,
+            provisioningRequest.getMinUid(), provisioningRequest.getMaxUid());
+
+        if (provisioningRequest.isResume()) {
+            long checkpoint = readCheckpoint();
+            accounts.removeIf(account -> Long.parseLong(account.getUid()) <= checkpoint);
+            this.logger.info("Resuming after uid [{}]", checkpoint);
+        }
+
+        List<List<PAMAccount>> batches = new ArrayList<>();
+        int batchSize = Math.max(1, provisioningRequest.getBatchSize());
+        for (int i = 0; i < accounts.size(); i += batchSize) {
+            batches.add(accounts.subList(i, Math.min(accounts.size(), i + batchSize)));
+        }
+
+        this.logger.info("Provisioning [{}] accounts in [{}] batches{}", accounts.size(), batches.size(),
+            dryRun ? " (dry run)" : "");
+
+        // The accounts are already known: the backend is not needed
+        XWikiPAMUtils pamUtils =
+            new XWikiPAMUtils(this.configurationCache.getConfiguration(), null, null, null, null, null, null, null);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, provisioningRequest.getThreads()), runnable -> {
+            Thread thread = new Thread(runnable, "PAM provisioning");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+
+        for (int i = 0; i < batches.size(); i++) {
+            final int index = i;
+            final XWikiContext batchContext = xcontext.clone();
+            completion.submit(() -> XWikiPAMUtils.callInContext(batchContext, () -> {
+                for (PAMAccount account : batches.get(index)) {
+                    provision(account, pamUtils, dryRun, batchContext);
+                }
+                return index;
+            }));
+        }
+
+        this.progressManager.pushLevelProgress(batches.size(), this);
+        try {
+            boolean[] completed = new boolean[batches.size()];
+            int completedPrefix = 0;
+
+            for (int i = 0; i < batches.size(); i++) {
+                this.progressManager.startStep(this);
+
+                completed[completion.take().get()] = true;
+
+                // Only the accounts of the batches before the first pending one are safe to skip when resuming
+                int prefix = completedPrefix;
+                while (prefix < completed.length && completed[prefix]) {
+                    prefix++;
+                }
+                if (prefix > completedPrefix && !dryRun) {
+                    List<PAMAccount> batch = batches.get(prefix - 1);
+                    writeCheckpoint(Long.parseLong(batch.get(batch.size() - 1).getUid()));
+                }
+                completedPrefix = prefix;
+
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            pool.shutdownNow();
+            this.progressManager.popLevelProgress(this);
+        }
+
+        if (!dryRun) {
+            Files.deleteIfExists(getCheckpointFile().toPath());
+        }
+
+        this.logger.info("{} [{}] profiles, {} [{}] existing profiles, [{}] failures",
+            dryRun ? "Would create" : "Created", this.created.get(), dryRun ? "found" : "synchronized",
+            this.synchronizedCount.get(), this.failed.get());
+    }
+
+    private void provision(PAMAccount account, XWikiPAMUtils pamUtils, boolean dryRun, XWikiContext context)
+    {
+        String userName = account.getUserName();
+
+        try {
+            XWikiDocument userProfile = pamUtils.getUserProfileByUserName(null, userName, context);
+            Map<String, String> attributes = XWikiPAMUtils.createAttributes(account);
+
+            if (dryRun) {
+                this.logger.debug("{} the profile of [{}]", userProfile == null ? "Would create" : "Would synchronize",
+                                  userName);
+            } else {
+                pamUtils.syncUser(userProfile, userName, attributes, context);
+            }
+
+            (userProfile == null ? this.created : this.synchronizedCount).incrementAndGet();
+        } catch (Exception e) {
+            this.failed.incrementAndGet();
+            this.logger.error("Failed to provision the profile of [{}]", userName, e);
+        }
+    }
+
+    private File getCheckpointFile()
+    {
+        return new File(new File(this.environment.getPermanentDirectory(), CHECKPOINT_DIRECTORY),
+            "provisioning-" + getRequest().getWiki() + ".checkpoint");
+    }
+
+    private long readCheckpoint() throws IOException
+    {
+        File file = getCheckpointFile();
+
+        if (!file.exists()) {
+            return Long.MIN_VALUE;
+        }
+
+        return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    private void writeCheckpoint(long uid) throws IOException
+    {
+        File file = getCheckpointFile();
+
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), String.valueOf(uid).getBytes(StandardCharsets.UTF_8));
+    }
+}
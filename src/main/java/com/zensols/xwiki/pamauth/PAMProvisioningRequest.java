@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.job.Request;
+
+/**
+ * The parameters of a {@link PAMProvisioningJob}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class PAMProvisioningRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PROPERTY_WIKI = "wiki";
+
+    private static final String PROPERTY_MIN_UID = "minUid";
+
+    private static final String PROPERTY_MAX_UID = "maxUid";
+
+    private static final String PROPERTY_PASSWD_FILE = "passwdFile";
+
+    private static final String PROPERTY_THREADS = "threads";
+
+    private static final String PROPERTY_BATCH_SIZE = "batchSize";
+
+    private static final String PROPERTY_DRY_RUN = "dryRun";
+
+    private static final String PROPERTY_RESUME = "resume";
+
+    /**
+     * @param wikiId the wiki where the user profiles are provisioned
+     */
+    public PAMProvisioningRequest(String wikiId)
+    {
+        setProperty(PROPERTY_WIKI, wikiId);
+        setId(Arrays.asList(PAMProvisioningJob.JOB_TYPE, wikiId));
+        setInteractive(false);
+    }
+
+    /**
+     * @param request the request to copy
+     */
+    public PAMProvisioningRequest(Request request)
+    {
+        super(request);
+    }
+
+    /**
+     * @return the wiki where the user profiles are provisioned
+     */
+    public String getWiki()
+    {
+        return getProperty(PROPERTY_WIKI);
+    }
+
+    /**
+     * @return the lowest uid of the accounts to provision (1000 by default)
+     */
+    public long getMinUid()
+    {
+        return getProperty(PROPERTY_MIN_UID, 1000L);
+    }
+
+    /**
+     * @param minUid the lowest uid of the accounts to provision
+     */
+    public void setMinUid(long minUid)
+    {
+        setProperty(PROPERTY_MIN_UID, minUid);
+    }
+
+    /**
+     * @return the highest uid of the accounts to provision (59999 by default)
+     */
+    public long getMaxUid()
+    {
+        return getProperty(PROPERTY_MAX_UID, 59999L);
+    }
+
+    /**
+     * @param maxUid the highest uid of the accounts to provision
+     */
+    public void setMaxUid(long maxUid)
+    {
+        setProperty(PROPERTY_MAX_UID, maxUid);
+    }
+
+    /**
+     * @return the file in the <code>/etc/passwd</code> format listing the accounts, or null to enumerate the accounts
+     *         with <code>getent passwd</code>
+     */
+    public String getPasswdFile()
+    {
+        return getProperty(PROPERTY_PASSWD_FILE);
+    }
+
+    /**
+     * @param passwdFile the file in the <code>/etc/passwd</code> format listing the accounts
+     */
+    public void setPasswdFile(String passwdFile)
+    {
+        setProperty(PROPERTY_PASSWD_FILE, passwdFile);
+    }
+
+    /**
+     * @return the number of batches provisioned concurrently (4 by default)
+     */
+    public int getThreads()
+    {
+        return getProperty(PROPERTY_THREADS, 4);
+    }
+
+    /**
+     * @param threads the number of batches provisioned concurrently
+     */
+    public void setThreads(int threads)
+    {
+        setProperty(PROPERTY_THREADS, threads);
+    }
+
+    /**
+     * @return the number of accounts in a batch (100 by default)
+     */
+    public int getBatchSize()
+    {
+        return getProperty(PROPERTY_BATCH_SIZE, 100);
+    }
+
+    /**
+     * @param batchSize the number of accounts in a batch
+     */
+    public void setBatchSize(int batchSize)
+    {
+        setProperty(PROPERTY_BATCH_SIZE, batchSize);
+    }
+
+    /**
+     * @return true to only report the profiles that would be created or updated
+     */
+    public boolean isDryRun()
+    {
+        return getProperty(PROPERTY_DRY_RUN, false);
+    }
+
+    /**
+     * @param dryRun true to only report the profiles that would be created or updated
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        setProperty(PROPERTY_DRY_RUN, dryRun);
+    }
+
+    /**
+     * @return true to skip the accounts provisioned by a previous run that didn't complete
+     */
+    public boolean isResume()
+    {
+        return getProperty(PROPERTY_RESUME, false);
+    }
+
+    /**
+     * @param resume true to skip the accounts provisioned by a previous run that didn't complete
+     */
+    public void setResume(boolean resume)
+    {
+        setProperty(PROPERTY_RESUME, resume);
+    }
+}
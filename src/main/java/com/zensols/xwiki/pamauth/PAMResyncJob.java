@@ -0,0 +1,382 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Checks all the PAM user profiles of a wiki against the system accounts: the names of the existing accounts are
+ * synchronized and the profiles of the accounts that no longer exist are deactivated.  The membership in the mapped
+ * XWiki groups (see {@link XWikiPAMConfig#getGroupMappings()}) is synchronized too.
+ * <p>
+ * Since a backend may not tell a removed account from a failed lookup, a profile is only deactivated when its
+ * account is missing from two consecutive resynchronizations, and no profile is touched by a run missing more than
+ * {@link XWikiPAMConfig#getResyncMaxMissing()} percent of the accounts.  A profile deactivated
+ * that way is activated again when its account reappears.
+ * <p>
+ * The profiles are read page by page and the modified ones saved in batches, no faster than the configured rate so
+ * the resynchronization doesn't compete with the users.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(PAMResyncJob.JOB_TYPE)
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class PAMResyncJob extends AbstractJob<PAMResyncRequest, DefaultJobStatus<PAMResyncRequest>>
+    implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOB_TYPE = "pamauth.resync";
+
+    /** The number of consecutive resynchronizations an account must be missing from to deactivate its profile. */
+    static final int MISSING_RUNS = 2;
+
+    private static final int PAGE_SIZE = 500;
+
+    private static final String ACTIVE = "active";
+
+    /** User names and pages of the PAM profile objects, after the last object id. */
+    private static final String SCAN = "select obj.id, obj.name, prop.value from BaseObject as obj, "
+        + "StringProperty as prop where obj.className=:className and obj.id=prop.id.id and prop.name=:propertyName "
+        + "and obj.id>:lastId order by obj.id";
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PAMConfigurationCache configurationCache;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @Inject
+    private PAMProfileClassCache profileClassCache;
+
+    private int checked;
+
+    private int updated;
+
+    private int deactivated;
+
+    private int reactivated;
+
+    private int failed;
+
+    private int groupChanges;
+
+    private long nextSave;
+
+    /**
+     * The group membership changes since the last save, or null if no group is mapped.
+     */
+    private XWikiPAMGroupSync groupSync;
+
+    /**
+     * The pages and user names of the profiles whose account wasn't found, handled once all the accounts are checked.
+     */
+    private final List<String[]> missing = new ArrayList<>();
+
+    @Override
+    public String getType()
+    {
+        return JOB_TYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // One resynchronization at a time per wiki
+        return new JobGroupPath(Arrays.asList(JOB_TYPE, getRequest().getWiki()));
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        String currentWiki = xcontext.getWikiId();
+
+        xcontext.setWikiId(getRequest().getWiki());
+        try {
+            resync(xcontext);
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
+    }
+
+    private void resync(XWikiContext xcontext) throws Exception
+    {
+        XWikiPAMConfig configuration = this.configurationCache.getConfiguration();
+        PAMUserBackend backend =
+            this.componentManagerProvider.get().getInstance(PAMUserBackend.class, configuration.getBackend());
+        XWikiPAMUtils pamUtils = new XWikiPAMUtils(configuration, backend, null, null, null, null, null, null);
+        String wikiId = getRequest().getWiki();
+        int batchSize = Math.max(1, getRequest().getBatchSize());
+        List<XWikiDocument> batch = new ArrayList<>(batchSize);
+        long lastId = Long.MIN_VALUE;
+
+        this.logger.info("Resynchronizing the PAM user profiles of wiki [{}]{}", wikiId,
+            getRequest().isDryRun() ? " (dry run)" : "");
+
+        // Make sure the class has the missing account field
+        this.profileClassCache.getProfileClass(xcontext);
+
+        if (!configuration.getGroupMappings().isEmpty()) {
+            this.groupSync = new XWikiPAMGroupSync(configuration, new XWikiPAMGroupIndex(configuration), xcontext);
+        }
+
+        this.nextSave = System.nanoTime();
+        while (true) {
+            Query query = this.queryManager.createQuery(SCAN, Query.HQL)
+                .bindValue("className", PAMProfileXClass.PAM_XCLASS)
+                .bindValue("propertyName", PAMProfileXClass.PAM_XFIELD_USER_NAME).bindValue("lastId", lastId)
+                .setLimit(PAGE_SIZE).setWiki(wikiId);
+            List<Object[]> rows = query.execute();
+
+            for (Object[] row : rows) {
+                XWikiDocument userProfile =
+                    resync((String) row[1], (String) row[2], backend, configuration, pamUtils, xcontext);
+
+                if (userProfile != null) {
+                    batch.add(userProfile);
+                    if (batch.size() >= batchSize) {
+                        save(batch, xcontext);
+                    }
+                }
+            }
+
+            if (rows.size() < PAGE_SIZE) {
+                break;
+            }
+            lastId = ((Number) rows.get(rows.size() - 1)[0]).longValue();
+        }
+        save(batch, xcontext);
+
+        if (this.missing.size() > Math.max(1, (long) this.checked * configuration.getResyncMaxMissing() / 100)) {
+            this.logger.warn("[{}] of the [{}] accounts were not found, the account lookups are probably failing: "
+                + "no profile is deactivated", this.missing.size(), this.checked);
+        } else {
+            for (String[] profile : this.missing) {
+                XWikiDocument userProfile = markMissing(profile[0], profile[1], backend, configuration, xcontext);
+
+                if (userProfile != null) {
+                    batch.add(userProfile);
+                    if (batch.size() >= batchSize) {
+                        save(batch, xcontext);
+                    }
+                }
+            }
+            save(batch, xcontext);
+        }
+
+        this.logger.info("Checked [{}] PAM user profiles: [{}] updated, [{}] missing, [{}] deactivated, [{}] "
+            + "reactivated, [{}] group membership changes, [{}] failures", this.checked, this.updated,
+            this.missing.size(), this.deactivated, this.reactivated, this.groupChanges, this.failed);
+    }
+
+    /**
+     * @return the modified user profile to save or null if it's unchanged
+     */
+    private XWikiDocument resync(String page, String userName, PAMUserBackend backend,
+        XWikiPAMConfig configuration, XWikiPAMUtils pamUtils, XWikiContext xcontext)
+    {
+        this.checked++;
+
+        try {
+            PAMAccount account = backend.getAccount(userName, configuration);
+            XWikiDocument userProfile = xcontext.getWiki()
+                .getDocument(this.resolver.resolve(page, new WikiReference(xcontext.getWikiId())), xcontext).clone();
+
+            if (this.groupSync != null) {
+                this.groupChanges += this.groupSync.update(userProfile, userName);
+            }
+
+            if (account == null) {
+                this.missing.add(new String[] { page, userName });
+            } else {
+                boolean reappeared = reactivate(userProfile, page, userName, xcontext);
+
+                if (pamUtils.applyUserFromPAM(userProfile, XWikiPAMUtils.createAttributes(account), userName,
+                    account.getUid(), false, xcontext) || reappeared) {
+                    this.logger.debug("Updating [{}] from account [{}]", page, account);
+                    this.updated++;
+                    return userProfile;
+                }
+            }
+        } catch (Exception e) {
+            this.failed++;
+            this.logger.error("Failed to resynchronize [{}] with account [{}]", page, userName, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Clear the missing account count of a profile whose account exists, activating it again if it was deactivated
+     * because the account was missing.
+     *
+     * @return true if the profile was modified
+     */
+    private boolean reactivate(XWikiDocument userProfile, String page, String userName, XWikiContext xcontext)
+        throws XWikiException
+    {
+        BaseObject pamObject = userProfile.getXObject(PAMProfileXClass.PAMPROFILECLASS_REFERENCE);
+        int missingRuns = pamObject != null ? pamObject.getIntValue(PAMProfileXClass.PAM_XFIELD_MISSING) : 0;
+
+        if (missingRuns <= 0) {
+            return false;
+        }
+
+        pamObject.setIntValue(PAMProfileXClass.PAM_XFIELD_MISSING, 0);
+
+        BaseObject userObj = getUserObject(userProfile, xcontext);
+        if (missingRuns >= MISSING_RUNS && userObj != null && userObj.getIntValue(ACTIVE) == 0) {
+            this.logger.info("Activating [{}]: account [{}] exists again", page, userName);
+            userObj.setIntValue(ACTIVE, 1);
+            this.reactivated++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Count a resynchronization missing the account of a profile, deactivating the profile after
+     * {@link #MISSING_RUNS} consecutive ones.
+     *
+     * @return the modified user profile to save or null if the account exists after all or the profile can't be
+     *         loaded
+     */
+    private XWikiDocument markMissing(String page, String userName, PAMUserBackend backend,
+        XWikiPAMConfig configuration, XWikiContext xcontext)
+    {
+        try {
+            // Look the account up again in case the first lookup failed transiently
+            if (backend.getAccount(userName, configuration) != null) {
+                return null;
+            }
+
+            XWikiDocument userProfile = xcontext.getWiki()
+                .getDocument(this.resolver.resolve(page, new WikiReference(xcontext.getWikiId())), xcontext).clone();
+            BaseObject pamObject = userProfile.getXObject(PAMProfileXClass.PAMPROFILECLASS_REFERENCE);
+
+            if (pamObject == null) {
+                return null;
+            }
+
+            int missingRuns = pamObject.getIntValue(PAMProfileXClass.PAM_XFIELD_MISSING) + 1;
+            pamObject.setIntValue(PAMProfileXClass.PAM_XFIELD_MISSING, missingRuns);
+
+            BaseObject userObj = getUserObject(userProfile, xcontext);
+            if (missingRuns >= MISSING_RUNS && userObj != null && userObj.getIntValue(ACTIVE) != 0) {
+                this.logger.info("Deactivating [{}]: account [{}] no longer exists", page, userName);
+                userObj.setIntValue(ACTIVE, 0);
+                this.deactivated++;
+            } else {
+                this.logger.debug("Account [{}] of [{}] missing from [{}] resynchronizations", userName, page,
+                    missingRuns);
+            }
+
+            return userProfile;
+        } catch (Exception e) {
+            this.failed++;
+            this.logger.error("Failed to resynchronize [{}] with missing account [{}]", page, userName, e);
+        }
+
+        return null;
+    }
+
+    private static BaseObject getUserObject(XWikiDocument userProfile, XWikiContext xcontext) throws XWikiException
+    {
+        return userProfile.getXObject(xcontext.getWiki().getUserClass(xcontext).getDocumentReference());
+    }
+
+    /**
+     * Save the user profiles, waiting as needed to not exceed the rate.
+     */
+    private void save(List<XWikiDocument> batch, XWikiContext xcontext) throws InterruptedException
+    {
+        if (!getRequest().isDryRun()) {
+            long wait = this.nextSave - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            for (XWikiDocument userProfile : batch) {
+                try {
+                    xcontext.getWiki().saveDocument(userProfile, "Resynchronized user profile with PAM server", true,
+                        xcontext);
+                } catch (XWikiException e) {
+                    this.failed++;
+                    this.logger.error("Failed to save [{}]", userProfile.getDocumentReference(), e);
+                }
+            }
+
+            // Each modified group is saved once for the whole batch
+            if (this.groupSync != null) {
+                try {
+                    this.groupSync.save("Resynchronized group membership with PAM server");
+                } catch (XWikiException e) {
+                    this.failed++;
+                    this.logger.error("Failed to save the group membership changes", e);
+                }
+            }
+
+            this.nextSave = System.nanoTime() + TimeUnit.SECONDS.toNanos(batch.size()) / Math.max(1,
+                getRequest().getRate());
+        }
+
+        batch.clear();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+
+import org.xwiki.job.AbstractRequest;
+import org.xwiki.job.Request;
+
+/**
+ * The parameters of a {@link PAMResyncJob}.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class PAMResyncRequest extends AbstractRequest
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PROPERTY_WIKI = "wiki";
+
+    private static final String PROPERTY_RATE = "rate";
+
+    private static final String PROPERTY_BATCH_SIZE = "batchSize";
+
+    private static final String PROPERTY_DRY_RUN = "dryRun";
+
+    /**
+     * @param wikiId the wiki of the user profiles to resynchronize
+     * @param configuration the PAM configuration of the wiki, providing the default rate and batch size
+     */
+    public PAMResyncRequest(String wikiId, XWikiPAMConfig configuration)
+    {
+        setProperty(PROPERTY_WIKI, wikiId);
+        setId(Arrays.asList(PAMResyncJob.JOB_TYPE, wikiId));
+        setInteractive(false);
+        setRate(configuration.getResyncRate());
+        setBatchSize(configuration.getResyncBatchSize());
+    }
+
+    /**
+     * @param request the request to copy
+     */
+    public PAMResyncRequest(Request request)
+    {
+        super(request);
+    }
+
+    /**
+     * @return the wiki of the user profiles to resynchronize
+     */
+    public String getWiki()
+    {
+        return getProperty(PROPERTY_WIKI);
+    }
+
+    /**
+     * @return the maximum number of user profiles saved per second
+     */
+    public int getRate()
+    {
+        return getProperty(PROPERTY_RATE);
+    }
+
+    /**
+     * @param rate the maximum number of user profiles saved per second
+     */
+    public void setRate(int rate)
+    {
+        setProperty(PROPERTY_RATE, rate);
+    }
+
+    /**
+     * @return the number of modified user profiles saved at a time
+     */
+    public int getBatchSize()
+    {
+        return getProperty(PROPERTY_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize the number of modified user profiles saved at a time
+     */
+    public void setBatchSize(int batchSize)
+    {
+        setProperty(PROPERTY_BATCH_SIZE, batchSize);
+    }
+
+    /**
+     * @return true to only report the user profiles that would be updated or deactivated
+     */
+    public boolean isDryRun()
+    {
+        return getProperty(PROPERTY_DRY_RUN, false);
+    }
+
+    /**
+     * @param dryRun true to only report the user profiles that would be updated or deactivated
+     */
+    public void setDryRun(boolean dryRun)
+    {
+        setProperty(PROPERTY_DRY_RUN, dryRun);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Starts a {@link PAMResyncJob} of the main wiki every <code>pam_resync_interval</code> milliseconds, the first one an
+ * interval after the wiki is ready.  The configuration is checked every minute, so changing the interval doesn't
+ * need a restart.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(PAMResyncScheduler.NAME)
+@Singleton
+public class PAMResyncScheduler implements EventListener, Disposable
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "pamauth.resync";
+
+    private static final long POLL_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final List<Event> EVENTS = Arrays.<Event>asList(new ApplicationReadyEvent());
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PAMConfigurationCache configurationCache;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    private ScheduledExecutorService timer;
+
+    /** The time the last resynchronization started or the interval was enabled, 0 when disabled. */
+    private long lastStart;
+
+    private Job lastJob;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public synchronized void onEvent(Event event, Object source, Object data)
+    {
+        if (this.timer == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "PAM resync scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            this.timer = scheduler;
+            this.timer.schedule(this::tick, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick()
+    {
+        long delay = POLL_INTERVAL;
+
+        try {
+            ExecutionContext context = new ExecutionContext();
+            this.executionContextManager.initialize(context);
+            try {
+                delay = schedule();
+            } finally {
+                this.execution.removeContext();
+            }
+        } catch (Exception e) {
+            this.logger.warn("Failed to schedule the resynchronization of the PAM user profiles", e);
+        } finally {
+            synchronized (this) {
+                if (this.timer != null && !this.timer.isShutdown()) {
+                    this.timer.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of milliseconds to wait before checking again
+     */
+    private long schedule() throws Exception
+    {
+        XWikiContext xcontext = this.xcontextProvider.get();
+        xcontext.setWikiId(xcontext.getMainXWiki());
+
+        XWikiPAMConfig configuration = this.configurationCache.getConfiguration();
+        long interval = configuration.getResyncInterval();
+        long now = System.currentTimeMillis();
+
+        if (interval <= 0) {
+            this.lastStart = 0;
+            return POLL_INTERVAL;
+        }
+
+        if (this.lastStart == 0) {
+            // Just enabled: wait a full interval
+            this.lastStart = now;
+        } else if (now - this.lastStart >= interval) {
+            if (this.lastJob == null || this.lastJob.getStatus().getState() == JobStatus.State.FINISHED) {
+                this.lastJob = this.jobExecutor.execute(PAMResyncJob.JOB_TYPE,
+                    new PAMResyncRequest(xcontext.getWikiId(), configuration));
+            } else {
+                this.logger.warn("Skipping the resynchronization of the PAM user profiles: the previous one is "
+                    + "still running");
+            }
+            this.lastStart = now;
+        }
+
+        return Math.min(POLL_INTERVAL, this.lastStart + interval - now);
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+        }
+    }
+}
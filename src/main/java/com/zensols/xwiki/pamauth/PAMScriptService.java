@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Administration of the PAM authenticator from scripts (<code>$services.pamauth</code>).
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named("pamauth")
+@Singleton
+public class PAMScriptService implements ScriptService
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    private PAMConfigurationCache configurationCache;
+
+    /**
+     * @return the parameters of a provisioning of the current wiki, to modify before passing them to
+     *         {@link #provision(PAMProvisioningRequest)}
+     */
+    public PAMProvisioningRequest createProvisioningRequest()
+    {
+        return new PAMProvisioningRequest(this.xcontextProvider.get().getWikiId());
+    }
+
+    /**
+     * Start creating or synchronizing the profiles of the system accounts, requires administration right on the wiki.
+     *
+     * @param request the parameters of the provisioning
+     * @return the running job or null if the current user is not allowed to start it or it failed to start
+     */
+    public Job provision(PAMProvisioningRequest request)
+    {
+        if (!this.authorization.hasAccess(Right.ADMIN, new WikiReference(request.getWiki()))) {
+            this.logger.warn("Provisioning PAM profiles of wiki [{}] requires administration right", request.getWiki());
+            return null;
+        }
+
+        try {
+            return this.jobExecutor.execute(PAMProvisioningJob.JOB_TYPE, request);
+        } catch (JobException e) {
+            this.logger.error("Failed to start provisioning PAM profiles of wiki [{}]", request.getWiki(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the parameters of a resynchronization of the current wiki, to modify before passing them to
+     *         {@link #resync(PAMResyncRequest)}
+     */
+    public PAMResyncRequest createResyncRequest()
+    {
+        return new PAMResyncRequest(this.xcontextProvider.get().getWikiId(),
+            this.configurationCache.getConfiguration());
+    }
+
+    /**
+     * Start checking the PAM user profiles against the system accounts, requires administration right on the wiki.
+     *
+     * @param request the parameters of the resynchronization
+     * @return the running job or null if the current user is not allowed to start it or it failed to start
+     */
+    public Job resync(PAMResyncRequest request)
+    {
+        if (!this.authorization.hasAccess(Right.ADMIN, new WikiReference(request.getWiki()))) {
+            this.logger.warn("Resynchronizing PAM profiles of wiki [{}] requires administration right",
+                request.getWiki());
+            return null;
+        }
+
+        try {
+            return this.jobExecutor.execute(PAMResyncJob.JOB_TYPE, request);
+        } catch (JobException e) {
+            this.logger.error("Failed to start resynchronizing PAM profiles of wiki [{}]", request.getWiki(), e);
+            return null;
+        }
+    }
+}
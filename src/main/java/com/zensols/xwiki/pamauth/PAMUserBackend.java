@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Looks up UNIX accounts and verifies their passwords.  The implementation used is selected with the
+ * <code>pam_backend</code> parameter, which gives the component hint.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface PAMUserBackend
+{
+    /**
+     * @param userName the UNIX user name
+     * @param configuration the PAM configuration of the current wiki
+     * @return the account of the user (uid and GECOS name) or null if it doesn't exist
+     * @throws XWikiPAMException if the account can't be looked up
+     */
+    PAMAccount getAccount(String userName, XWikiPAMConfig configuration) throws XWikiPAMException;
+
+    /**
+     * @param userName the UNIX user name
+     * @param password the password of the user
+     * @param configuration the PAM configuration of the current wiki
+     * @return true if the password is valid for the user
+     * @throws XWikiPAMException if the password can't be verified
+     */
+    boolean verify(String userName, String password, XWikiPAMConfig configuration) throws XWikiPAMException;
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+
+/**
+ * Backend sending operations to a pool of long lived helper processes, see {@link XWikiPAMProcessPool}.  The pool is
+ * created on first use and recreated when its configuration changes.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(XWikiPAMConfig.BACKEND_POOL)
+@Singleton
+public class PoolUserBackend implements PAMUserBackend, Disposable
+{
+    @Inject
+    private Logger logger;
+
+    private XWikiPAMProcessPool processPool;
+
+    @Override
+    public PAMAccount getAccount(String userName, XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        return getProcessPool(configuration).getAccount(userName);
+    }
+
+    @Override
+    public boolean verify(String userName, String password, XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        return getProcessPool(configuration).verify(userName, password);
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the pool of helper processes, (re)created if the configuration changed
+     * @throws XWikiPAMException if the pool can't be created
+     */
+    protected synchronized XWikiPAMProcessPool getProcessPool(XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        if (this.processPool != null && !this.processPool.isConfiguredFor(configuration)) {
+            this.processPool.close();
+            this.processPool = null;
+        }
+        if (this.processPool == null) {
+            this.processPool = new XWikiPAMProcessPool(configuration);
+            this.logger.debug("Created PAM helper process pool of size {}", configuration.getPoolSize());
+        }
+
+        return this.processPool;
+    }
+
+    /**
+     * @return the pool of helper processes (to get its counters) or null if it wasn't used yet
+     */
+    public synchronized XWikiPAMProcessPool getProcessPool()
+    {
+        return this.processPool;
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if (this.processPool != null) {
+            this.processPool.close();
+            this.processPool = null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+import com.zensols.unix.userauth.User;
+import com.zensols.unix.userauth.UserManager;
+
+/**
+ * The default backend, which launches pwauth (through the userauth library) for each operation.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Named(XWikiPAMConfig.BACKEND_PWAUTH)
+@Singleton
+public class PwauthUserBackend implements PAMUserBackend
+{
+    private final UserManager userManager = new UserManager();
+
+    @Override
+    public PAMAccount getAccount(String userName, XWikiPAMConfig configuration)
+    {
+        User user = this.userManager.createUser(userName);
+
+        return user.exists() ? new PAMAccount(userName, String.valueOf(user.getUserId()), user.getFullName()) : null;
+    }
+
+    @Override
+    public boolean verify(String userName, String password, XWikiPAMConfig configuration)
+    {
+        // pwauth rejects unknown users itself, so checking exists() first would only cost another launch
+        return this.userManager.createUser(userName).isAuthorized(password);
+    }
+}
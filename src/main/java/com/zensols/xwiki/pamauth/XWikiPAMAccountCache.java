@@ -0,0 +1,225 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, time limited cache of the attributes of the UNIX accounts (uid, full name and the derived first and last
+ * names) by user name, so trusted logins don't look up the account each time.
+ * <p>
+ * An entry read when it is about to expire (within the refresh ahead window) is refreshed in the background while
+ * the cached attributes are still returned, so the accounts of active users never expire.  The least recently used
+ * entry is dropped when the cache is full.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMAccountCache
+{
+    private final int maxSize;
+
+    private final long ttl;
+
+    private final long refreshAhead;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry
+    {
+        private final Map<String, String> attributes;
+
+        private final long expires;
+
+        private boolean refreshing;
+
+        Entry(Map<String, String> attributes, long expires)
+        {
+            this.attributes = attributes;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of accounts kept in the cache
+     * @param ttl the number of milliseconds the attributes of an account stay valid
+     * @param refreshAhead the number of milliseconds before the expiration of an entry during which reading it
+     *            triggers a refresh, or 0 to never refresh
+     */
+    public XWikiPAMAccountCache(int maxSize, long ttl, long refreshAhead)
+    {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttl = Math.max(0, ttl);
+        this.refreshAhead = Math.max(0, refreshAhead);
+
+        final int capacity = this.maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                boolean remove = size() > capacity;
+
+                if (remove) {
+                    XWikiPAMAccountCache.this.evictions.incrementAndGet();
+                }
+
+                return remove;
+            }
+        };
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this cache was created with the size, TTL and refresh ahead window of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        return this.maxSize == configuration.getAccountCacheSize() && this.ttl == configuration.getAccountCacheTTL()
+            && this.refreshAhead == configuration.getAccountCacheRefreshAhead();
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @param refresh started (on the calling thread, which should hand it over to another thread) when the entry is
+     *            about to expire, it should {@link #put(String, Map)} the new attributes or {@link #invalidate(String)}
+     *            the user
+     * @return a copy of the cached attributes of the account, or null if the account is not in the cache or expired
+     */
+    public Map<String, String> get(String userName, Runnable refresh)
+    {
+        Map<String, String> attributes = null;
+        boolean startRefresh = false;
+
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(userName);
+
+            if (entry != null) {
+                long remaining = entry.expires - System.nanoTime();
+
+                if (remaining > 0) {
+                    attributes = entry.attributes;
+                    if (remaining < TimeUnit.MILLISECONDS.toNanos(this.refreshAhead) && !entry.refreshing) {
+                        entry.refreshing = true;
+                        startRefresh = true;
+                    }
+                } else {
+                    this.entries.remove(userName);
+                }
+            }
+        }
+
+        if (attributes == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+
+        this.hits.incrementAndGet();
+        if (startRefresh) {
+            this.refreshes.incrementAndGet();
+            refresh.run();
+        }
+
+        return new HashMap<>(attributes);
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @param attributes the attributes of the account
+     */
+    public void put(String userName, Map<String, String> attributes)
+    {
+        Entry entry = new Entry(Collections.unmodifiableMap(new HashMap<>(attributes)),
+                                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.ttl));
+
+        synchronized (this.entries) {
+            this.entries.put(userName, entry);
+        }
+    }
+
+    /**
+     * Forget the attributes of an account, for example when it no longer exists.
+     *
+     * @param userName the UNIX user name
+     */
+    public void invalidate(String userName)
+    {
+        synchronized (this.entries) {
+            this.entries.remove(userName);
+        }
+    }
+
+    /**
+     * @return the number of accounts currently in the cache (including expired ones not yet removed)
+     */
+    public int size()
+    {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered by the cache
+     */
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups not answered by the cache
+     */
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of background refreshes started
+     */
+    public long getRefreshCount()
+    {
+        return this.refreshes.get();
+    }
+
+    /**
+     * @return the number of accounts dropped because the cache was full
+     */
+    public long getEvictionCount()
+    {
+        return this.evictions.get();
+    }
+}
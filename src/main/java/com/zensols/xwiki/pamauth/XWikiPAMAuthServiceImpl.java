@@ -19,9 +19,17 @@
  */
 package com.zensols.xwiki.pamauth;
 
+import java.io.File;
 import java.security.Principal;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+
+import javax.servlet.http.Cookie;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
@@ -34,6 +42,7 @@ import org.securityfilter.filter.SecurityRequestWrapper;
 import org.securityfilter.realm.SimplePrincipal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.context.Execution;
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.text.StringUtils;
@@ -48,24 +57,29 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMAuthServiceImpl.class);
 
-    private static final String CONTEXT_CONFIGURATION = "pam.configuration";
     private static final String PAM_REMOTE_ATTRIBUTE = "pam.remoteuser";
     private static final String PAM_MESSAGE_PROP = "message";
 
-    private final ConcurrentMap<String, String> lockMap = new ConcurrentHashMap<>();
+    /** Context key set when the password could not be checked by PAM. */
+    private static final String PAM_UNVERIFIED_PROP = "pam_unverified";
+
     private Execution execution;
+    private PAMConfigurationCache configurationCache;
+    private volatile XWikiPAMLockTable lockTable;
+    private volatile XWikiPAMVerdictCache verdictCache;
+    private volatile XWikiPAMAccountCache accountCache;
+    private volatile XWikiPAMPasswdIndex passwdIndex;
+    private volatile XWikiPAMGroupIndex groupIndex;
+    private volatile XWikiPAMFailureTracker failureTracker;
+    private volatile XWikiPAMExecutor executor;
+    private volatile XWikiPAMConcurrencyLimiter limiter;
+    private volatile XWikiPAMUpdateQueue updateQueue;
+    private volatile XWikiPAMSSOCookie ssoCookie;
+    private volatile XWikiPAMLoginCoalescer<Principal> loginCoalescer;
 
     protected XWikiPAMConfig initConfiguration(String authInput)
     {
-        ExecutionContext econtext = getExecutionContext();
-
-        if (econtext != null) {
-            XWikiPAMConfig configuration = new XWikiPAMConfig(authInput);
-            econtext.setProperty(CONTEXT_CONFIGURATION, configuration);
-            return configuration;
-        }
-
-        return new XWikiPAMConfig(null);
+        return getConfiguration(authInput);
     }
 
     protected ExecutionContext getExecutionContext()
@@ -77,28 +91,410 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
         return this.execution.getContext();
     }
 
+    /**
+     * @param userId the id of the user provided in input
+     * @return the immutable configuration snapshot of the current wiki
+     */
     protected XWikiPAMConfig getConfiguration(String userId)
     {
-        ExecutionContext econtext = getExecutionContext();
+        if (this.configurationCache == null) {
+            this.configurationCache = Utils.getComponent(PAMConfigurationCache.class);
+        }
+
+        return this.configurationCache.getConfiguration();
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the cache of successful password verifications, (re)created if the configuration changed, or null if
+     *         caching is disabled
+     */
+    protected XWikiPAMVerdictCache getVerdictCache(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isCacheEnabled()) {
+            this.verdictCache = null;
+            return null;
+        }
+
+        XWikiPAMVerdictCache cache = this.verdictCache;
+
+        if (cache == null || !cache.isConfiguredFor(configuration)) {
+            cache = new XWikiPAMVerdictCache(configuration.getCacheSize(), configuration.getCacheTTL(),
+                                             configuration.getCacheEviction());
+            this.verdictCache = cache;
+            LOGGER.debug("Created PAM verdict cache: size={}, ttl={}", configuration.getCacheSize(),
+                         configuration.getCacheTTL());
+        }
+
+        return cache;
+    }
+
+    /**
+     * @return the cache of successful password verifications (to get its hit/miss counters) or null if caching is
+     *         disabled or no login happened yet
+     */
+    public XWikiPAMVerdictCache getVerdictCache()
+    {
+        return this.verdictCache;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the cache of account attributes, (re)created if the configuration changed, or null if caching is
+     *         disabled
+     */
+    protected XWikiPAMAccountCache getAccountCache(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isAccountCacheEnabled()) {
+            this.accountCache = null;
+            return null;
+        }
+
+        XWikiPAMAccountCache cache = this.accountCache;
+
+        if (cache == null || !cache.isConfiguredFor(configuration)) {
+            cache = new XWikiPAMAccountCache(configuration.getAccountCacheSize(), configuration.getAccountCacheTTL(),
+                                             configuration.getAccountCacheRefreshAhead());
+            this.accountCache = cache;
+        }
+
+        return cache;
+    }
+
+    /**
+     * @return the cache of account attributes (to get its hit/miss/refresh counters) or null if caching is disabled
+     *         or no login happened yet
+     */
+    public XWikiPAMAccountCache getAccountCache()
+    {
+        return this.accountCache;
+    }
 
-        if (econtext != null) {
-            XWikiPAMConfig configuration = (XWikiPAMConfig) econtext.getProperty(CONTEXT_CONFIGURATION);
+    /**
+     * @param configuration the PAM configuration
+     * @return the index of the passwd file, (re)created if the configuration changed, or null if it is disabled
+     */
+    protected XWikiPAMPasswdIndex getPasswdIndex(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isPasswdIndexEnabled()) {
+            this.passwdIndex = null;
+            return null;
+        }
 
-            if (configuration != null) {
-                return configuration;
+        XWikiPAMPasswdIndex index = this.passwdIndex;
+
+        if (index == null || !index.isConfiguredFor(configuration)) {
+            index = new XWikiPAMPasswdIndex(new File(configuration.getPasswdFile()),
+                                            configuration.getPasswdCheckInterval());
+            this.passwdIndex = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the index of the passwd file or null if it is disabled or no login happened yet
+     */
+    public XWikiPAMPasswdIndex getPasswdIndex()
+    {
+        return this.passwdIndex;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the index of the UNIX groups, (re)created if the configuration changed, or null if no group is mapped or
+     *         allowed in the wiki of the configuration (the index shared by the other wikis is kept)
+     */
+    protected XWikiPAMGroupIndex getGroupIndex(XWikiPAMConfig configuration)
+    {
+        if (configuration.getGroupMappings().isEmpty() && configuration.getAllowedGroups().isEmpty()) {
+            return null;
+        }
+
+        XWikiPAMGroupIndex index = this.groupIndex;
+
+        if (index == null || !index.isConfiguredFor(configuration)) {
+            index = new XWikiPAMGroupIndex(configuration);
+            this.groupIndex = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * @return the index of the UNIX groups or null if no group is mapped or allowed or no login happened yet
+     */
+    public XWikiPAMGroupIndex getGroupIndex()
+    {
+        return this.groupIndex;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the tracker of failed logins, (re)created if the configuration changed, or null if failure tracking is
+     *         disabled
+     */
+    protected XWikiPAMFailureTracker getFailureTracker(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isFailureTrackingEnabled()) {
+            this.failureTracker = null;
+            return null;
+        }
+
+        XWikiPAMFailureTracker tracker = this.failureTracker;
+
+        if (tracker == null || !tracker.isConfiguredFor(configuration)) {
+            tracker = new XWikiPAMFailureTracker(configuration);
+            this.failureTracker = tracker;
+        }
+
+        return tracker;
+    }
+
+    /**
+     * @return the tracker of failed logins (to get its rejection counter) or null if failure tracking is disabled or
+     *         no login happened yet
+     */
+    public XWikiPAMFailureTracker getFailureTracker()
+    {
+        return this.failureTracker;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the backend selected by the configuration to look up accounts and verify passwords
+     * @throws XWikiPAMException if there is no backend with the configured hint
+     */
+    protected PAMUserBackend getUserBackend(XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        String hint = configuration.getBackend();
+
+        try {
+            return Utils.getContextComponentManager().getInstance(PAMUserBackend.class, hint);
+        } catch (ComponentLookupException e) {
+            throw new XWikiPAMException("Unknown PAM backend [" + hint + "]", e);
+        }
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the locks serializing SSO authentication per remote user, created once per node since replacing them
+     *         would let two threads hold different locks for the same user
+     */
+    protected XWikiPAMLockTable getLockTable(XWikiPAMConfig configuration)
+    {
+        XWikiPAMLockTable table = this.lockTable;
+
+        if (table == null) {
+            synchronized (this) {
+                table = this.lockTable;
+                if (table == null) {
+                    table = new XWikiPAMLockTable(configuration.getLockStripes(), configuration.getLockTimeout());
+                    this.lockTable = table;
+                }
             }
         }
 
-        return new XWikiPAMConfig(userId);
+        return table;
     }
 
-    protected void removeConfiguration()
+    /**
+     * @return the locks serializing SSO authentication (to get its wait time metrics) or null if no SSO
+     *         authentication happened yet
+     */
+    public XWikiPAMLockTable getLockTable()
+    {
+        return this.lockTable;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the threads running account lookups and password verifications, created once per node so that no
+     *         pending verification is dropped by replacing them
+     */
+    protected XWikiPAMExecutor getExecutor(XWikiPAMConfig configuration)
+    {
+        XWikiPAMExecutor pamExecutor = this.executor;
+
+        if (pamExecutor == null) {
+            synchronized (this) {
+                pamExecutor = this.executor;
+                if (pamExecutor == null) {
+                    pamExecutor = new XWikiPAMExecutor(configuration.getExecutorThreads(),
+                                                       configuration.getExecutorQueueSize());
+                    this.executor = pamExecutor;
+                }
+            }
+        }
+
+        return pamExecutor;
+    }
+
+    /**
+     * @return the threads running account lookups and password verifications (to get the timeout and rejection
+     *         counters) or null if no login happened yet
+     */
+    public XWikiPAMExecutor getExecutor()
+    {
+        return this.executor;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the adaptive limit of concurrent password verifications, (re)created if the configuration changed, or
+     *         null if verifications are not limited
+     */
+    protected XWikiPAMConcurrencyLimiter getConcurrencyLimiter(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isLimitEnabled()) {
+            this.limiter = null;
+            return null;
+        }
+
+        XWikiPAMConcurrencyLimiter concurrencyLimiter = this.limiter;
+
+        if (concurrencyLimiter == null || !concurrencyLimiter.isConfiguredFor(configuration)) {
+            concurrencyLimiter = new XWikiPAMConcurrencyLimiter(configuration.getLimitMin(),
+                configuration.getLimitMax(), configuration.getLimitQueueTimeout());
+            this.limiter = concurrencyLimiter;
+        }
+
+        return concurrencyLimiter;
+    }
+
+    /**
+     * @return the adaptive limit of concurrent password verifications (to get the current limit, in flight and
+     *         rejection counts) or null if verifications are not limited or no login happened yet
+     */
+    public XWikiPAMConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return this.limiter;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the background writer of user profile updates, created once per node, or null if profiles are updated
+     *         during the login
+     */
+    protected XWikiPAMUpdateQueue getUpdateQueue(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isWriteBehindEnabled()) {
+            return null;
+        }
+
+        XWikiPAMUpdateQueue queue = this.updateQueue;
+
+        if (queue == null) {
+            synchronized (this) {
+                queue = this.updateQueue;
+                if (queue == null) {
+                    queue = new XWikiPAMUpdateQueue(configuration.getWriteBehindQueueSize());
+                    this.updateQueue = queue;
+                }
+            }
+        }
+
+        return queue;
+    }
+
+    /**
+     * @return the background writer of user profile updates (to get the queue depth, coalescing and save latency
+     *         metrics) or null if profiles are updated during the login or no login happened yet
+     */
+    public XWikiPAMUpdateQueue getUpdateQueue()
+    {
+        return this.updateQueue;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the coalescer of concurrent identical password authentications, created once, or null if coalescing
+     *         is disabled
+     */
+    protected XWikiPAMLoginCoalescer<Principal> getLoginCoalescer(XWikiPAMConfig configuration)
+    {
+        if (!configuration.isLoginCoalescingEnabled()) {
+            return null;
+        }
+
+        XWikiPAMLoginCoalescer<Principal> coalescer = this.loginCoalescer;
+
+        if (coalescer == null) {
+            synchronized (this) {
+                coalescer = this.loginCoalescer;
+                if (coalescer == null) {
+                    coalescer = new XWikiPAMLoginCoalescer<>();
+                    this.loginCoalescer = coalescer;
+                }
+            }
+        }
+
+        return coalescer;
+    }
+
+    /**
+     * @return the coalescer of concurrent identical password authentications (to get its coalescing ratio) or null if
+     *         coalescing is disabled or no login happened yet
+     */
+    public XWikiPAMLoginCoalescer<Principal> getLoginCoalescer()
+    {
+        return this.loginCoalescer;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return the signer of the SSO authentication cookie, (re)created if xwiki.cfg changed (key rotation), or null
+     *         if no key is configured
+     */
+    protected XWikiPAMSSOCookie getSSOCookie(XWikiPAMConfig configuration)
+    {
+        if (configuration.getSSOCookieKeys().isEmpty()) {
+            this.ssoCookie = null;
+            return null;
+        }
+
+        XWikiPAMSSOCookie cookie = this.ssoCookie;
+
+        if (cookie == null || !cookie.isConfiguredFor(configuration)) {
+            cookie = new XWikiPAMSSOCookie(configuration.getSSOCookieKeys(), configuration.getSSOCookieTTL());
+            this.ssoCookie = cookie;
+        }
+
+        return cookie;
+    }
+
+    /**
+     * @return the signer of the SSO authentication cookie (to get its issued/accepted/rejected counters) or null if
+     *         no key is configured or no SSO login happened yet
+     */
+    public XWikiPAMSSOCookie getSSOCookie()
+    {
+        return this.ssoCookie;
+    }
+
+    private XWikiPAMUtils createPAMUtils(XWikiPAMConfig configuration) throws XWikiPAMException
     {
-        ExecutionContext econtext = getExecutionContext();
+        PAMUserBackend backend = getUserBackend(configuration);
+        XWikiPAMPasswdIndex index = getPasswdIndex(configuration);
 
-        if (econtext != null) {
-            econtext.removeProperty(CONTEXT_CONFIGURATION);
+        if (index != null) {
+            backend = index.asBackend(backend);
         }
+
+        return new XWikiPAMUtils(configuration, backend, getVerdictCache(configuration),
+                                 getAccountCache(configuration), getExecutor(configuration),
+                                 getConcurrencyLimiter(configuration), getUpdateQueue(configuration),
+                                 getGroupIndex(configuration));
+    }
+
+    /**
+     * Does nothing: the configuration is a shared snapshot, no longer stored in the execution context.
+     *
+     * @deprecated since 1.1
+     */
+    @Deprecated
+    protected void removeConfiguration()
+    {
     }
 
     private Principal checkSessionPrincipal(String remoteUser, XWikiRequest request)
@@ -120,6 +516,53 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
         return null;
     }
 
+    /**
+     * @return the principal of the SSO authentication cookie issued for the remote user by any node sharing the key,
+     *         or null if there is no valid cookie
+     */
+    private Principal checkCookiePrincipal(String remoteUser, XWikiContext context)
+    {
+        XWikiPAMConfig configuration = getConfiguration(remoteUser);
+        XWikiPAMSSOCookie signer = getSSOCookie(configuration);
+
+        if (signer != null) {
+            Cookie cookie = context.getRequest().getCookie(configuration.getSSOCookieName());
+
+            if (cookie != null && cookie.getValue() != null) {
+                String principal = signer.verify(cookie.getValue(), remoteUser, System.currentTimeMillis());
+
+                if (principal != null) {
+                    LOGGER.debug("Remote user [{}] authenticated by SSO cookie as [{}]", remoteUser, principal);
+                    return new SimplePrincipal(principal);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Let the other nodes trust the principal resolved for the remote user until the SSO authentication cookie
+     * expires.
+     */
+    private void addCookie(String remoteUser, Principal principal, XWikiContext context)
+    {
+        XWikiPAMConfig configuration = getConfiguration(remoteUser);
+        XWikiPAMSSOCookie signer = getSSOCookie(configuration);
+
+        if (signer != null && context.getResponse() != null) {
+            XWikiRequest request = context.getRequest();
+            Cookie cookie = new Cookie(configuration.getSSOCookieName(),
+                signer.sign(principal.getName(), remoteUser, System.currentTimeMillis()));
+
+            cookie.setMaxAge(signer.getMaxAge());
+            cookie.setPath(StringUtils.isEmpty(request.getContextPath()) ? "/" : request.getContextPath());
+            cookie.setHttpOnly(true);
+            cookie.setSecure(request.isSecure());
+            context.getResponse().addCookie(cookie);
+        }
+    }
+
     @Override
     public XWikiUser checkAuth(XWikiContext context) throws XWikiException
     {
@@ -151,21 +594,38 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
     {
         XWikiRequest request = context.getRequest();
 
-        // Check if the user is already authenticated
+        // Check if the user is already authenticated, on this node or (with the SSO cookie) on another one
         Principal principal = checkSessionPrincipal(remoteUser, request);
 
+        if (principal == null) {
+            principal = checkCookiePrincipal(remoteUser, context);
+            if (principal != null) {
+                request.getSession().setAttribute(SecurityRequestWrapper.PRINCIPAL_SESSION_KEY, principal);
+                request.getSession().setAttribute(PAM_REMOTE_ATTRIBUTE, remoteUser);
+            }
+        }
+
         XWikiUser user;
 
         if (principal == null) {
+            // Extract the UNIX user name (e.g. strip the realm)
+            String userName = getConfiguration(remoteUser).getRemoteUserParser().parse(remoteUser);
+
+            if (StringUtils.isEmpty(userName)) {
+                LOGGER.debug("No user name in remote user [{}]", remoteUser);
+                return null;
+            }
+
             // Authenticate
-            principal = checkAuthSSOSync(remoteUser, request, context);
+            principal = checkAuthSSOSync(remoteUser, userName, request, context);
             if (principal == null) {
                 return null;
             }
 
             // Remember user in the session
             request.getSession().setAttribute(SecurityRequestWrapper.PRINCIPAL_SESSION_KEY, principal);
-            request.getSession().setAttribute(PAM_REMOTE_ATTRIBUTE, context.getRequest().getRemoteUser());
+            request.getSession().setAttribute(PAM_REMOTE_ATTRIBUTE, remoteUser);
+            addCookie(remoteUser, principal, context);
 
             user = new XWikiUser(principal.getName());
         } else {
@@ -175,27 +635,38 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
 
         LOGGER.debug("XWikiUser = [{}]", user);
 
-        removeConfiguration();
-
         return user;
     }
 
-    private Principal checkAuthSSOSync(String remoteUser, XWikiRequest request, XWikiContext context)
+    private Principal checkAuthSSOSync(String remoteUser, String userName, XWikiRequest request,
+        XWikiContext context)
     {
-        String lock = this.lockMap.putIfAbsent(remoteUser, remoteUser);
+        Lock lock;
+
+        try {
+            lock = getLockTable(getConfiguration(userName)).tryLock(userName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
         if (lock == null) {
-            lock = this.lockMap.get(remoteUser);
+            LOGGER.warn("Timed out waiting for the authentication of remote user [{}] by another thread", remoteUser);
+            return null;
         }
-        synchronized (lock) {
+
+        try {
             // Check if the user was authenticated by another thread in the meantime
             Principal principal = checkSessionPrincipal(remoteUser, request);
 
             if (principal == null) {
                 // Authenticate
-                principal = pamAuthenticate(remoteUser, null, true, false, context);
+                principal = pamAuthenticate(userName, null, true, false, context);
             }
 
             return principal;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -219,6 +690,7 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
             principal = pamAuthenticateInContext(userId, null, password, trusted, context, compactPrincipal);
         } catch (Exception e) {
             // continue
+            markUnverified(e, context);
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Local PAM authentication failed.", e);
             }
@@ -232,6 +704,51 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
                 context.setWikiId(context.getMainXWiki());
                 try {
                     principal = pamAuthenticateInContext(userId, null, password, trusted, context, false);
+                } catch (Exception e) {
+                    // continue
+                    markUnverified(e, context);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Global PAM authentication failed.", e);
+                    }
+                }
+            } finally {
+                context.setWikiId(db);
+            }
+        }
+
+        return principal;
+    }
+
+    /**
+     * Try both local and global pam login with the attributes of an already verified user and return
+     * {@link Principal}.
+     *
+     * @param userId the id of the user provided in input
+     * @param attributes the attributes of the verified PAM user
+     * @param compactPrincipal if true the user principal should not contain the wiki in case of local authentication
+     * @param context the XWiki context.
+     * @return the {@link Principal}.
+     */
+    private Principal pamAuthenticate(String userId, Map<String, String> attributes, boolean compactPrincipal,
+        XWikiContext context)
+    {
+        Principal principal = null;
+
+        try {
+            principal = pamAuthenticateInContext(userId, null, attributes, context, compactPrincipal);
+        } catch (Exception e) {
+            // continue
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Local PAM authentication failed.", e);
+            }
+        }
+
+        if (principal == null && !context.isMainWiki()) {
+            String db = context.getWikiId();
+            try {
+                context.setWikiId(context.getMainXWiki());
+                try {
+                    principal = pamAuthenticateInContext(userId, null, attributes, context, false);
                 } catch (Exception e) {
                     // continue
                     if (LOGGER.isDebugEnabled()) {
@@ -275,6 +792,28 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
 
     @Override
     public Principal authenticate(String userId, String password, XWikiContext context) throws XWikiException
+    {
+        XWikiPAMCallerExecutor caller = new XWikiPAMCallerExecutor();
+
+        return caller.await(authenticateAsync(userId, password, context, caller));
+    }
+
+    /**
+     * Authenticate a user without blocking the calling thread on PAM.  The password is verified on the PAM executor
+     * within the PAM timeout (a verification that times out or is rejected for lack of capacity falls back to the
+     * XWiki DB but isn't counted as a failed login, since the password was never checked), then the XWiki user
+     * profile is looked up, created or synchronized by <code>contextExecutor</code>.
+     *
+     * @param userId the id of the user provided in input
+     * @param password the password of the user to log in
+     * @param context the XWiki context
+     * @param contextExecutor runs the XWiki part of the authentication; its tasks must run on a thread owning the
+     *            XWiki execution context of <code>context</code>
+     * @return the future {@link Principal}, null if the authentication failed
+     * @since 1.1
+     */
+    public CompletableFuture<Principal> authenticateAsync(final String userId, final String password,
+        final XWikiContext context, Executor contextExecutor)
     {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("Starting PAM authentication");
@@ -294,7 +833,7 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
                     + " We don't try to authenticate, it probably means the user is in non logged mode.");
             }
 
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
         // Check for empty usernames
@@ -305,7 +844,7 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
                 LOGGER.debug("PAM authentication failed: login empty");
             }
 
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
         // Check for empty passwords
@@ -316,31 +855,154 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
                 LOGGER.debug("PAM authentication failed: password null or empty");
             }
 
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
         // Check for superadmin
         if (isSuperAdmin(userId)) {
-            return authenticateSuperAdmin(password, context);
+            return CompletableFuture.completedFuture(authenticateSuperAdmin(password, context));
         }
 
-        // Try authentication against pam
-        Principal principal = pamAuthenticate(userId, password, false, true, context);
+        // Reject repeated failures before spawning any process or querying the database
+        XWikiPAMConfig configuration = getConfiguration(userId);
+        final XWikiPAMFailureTracker tracker = getFailureTracker(configuration);
+        final String address = context.getRequest() != null ? context.getRequest().getRemoteAddr() : null;
 
-        if (principal == null) {
-            // Fallback to local DB only if trylocal is true
-            principal = xwikiAuthenticate(userId, password, context);
+        if (tracker != null && tracker.isBlocked(userId, address)) {
+            context.put(PAM_MESSAGE_PROP, "invalidcredentials");
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("PAM authentication rejected for user [{}] from [{}]: too many failures",
+                             userId, address);
+            }
+
+            return CompletableFuture.completedFuture(null);
         }
 
-        if (LOGGER.isDebugEnabled()) {
-            if (principal != null) {
-                LOGGER.debug("PAM authentication succeed with principal [{}]", principal.getName());
-            } else {
-                LOGGER.debug("PAM authentication failed for user [{}]", userId);
+        if (!configuration.isPAMEnabled()) {
+            // PAM might still be enabled in the main wiki: verify the password there
+            return CompletableFuture.supplyAsync(() -> {
+                Principal principal = pamAuthenticate(userId, password, false, true, context);
+
+                return completeAuthentication(userId, password, principal,
+                    context.remove(PAM_UNVERIFIED_PROP) == null, tracker, address, context);
+            }, contextExecutor);
+        }
+
+        // Concurrent identical authentications share the outcome of the first one
+        XWikiPAMLoginCoalescer<Principal> coalescer = getLoginCoalescer(configuration);
+
+        if (coalescer != null) {
+            return coalescer.authenticate(context.getWikiId(), userId, password,
+                configuration.getLoginCoalescingTimeout(), contextExecutor, () -> pamAuthenticateAsync(userId,
+                    password, configuration, tracker, address, context, contextExecutor));
+        }
+
+        return pamAuthenticateAsync(userId, password, configuration, tracker, address, context, contextExecutor);
+    }
+
+    private CompletableFuture<Principal> pamAuthenticateAsync(final String userId, final String password,
+        XWikiPAMConfig configuration, final XWikiPAMFailureTracker tracker, final String address,
+        final XWikiContext context, Executor contextExecutor)
+    {
+        // Verify the password once for the local and the main wiki
+        CompletableFuture<Map<String, String>> attributes;
+
+        try {
+            attributes = createPAMUtils(configuration).getUserAttributesAsync(userId.trim(), password);
+        } catch (XWikiPAMException e) {
+            attributes = failedFuture(e);
+        }
+
+        return attributes.handleAsync((userAttributes, error) -> {
+            Principal principal = null;
+
+            if (error != null) {
+                logVerificationError(userId, error);
+            } else if (userAttributes != null) {
+                principal = pamAuthenticate(userId, userAttributes, true, context);
             }
+
+            return completeAuthentication(userId, password, principal, error == null || !isUnverified(error),
+                tracker, address, context);
+        }, contextExecutor);
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable error)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private static Throwable getCause(Throwable error)
+    {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * @return true if the password was never checked because the verification timed out or was rejected
+     */
+    private static boolean isUnverified(Throwable error)
+    {
+        Throwable cause = getCause(error);
+
+        return cause instanceof XWikiPAMUnverifiedException || cause instanceof TimeoutException
+            || cause instanceof RejectedExecutionException;
+    }
+
+    private static void markUnverified(Exception error, XWikiContext context)
+    {
+        if (isUnverified(error)) {
+            context.put(PAM_UNVERIFIED_PROP, Boolean.TRUE);
         }
+    }
+
+    private void logVerificationError(String userId, Throwable error)
+    {
+        Throwable cause = getCause(error);
+
+        if (cause instanceof TimeoutException) {
+            LOGGER.warn("PAM authentication of user [{}] timed out: {}", userId, cause.getMessage());
+        } else if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("PAM authentication of user [{}] failed.", userId, cause);
+        }
+    }
+
+    /**
+     * Fall back to the XWiki DB if PAM failed and record the result, except failures of unchecked passwords.
+     */
+    private Principal completeAuthentication(String userId, String password, Principal pamPrincipal,
+        boolean verified, XWikiPAMFailureTracker tracker, String address, XWikiContext context)
+    {
+        Principal principal = pamPrincipal;
+
+        try {
+            if (principal == null) {
+                // Fallback to local DB only if trylocal is true
+                principal = xwikiAuthenticate(userId, password, context);
+            }
+
+            if (tracker != null) {
+                if (principal == null) {
+                    if (verified) {
+                        tracker.recordFailure(userId, address);
+                    }
+                } else {
+                    tracker.recordSuccess(userId);
+                }
+            }
 
-        removeConfiguration();
+            if (LOGGER.isDebugEnabled()) {
+                if (principal != null) {
+                    LOGGER.debug("PAM authentication succeed with principal [{}]", principal.getName());
+                } else {
+                    LOGGER.debug("PAM authentication failed for user [{}]", userId);
+                }
+            }
+        } catch (XWikiException e) {
+            throw new CompletionException(e);
+        }
 
         return principal;
     }
@@ -373,7 +1035,7 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
                 LOGGER.debug("PAM authentication failed: PAM not active");
             }
         } else {
-            XWikiPAMUtils pamUtils = new XWikiPAMUtils(configuration);
+            XWikiPAMUtils pamUtils = createPAMUtils(configuration);
             XWikiDocument userProfile = pamUtils.getUserProfileByUserName(validXWikiUserName, userName, context);
 
             if (LOGGER.isDebugEnabled()) {
@@ -402,4 +1064,50 @@ public class XWikiPAMAuthServiceImpl extends XWikiAuthServiceImpl
 
         return principal;
     }
+
+    /**
+     * Try PAM login for given context with the attributes of an already verified user and return {@link Principal}.
+     *
+     * @param userNameRaw the user name (not uid) of the UNIX user
+     * @param validXWikiUserName the name of the XWiki user to log in.
+     * @param attributes the attributes of the verified PAM user
+     * @param context the XWiki context.
+     * @param local indicate if it's a local authentication. Supposed to return a local user {@link Principal} (without
+     *            the wiki name).
+     * @return the {@link Principal} or null if PAM is not enabled in the context
+     * @throws XWikiException for failed logins
+     * @since 1.1
+     */
+    protected Principal pamAuthenticateInContext(String userNameRaw, String validXWikiUserName,
+                                                 Map<String, String> attributes, XWikiContext context, boolean local)
+        throws XWikiException
+    {
+        Principal principal = null;
+        String userName = userNameRaw.trim();
+        XWikiPAMConfig configuration = initConfiguration(userName);
+
+        if (!configuration.isPAMEnabled()) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("PAM authentication failed: PAM not active");
+            }
+        } else {
+            XWikiPAMUtils pamUtils = createPAMUtils(configuration);
+            XWikiDocument userProfile = pamUtils.getUserProfileByUserName(validXWikiUserName, userName, context);
+
+            userProfile = pamUtils.syncUser(userProfile, userName, attributes, context);
+
+            if (userProfile == null) {
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                                         "PAM authentication failed: could not create the profile of " + userName);
+            }
+
+            if (local) {
+                principal = new SimplePrincipal(userProfile.getFullName());
+            } else {
+                principal = new SimplePrincipal(userProfile.getPrefixedFullName());
+            }
+        }
+
+        return principal;
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * An executor whose tasks are run by the thread waiting in {@link #await(CompletableFuture)}.  The synchronous
+ * authentication methods use it so the XWiki part of an asynchronous authentication (document loads and saves) still
+ * runs on the request thread, which owns the XWiki execution context.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class XWikiPAMCallerExecutor implements Executor
+{
+    private static final Runnable WAKE_UP = () -> { };
+
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+    @Override
+    public void execute(Runnable task)
+    {
+        this.tasks.add(task);
+    }
+
+    /**
+     * Run the submitted tasks on the current thread until the passed future completes.
+     *
+     * @param future the future to wait for
+     * @param <T> the type of the result
+     * @return the result of the future
+     * @throws XWikiException the exception the future failed with, or if the thread is interrupted, in which case the
+     *             future is cancelled so that nobody waits for the tasks this thread won't run
+     */
+    <T> T await(CompletableFuture<T> future) throws XWikiException
+    {
+        future.whenComplete((value, error) -> this.tasks.add(WAKE_UP));
+
+        try {
+            while (!future.isDone()) {
+                this.tasks.take().run();
+            }
+
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new XWikiPAMException("Interrupted while waiting for PAM authentication", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * @param error the exception a future failed with
+     * @return the XWiki exception to throw
+     */
+    static XWikiException unwrap(Throwable error)
+    {
+        Throwable cause = error;
+
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+            && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof XWikiException) {
+            return (XWikiException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof TimeoutException || cause instanceof RejectedExecutionException) {
+            return new XWikiPAMUnverifiedException("PAM authentication failed: " + cause.getMessage(),
+                (Exception) cause);
+        }
+
+        return new XWikiPAMException("PAM authentication failed: " + cause.getMessage(), (Exception) cause);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent password verifications with a limit that adapts to the measured latency (additive
+ * increase, multiplicative decrease).
+ * <p>
+ * The fastest recent verification is the baseline latency of the PAM stack.  While verifications complete within
+ * {@link #TOLERANCE} times the baseline and the limit is actually used, the limit grows by one; when a verification
+ * is slower or fails, the limit shrinks by {@link #BACKOFF}.  Only successful verifications are sampled: a wrong
+ * password is usually answered after a deliberate delay (about 2 seconds with pam_unix) that says nothing about
+ * the load.  So when the host (often PAM backed by LDAP) slows down
+ * under load, fewer verifications run at once instead of all of them getting slower.  Verifications over the limit
+ * wait briefly for a slot, then are rejected.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMConcurrencyLimiter
+{
+    /** Latency, relative to the baseline, above which the PAM stack is considered overloaded. */
+    static final double TOLERANCE = 2.0;
+
+    /** Factor applied to the limit when the PAM stack is overloaded. */
+    static final double BACKOFF = 0.9;
+
+    /** The baseline drifts towards slower samples by 1/2^n of the difference so it recovers from a lucky sample. */
+    private static final int BASELINE_DRIFT_SHIFT = 6;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long queueTimeout;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = this.lock.newCondition();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private volatile int limit;
+
+    private volatile int inFlight;
+
+    private volatile long baselineNanos;
+
+    /**
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     * @param queueTimeout the number of milliseconds to wait for a slot before rejecting a verification
+     */
+    public XWikiPAMConcurrencyLimiter(int minLimit, int maxLimit, long queueTimeout)
+    {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.queueTimeout = queueTimeout;
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this limiter was created with the settings of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        int min = Math.max(1, configuration.getLimitMin());
+
+        return this.minLimit == min && this.maxLimit == Math.max(min, configuration.getLimitMax())
+            && this.queueTimeout == configuration.getLimitQueueTimeout();
+    }
+
+    /**
+     * Take a slot, waiting at most the queue timeout.  A successful call must be followed by
+     * {@link #release(long, boolean)}.
+     *
+     * @return true if a slot was taken, false if the verification is rejected
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean acquire() throws InterruptedException
+    {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(this.queueTimeout);
+
+        this.lock.lockInterruptibly();
+        try {
+            while (this.inFlight >= this.limit) {
+                if (remaining <= 0) {
+                    this.rejections.incrementAndGet();
+                    return false;
+                }
+                remaining = this.available.awaitNanos(remaining);
+            }
+            this.inFlight++;
+
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Give back a slot and adapt the limit to the latency of the verification.
+     *
+     * @param latencyNanos the duration of the verification
+     * @param failed true if the verification failed with an error or was cancelled (a wrong password is neither an
+     *            error nor a sample, see {@link #release()})
+     */
+    public void release(long latencyNanos, boolean failed)
+    {
+        this.lock.lock();
+        try {
+            boolean saturated = this.inFlight * 2 >= this.limit;
+            long baseline = this.baselineNanos;
+
+            this.inFlight--;
+
+            if (!failed) {
+                if (baseline == 0 || latencyNanos < baseline) {
+                    baseline = latencyNanos;
+                } else {
+                    baseline += (latencyNanos - baseline) >> BASELINE_DRIFT_SHIFT;
+                }
+                this.baselineNanos = baseline;
+            }
+
+            if (failed || latencyNanos > baseline * TOLERANCE) {
+                this.limit = Math.max(this.minLimit, (int) (this.limit * BACKOFF));
+            } else if (saturated) {
+                this.limit = Math.min(this.maxLimit, this.limit + 1);
+            }
+
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Give back a slot without sampling the latency, for verifications that rejected the password.
+     */
+    public void release()
+    {
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current number of verifications allowed to run at once
+     */
+    public int getLimit()
+    {
+        return this.limit;
+    }
+
+    /**
+     * @return the number of verifications running
+     */
+    public int getInFlightCount()
+    {
+        return this.inFlight;
+    }
+
+    /**
+     * @return the number of verifications rejected because the limit was reached for longer than the queue timeout
+     */
+    public long getRejectionCount()
+    {
+        return this.rejections.get();
+    }
+
+    /**
+     * @return the baseline (fastest recent) verification latency in milliseconds
+     */
+    public double getBaselineLatency()
+    {
+        return this.baselineNanos / 1e6;
+    }
+}
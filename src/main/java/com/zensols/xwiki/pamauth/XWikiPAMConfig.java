@@ -25,7 +25,11 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -36,6 +40,10 @@ import com.xpn.xwiki.web.Utils;
 
 /**
  * Configuration helper utility class.
+ * <p>
+ * An instance either reads the parameters from the configuration sources on each call, or is an immutable
+ * {@link #snapshot() snapshot} of all the PAM parameters of a wiki that also keeps the parsed value of each
+ * parameter.
  *
  * @version $Id$
  */
@@ -66,10 +74,43 @@ public class XWikiPAMConfig
      */
     public static final String USERMAPPING_XWIKI_PAM_LINK = "=";
 
+    /**
+     * The backend launching pwauth for each operation.
+     */
+    public static final String BACKEND_PWAUTH = "pwauth";
+
+    /**
+     * The backend calling libpam in process.
+     */
+    public static final String BACKEND_LIBPAM = "libpam";
+
+    /**
+     * The backend using a pool of long lived helper processes.
+     */
+    public static final String BACKEND_POOL = "pool";
+
+    /**
+     * The in memory backend with generated users.
+     */
+    public static final String BACKEND_MEMORY = "memory";
+
+    /**
+     * The provisioning claim stored in the wiki database.
+     */
+    public static final String PROVISIONING_CLAIM_DATABASE = "database";
+
+    /**
+     * The provisioning claim for a single node.
+     */
+    public static final String PROVISIONING_CLAIM_LOCAL = "local";
+
     private static final String PAM_REMOTE_USER_MAPPING_PROP = "pam_remoteUserMapping.";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMConfig.class);
 
+    /** Marks parameters that are not set in the parsed values of a snapshot. */
+    private static final Object UNSET = new Object();
+
     /**
      * Unique instance of {@link XWikiPAMConfig}.
      */
@@ -81,6 +122,14 @@ public class XWikiPAMConfig
 
     private ConfigurationSource cfgConfigurationSource;
 
+    /** The XWikiPreferences parameters of a snapshot, null when reading the configuration sources. */
+    private final Map<String, String> preferences;
+
+    /** The xwiki.cfg parameters of a snapshot, null when reading the configuration sources. */
+    private final Map<String, String> cfg;
+
+    /** The parsed parameters of a snapshot by type and name. */
+    private final ConcurrentMap<String, Object> parsed;
 
     /**
      * @param userId the complete user id given
@@ -98,23 +147,110 @@ public class XWikiPAMConfig
      * @since 9.1.1
      */
     public XWikiPAMConfig(String userId, ConfigurationSource configurationSource)
+    {
+        this(configurationSource, Utils.<ConfigurationSource>getComponent(ConfigurationSource.class, "xwikicfg"));
+    }
+
+    /**
+     * @param configurationSource the Configuration source to use to find PAM parameters first
+     * @param cfgConfigurationSource the xwiki.cfg configuration source
+     * @since 1.1
+     */
+    public XWikiPAMConfig(ConfigurationSource configurationSource, ConfigurationSource cfgConfigurationSource)
     {
         this.memoryConfiguration = new HashMap<>();
 
         // Look for PAM parameters first in the XWikiPreferences document from the current wiki
         this.configurationSource = configurationSource;
 
-        this.cfgConfigurationSource = Utils.getComponent(ConfigurationSource.class, "xwikicfg");
+        this.cfgConfigurationSource = cfgConfigurationSource;
+
+        this.preferences = null;
+        this.cfg = null;
+        this.parsed = null;
     }
 
+    private XWikiPAMConfig(Map<String, String> preferences, Map<String, String> cfg)
+    {
+        this.memoryConfiguration = Collections.emptyMap();
+        this.preferences = preferences;
+        this.cfg = cfg;
+        this.parsed = new ConcurrentHashMap<>();
+    }
 
-    private String convertRemoteUserMapping(String propertyName, String propertyValue)
+    /**
+     * Read all the PAM parameters of the current wiki at once.  The snapshot doesn't depend on the XWiki context and
+     * can be shared by threads; it doesn't see later configuration changes.
+     *
+     * @return an immutable copy of the PAM parameters
+     * @since 1.1
+     */
+    public XWikiPAMConfig snapshot()
     {
-        Map<String, String> hostConvertor = getRemoteUserMapping(propertyName, true);
-        LOGGER.debug("hostConvertor: {}", hostConvertor);
-        String converted = hostConvertor.get(propertyValue.toLowerCase());
+        if (isSnapshot()) {
+            return this;
+        }
+
+        Map<String, String> snapshotPreferences = new HashMap<>();
+        Map<String, String> snapshotCfg = new HashMap<>();
+
+        for (String key : this.configurationSource.getKeys()) {
+            if (key.startsWith("pam")) {
+                String value = this.configurationSource.getProperty(key, String.class);
+                if (value != null) {
+                    snapshotPreferences.put(key, value);
+                }
+            }
+        }
+        for (String key : this.cfgConfigurationSource.getKeys()) {
+            if (key.startsWith("xwiki.authentication.pam")) {
+                String value = this.cfgConfigurationSource.getProperty(key, String.class);
+                if (value != null) {
+                    snapshotCfg.put(key, value);
+                }
+            }
+        }
+
+        XWikiPAMConfig snapshot = new XWikiPAMConfig(snapshotPreferences, snapshotCfg);
 
-        return converted != null ? converted : propertyValue;
+        // Parse the parameters read on each authentication up front
+        snapshot.isPAMEnabled();
+        snapshot.getPAMTimeout();
+        snapshot.getBackend();
+        snapshot.getRemoteUserParser();
+
+        return snapshot;
+    }
+
+    /**
+     * @return true if this is an immutable copy of the parameters
+     * @since 1.1
+     */
+    public boolean isSnapshot()
+    {
+        return this.preferences != null;
+    }
+
+    /**
+     * @return the parsed value of a parameter, computed once for a snapshot
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T getParsed(String key, Function<String, Object> parser, T def)
+    {
+        Object value = this.parsed != null ? this.parsed.get(key) : null;
+
+        if (value == null) {
+            // Not computeIfAbsent: parsers read other parsed parameters
+            value = parser.apply(key);
+            if (this.parsed != null) {
+                Object previous = this.parsed.putIfAbsent(key, value);
+                if (previous != null) {
+                    value = previous;
+                }
+            }
+        }
+
+        return value == UNSET ? def : (T) value;
     }
 
     /**
@@ -140,11 +276,12 @@ public class XWikiPAMConfig
 
         // First look for the parameter in the defined configuration source (by default in XWikiPreferences document
         // from the current wiki).
-        String param = this.configurationSource.getProperty(name, String.class);
+        String param = this.preferences != null
+            ? this.preferences.get(name) : this.configurationSource.getProperty(name, String.class);
 
         // If not found, check in xwiki.cfg
         if (param == null || "".equals(param)) {
-            param = this.cfgConfigurationSource.getProperty(cfgName);
+            param = this.cfg != null ? this.cfg.get(cfgName) : this.cfgConfigurationSource.<String>getProperty(cfgName);
         }
 
         if (param == null) {
@@ -180,17 +317,15 @@ public class XWikiPAMConfig
      */
     public long getPAMParamAsLong(String name, String cfgName, long def)
     {
-        String paramStr = getPAMParam(name, name.replace(PREF_PAM_SUFFIX, CFG_PAM_SUFFIX), String.valueOf(def));
-
-        long value;
-
-        try {
-            value = Long.valueOf(paramStr);
-        } catch (Exception e) {
-            value = def;
-        }
+        return getParsed("long:" + name, key -> {
+            String paramStr = getPAMParam(name, name.replace(PREF_PAM_SUFFIX, CFG_PAM_SUFFIX), null);
 
-        return value;
+            try {
+                return Long.valueOf(paramStr);
+            } catch (Exception e) {
+                return UNSET;
+            }
+        }, def);
     }
 
     /**
@@ -207,6 +342,40 @@ public class XWikiPAMConfig
         return getPAMParamAsLong(name, name.replace(PREF_PAM_SUFFIX, CFG_PAM_SUFFIX), def);
     }
 
+    /**
+     * Read a parameter of an object shared by all the wikis of the node (a cache, the PAM threads...) only from
+     * xwiki.cfg (pam_*name* becoming xwiki.authentication.pam.*name*), so that the wikis can't configure it
+     * differently.
+     *
+     * @param name the name of the property in XWikiPreferences
+     * @param def default value
+     * @return the value of the property
+     */
+    private String getNodeParam(String name, String def)
+    {
+        String cfgName = name.replaceFirst(PREF_PAM_SUFFIX, CFG_PAM_SUFFIX);
+        String param =
+            this.cfg != null ? this.cfg.get(cfgName) : this.cfgConfigurationSource.<String>getProperty(cfgName);
+
+        return StringUtils.isEmpty(param) ? def : param;
+    }
+
+    /**
+     * @param name the name of the property in XWikiPreferences
+     * @param def default value
+     * @return the value of the node wide property (see {@link #getNodeParam(String, String)})
+     */
+    private long getNodeParamAsLong(String name, long def)
+    {
+        return getParsed("node:" + name, key -> {
+            try {
+                return Long.valueOf(getNodeParam(name, null));
+            } catch (Exception e) {
+                return UNSET;
+            }
+        }, def);
+    }
+
     /**
      * @return true if PAM is enabled.
      * @since 9.1.1
@@ -220,7 +389,7 @@ public class XWikiPAMConfig
 
     /**
      * @return the maximum number of milliseconds the client waits for any operation under these constraints to
-     *         complete.
+     *         complete (pam_timeout), after which account lookups and password verifications are cancelled.
      * @since 9.1.1
      */
     public int getPAMTimeout()
@@ -228,6 +397,555 @@ public class XWikiPAMConfig
         return (int) getPAMParamAsLong("pam_timeout", 1000);
     }
 
+    /**
+     * @return true if successful password verifications are cached (pam_cache, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isCacheEnabled()
+    {
+        return "1".equals(getNodeParam("pam_cache", "0"));
+    }
+
+    /**
+     * @return the maximum number of cached password verifications (pam_cache_size, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getCacheSize()
+    {
+        return (int) getNodeParamAsLong("pam_cache_size", 1000);
+    }
+
+    /**
+     * @return the number of milliseconds a cached password verification stays valid (pam_cache_ttl, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public long getCacheTTL()
+    {
+        return getNodeParamAsLong("pam_cache_ttl", 300000);
+    }
+
+    /**
+     * @return the policy used to drop cached password verifications when the cache is full (pam_cache_eviction,
+     *         either <code>lru</code> or <code>fifo</code>, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public XWikiPAMVerdictCache.Eviction getCacheEviction()
+    {
+        return XWikiPAMVerdictCache.Eviction.parse(getNodeParam("pam_cache_eviction", null),
+                                                   XWikiPAMVerdictCache.Eviction.LRU);
+    }
+
+    /**
+     * @return true if the attributes of the UNIX accounts are cached (pam_account_cache, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isAccountCacheEnabled()
+    {
+        return "1".equals(getNodeParam("pam_account_cache", "0"));
+    }
+
+    /**
+     * @return the maximum number of accounts kept in the account cache (pam_account_cache_size, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getAccountCacheSize()
+    {
+        return (int) getNodeParamAsLong("pam_account_cache_size", 10000);
+    }
+
+    /**
+     * @return the number of milliseconds the cached attributes of an account stay valid (pam_account_cache_ttl, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public long getAccountCacheTTL()
+    {
+        return getNodeParamAsLong("pam_account_cache_ttl", 600000);
+    }
+
+    /**
+     * @return the number of milliseconds before the expiration of a cached account during which a login refreshes it
+     *         in the background (pam_account_cache_refresh_ahead, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getAccountCacheRefreshAhead()
+    {
+        return getNodeParamAsLong("pam_account_cache_refresh_ahead", 120000);
+    }
+
+    /**
+     * @return true if the accounts are looked up in an index of the passwd file before the backend (pam_passwd_index,
+     *         only in xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isPasswdIndexEnabled()
+    {
+        return "1".equals(getNodeParam("pam_passwd_index", "0"));
+    }
+
+    /**
+     * @return the path of the file in the passwd format indexed for the account lookups (pam_passwd_file, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public String getPasswdFile()
+    {
+        return getNodeParam("pam_passwd_file", "/etc/passwd");
+    }
+
+    /**
+     * @return the minimum number of milliseconds between two checks of the passwd file for changes
+     *         (pam_passwd_check_interval, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getPasswdCheckInterval()
+    {
+        return getNodeParamAsLong("pam_passwd_check_interval", 1000);
+    }
+
+    /**
+     * @return the XWiki group (value) of which the users of each UNIX group (key) are made members at login, the
+     *         membership of the users in the other UNIX groups being removed (pam_group_mapping, e.g.
+     *         <code>wheel=XWiki.XWikiAdminGroup|dev=XWiki.DevelopersGroup</code>).
+     * @since 1.1
+     */
+    public Map<String, String> getGroupMappings()
+    {
+        return getPAMMapParam("pam_group_mapping", '|', Collections.<String, String>emptyMap(), false);
+    }
+
+    /**
+     * @return the UNIX groups whose members, listed or by primary group, are allowed to log in, or an empty list to
+     *         allow every user (pam_allowed_groups).
+     * @since 1.1
+     */
+    public List<String> getAllowedGroups()
+    {
+        return getPAMListParam("pam_allowed_groups", Collections.<String>emptyList());
+    }
+
+    /**
+     * @return the path of the file in the group format giving the UNIX groups of the users, the primary groups coming
+     *         from pam_passwd_file, or an empty string to enumerate the groups and the accounts with
+     *         <code>getent group</code> and <code>getent passwd</code> (pam_group_file, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public String getGroupFile()
+    {
+        return getNodeParam("pam_group_file", "");
+    }
+
+    /**
+     * @return the minimum number of milliseconds between two loads of the UNIX groups (pam_group_refresh, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public long getGroupRefreshInterval()
+    {
+        return getNodeParamAsLong("pam_group_refresh", 60000);
+    }
+
+    /**
+     * @return true if failed logins are tracked and repeated failures rejected before verification (pam_failure, only
+     *         in xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isFailureTrackingEnabled()
+    {
+        return "1".equals(getNodeParam("pam_failure", "0"));
+    }
+
+    /**
+     * @return the number of milliseconds during which failed logins are counted (pam_failure_window, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public long getFailureWindow()
+    {
+        return getNodeParamAsLong("pam_failure_window", 300000);
+    }
+
+    /**
+     * @return the number of failed logins of a user name in the window before further attempts are rejected
+     *         (pam_failure_max_user, 0 to not track user names, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getFailureMaxUser()
+    {
+        return (int) getNodeParamAsLong("pam_failure_max_user", 5);
+    }
+
+    /**
+     * @return the number of failed logins from a source address in the window before further attempts are rejected
+     *         (pam_failure_max_address, 0 to not track addresses, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getFailureMaxAddress()
+    {
+        return (int) getNodeParamAsLong("pam_failure_max_address", 20);
+    }
+
+    /**
+     * @return the number of milliseconds attempts are rejected once a limit is reached, doubled for each further
+     *         failure (pam_failure_backoff, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getFailureBackoff()
+    {
+        return getNodeParamAsLong("pam_failure_backoff", 1000);
+    }
+
+    /**
+     * @return the maximum number of milliseconds attempts are rejected (pam_failure_backoff_max, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getFailureMaxBackoff()
+    {
+        return getNodeParamAsLong("pam_failure_backoff_max", 300000);
+    }
+
+    /**
+     * @return the maximum number of user names and addresses tracked for failures (pam_failure_size, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public int getFailureTrackerSize()
+    {
+        return (int) getNodeParamAsLong("pam_failure_size", 10000);
+    }
+
+    /**
+     * @return true if accounts are looked up and passwords verified by a pool of long lived helper processes
+     *         (pam_pool, only in xwiki.cfg) instead of a new process for each operation, unless pam_backend is set.
+     * @since 1.1
+     */
+    public boolean isPoolEnabled()
+    {
+        return "1".equals(getNodeParam("pam_pool", "0"));
+    }
+
+    /**
+     * @return the maximum number of helper processes (pam_pool_size, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getPoolSize()
+    {
+        return (int) getNodeParamAsLong("pam_pool_size", 4);
+    }
+
+    /**
+     * @return the helper command line (pam_pool_command, only in xwiki.cfg so that wiki administrators can't run
+     *         commands on the server) or null to use the bundled <code>pamauth-helper.py</code>, which needs python3
+     *         and verifies the passwords with the PAM service (pam_service).
+     * @since 1.1
+     */
+    public String getPoolCommand()
+    {
+        return getNodeParam("pam_pool_command", null);
+    }
+
+    /**
+     * @return the number of milliseconds a helper process can stay idle before being checked on reuse
+     *         (pam_pool_check_interval, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getPoolCheckInterval()
+    {
+        return getNodeParamAsLong("pam_pool_check_interval", 30000);
+    }
+
+    /**
+     * @return the hint of the {@link PAMUserBackend} used to look up accounts and verify passwords (pam_backend, only
+     *         in xwiki.cfg): <code>pwauth</code> (the default), <code>pool</code> (the default when pam_pool is set),
+     *         <code>libpam</code> or <code>memory</code> (only registered by the benchmarks).
+     * @since 1.1
+     */
+    public String getBackend()
+    {
+        return getNodeParam("pam_backend", isPoolEnabled() ? BACKEND_POOL : BACKEND_PWAUTH);
+    }
+
+    /**
+     * @return the number of users of the <code>memory</code> backend (pam_memory_users, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getMemoryUserCount()
+    {
+        return (int) getNodeParamAsLong("pam_memory_users", 10000);
+    }
+
+    /**
+     * @return the user name prefix of the users of the <code>memory</code> backend (pam_memory_prefix, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public String getMemoryUserPrefix()
+    {
+        return getNodeParam("pam_memory_prefix", "user");
+    }
+
+    /**
+     * @return the password of all users of the <code>memory</code> backend (pam_memory_password, only in
+     *         xwiki.cfg), null if not set, in which case the backend refuses to work.
+     * @since 1.1
+     */
+    public String getMemoryPassword()
+    {
+        return getNodeParam("pam_memory_password", null);
+    }
+
+    /**
+     * @return the uid of the first user of the <code>memory</code> backend (pam_memory_uid, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getMemoryFirstUid()
+    {
+        return getNodeParamAsLong("pam_memory_uid", 10000);
+    }
+
+    /**
+     * @return the number of milliseconds each operation of the <code>memory</code> backend takes
+     *         (pam_memory_latency, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getMemoryLatency()
+    {
+        return getNodeParamAsLong("pam_memory_latency", 0);
+    }
+
+    /**
+     * @return the maximum random number of milliseconds added to the latency of the <code>memory</code> backend
+     *         (pam_memory_latency_jitter, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getMemoryLatencyJitter()
+    {
+        return getNodeParamAsLong("pam_memory_latency_jitter", 0);
+    }
+
+    /**
+     * @return the PAM service name used by the <code>libpam</code> and <code>pool</code> backends (pam_service, only
+     *         in xwiki.cfg so that wiki administrators can't switch to a permissive PAM stack), <code>pwauth</code> by
+     *         default to share the service configured for pwauth.
+     * @since 1.1
+     */
+    public String getPAMService()
+    {
+        return getNodeParam("pam_service", "pwauth");
+    }
+
+    /**
+     * @return the directory containing the PAM service files used by the <code>libpam</code> backend
+     *         (pam_service_dir, only in xwiki.cfg), or null for the system default.
+     * @since 1.1
+     */
+    public String getPAMServiceDirectory()
+    {
+        return getNodeParam("pam_service_dir", null);
+    }
+
+    /**
+     * @return true if concurrent password authentications of a user with the same password share a single
+     *         verification and profile synchronization (pam_login_coalescing, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isLoginCoalescingEnabled()
+    {
+        return "1".equals(getNodeParam("pam_login_coalescing", "0"));
+    }
+
+    /**
+     * @return the number of milliseconds a password authentication waits for an identical one in flight before
+     *         verifying the password itself (pam_login_coalescing_timeout, only in xwiki.cfg), 5 seconds by default,
+     *         which should exceed pam_timeout plus the time of a profile synchronization.
+     * @since 1.1
+     */
+    public long getLoginCoalescingTimeout()
+    {
+        return getNodeParamAsLong("pam_login_coalescing_timeout", 5000);
+    }
+
+    /**
+     * @return the number of locks serializing the authentication of the same remote user (pam_lock_stripes, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public int getLockStripes()
+    {
+        return (int) getNodeParamAsLong("pam_lock_stripes", 64);
+    }
+
+    /**
+     * @return the number of milliseconds to wait for the authentication of the same remote user by another thread
+     *         before giving up (pam_lock_timeout, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getLockTimeout()
+    {
+        return getNodeParamAsLong("pam_lock_timeout", 10000);
+    }
+
+    /**
+     * @return the maximum number of threads running account lookups and password verifications
+     *         (pam_executor_threads, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getExecutorThreads()
+    {
+        return (int) getNodeParamAsLong("pam_executor_threads", 16);
+    }
+
+    /**
+     * @return the maximum number of account lookups and password verifications waiting for a thread
+     *         (pam_executor_queue, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getExecutorQueueSize()
+    {
+        return (int) getNodeParamAsLong("pam_executor_queue", 256);
+    }
+
+    /**
+     * @return true if concurrent password verifications are limited by an adaptive limit (pam_limit, only in
+     *         xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isLimitEnabled()
+    {
+        return "1".equals(getNodeParam("pam_limit", "0"));
+    }
+
+    /**
+     * @return the lowest number of concurrent password verifications the adaptive limit can shrink to
+     *         (pam_limit_min, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getLimitMin()
+    {
+        return (int) getNodeParamAsLong("pam_limit_min", 2);
+    }
+
+    /**
+     * @return the highest number of concurrent password verifications the adaptive limit can grow to
+     *         (pam_limit_max, only in xwiki.cfg), at most and by default the number of executor threads, above which
+     *         the limit would never bind.
+     * @since 1.1
+     */
+    public int getLimitMax()
+    {
+        return (int) Math.min(getNodeParamAsLong("pam_limit_max", getExecutorThreads()), getExecutorThreads());
+    }
+
+    /**
+     * @return the number of milliseconds a password verification waits when the limit is reached before being
+     *         rejected (pam_limit_queue_timeout, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getLimitQueueTimeout()
+    {
+        return getNodeParamAsLong("pam_limit_queue_timeout", 100);
+    }
+
+    /**
+     * @return true if updates of existing user profiles are saved in the background instead of during the login
+     *         (pam_write_behind, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public boolean isWriteBehindEnabled()
+    {
+        return "1".equals(getNodeParam("pam_write_behind", "0"));
+    }
+
+    /**
+     * @return the maximum number of users with a profile update waiting to be saved in the background, updates are
+     *         saved during the login when it is reached (pam_write_behind_queue, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public int getWriteBehindQueueSize()
+    {
+        return (int) getNodeParamAsLong("pam_write_behind_queue", 1000);
+    }
+
+    /**
+     * @return the number of milliseconds after a synchronization of a user profile during which it isn't synchronized
+     *         again while the PAM attributes are unchanged, or 0 to always synchronize (pam_sync_interval).
+     * @since 1.1
+     */
+    public long getSyncInterval()
+    {
+        return getPAMParamAsLong("pam_sync_interval", 0);
+    }
+
+    /**
+     * @return the number of milliseconds between two resynchronizations of all the PAM user profiles of the main
+     *         wiki, or 0 to never resynchronize them (pam_resync_interval).
+     * @since 1.1
+     */
+    public long getResyncInterval()
+    {
+        return getPAMParamAsLong("pam_resync_interval", 0);
+    }
+
+    /**
+     * @return the maximum number of user profiles saved per second by a resynchronization (pam_resync_rate).
+     * @since 1.1
+     */
+    public int getResyncRate()
+    {
+        return (int) getPAMParamAsLong("pam_resync_rate", 10);
+    }
+
+    /**
+     * @return the number of modified user profiles a resynchronization saves at a time (pam_resync_batch).
+     * @since 1.1
+     */
+    public int getResyncBatchSize()
+    {
+        return (int) getPAMParamAsLong("pam_resync_batch", 50);
+    }
+
+    /**
+     * @return the highest percentage of the checked accounts a resynchronization may find missing; above it the
+     *         lookups are assumed to be failing (e.g. NSS or LDAP unreachable) and no profile is deactivated
+     *         (pam_resync_max_missing).
+     * @since 1.1
+     */
+    public int getResyncMaxMissing()
+    {
+        return (int) getPAMParamAsLong("pam_resync_max_missing", 10);
+    }
+
+    /**
+     * @return the hint of the {@link PAMProvisioningClaim} making the creation of user profiles single-flight across
+     *         nodes (pam_provisioning_claim).
+     * @since 1.1
+     */
+    public String getProvisioningClaim()
+    {
+        return getPAMParam("pam_provisioning_claim", PROVISIONING_CLAIM_DATABASE);
+    }
+
+    /**
+     * @return the number of milliseconds a login waits for the profile of its user being created by another thread
+     *         or node (pam_provisioning_wait).
+     * @since 1.1
+     */
+    public long getProvisioningWait()
+    {
+        return getPAMParamAsLong("pam_provisioning_wait", 10000);
+    }
+
+    /**
+     * @return the number of milliseconds after which the provisioning claim of a node which never released it can be
+     *         taken over (pam_provisioning_claim_ttl).
+     * @since 1.1
+     */
+    public long getProvisioningClaimTTL()
+    {
+        return getPAMParamAsLong("pam_provisioning_claim_ttl", 60000);
+    }
+
     /**
      * @param name the name of the property in XWikiPreferences.
      * @param def the default value
@@ -248,19 +966,21 @@ public class XWikiPAMConfig
      */
     public List<String> getPAMListParam(String name, char separator, List<String> def)
     {
-        List<String> list = def;
+        return getParsed("list" + separator + name, key -> {
+            Object list = UNSET;
 
-        String str = getPAMParam(name, null);
+            String str = getPAMParam(name, null);
 
-        if (str != null) {
-            if (!StringUtils.isEmpty(str)) {
-                list = splitParam(str, separator);
-            } else {
-                list = Collections.emptyList();
+            if (str != null) {
+                if (!StringUtils.isEmpty(str)) {
+                    list = Collections.unmodifiableList(splitParam(str, separator));
+                } else {
+                    list = Collections.emptyList();
+                }
             }
-        }
 
-        return list;
+            return list;
+        }, def);
     }
 
     /**
@@ -286,31 +1006,35 @@ public class XWikiPAMConfig
     public Map<String, String> getPAMMapParam(String name, char separator, Map<String, String> def,
         boolean forceLowerCaseKey)
     {
-        Map<String, String> mappings = def;
+        return getParsed("map" + separator + forceLowerCaseKey + name, parsedKey -> {
+            Object mappings = UNSET;
 
-        List<String> list = getPAMListParam(name, separator, null);
+            List<String> list = getPAMListParam(name, separator, null);
 
-        if (list != null) {
-            if (list.isEmpty()) {
-                mappings = Collections.emptyMap();
-            } else {
-                mappings = new LinkedHashMap<>();
+            if (list != null) {
+                if (list.isEmpty()) {
+                    mappings = Collections.emptyMap();
+                } else {
+                    Map<String, String> map = new LinkedHashMap<>();
 
-                for (String fieldStr : list) {
-                    int index = fieldStr.indexOf('=');
-                    if (index != -1) {
-                        String key = fieldStr.substring(0, index);
-                        String value = index + 1 == fieldStr.length() ? "" : fieldStr.substring(index + 1);
+                    for (String fieldStr : list) {
+                        int index = fieldStr.indexOf('=');
+                        if (index != -1) {
+                            String key = fieldStr.substring(0, index);
+                            String value = index + 1 == fieldStr.length() ? "" : fieldStr.substring(index + 1);
 
-                        mappings.put(forceLowerCaseKey ? key.toLowerCase() : key, value);
-                    } else {
-                        LOGGER.warn("Error parsing PAM [{}] attribute from configuration, got [{}]", name, fieldStr);
+                            map.put(forceLowerCaseKey ? key.toLowerCase() : key, value);
+                        } else {
+                            LOGGER.warn("Error parsing PAM [{}] attribute from configuration, got [{}]", name,
+                                        fieldStr);
+                        }
                     }
+                    mappings = Collections.unmodifiableMap(map);
                 }
             }
-        }
 
-        return mappings;
+            return mappings;
+        }, def);
     }
 
     private List<String> splitParam(String text, char delimiter)
@@ -348,9 +1072,28 @@ public class XWikiPAMConfig
      */
     public Pattern getRemoteUserPattern()
     {
-        String param = getPAMParam("pam_remoteUserParser", null);
+        return getParsed("pattern:pam_remoteUserParser", key -> {
+            String param = getPAMParam("pam_remoteUserParser", null);
 
-        return param != null ? Pattern.compile(param) : null;
+            if (param != null) {
+                try {
+                    return Pattern.compile(param);
+                } catch (PatternSyntaxException e) {
+                    LOGGER.error("Invalid PAM remote user parser [{}]", param, e);
+                }
+            }
+
+            return UNSET;
+        }, null);
+    }
+
+    /**
+     * @return the parser extracting the user name from the remote user, compiled once for a snapshot
+     * @since 1.1
+     */
+    public XWikiPAMRemoteUserParser getRemoteUserParser()
+    {
+        return getParsed("parser:pam_remoteUserParser", key -> new XWikiPAMRemoteUserParser(this), null);
     }
 
     /**
@@ -382,6 +1125,43 @@ public class XWikiPAMConfig
      */
     public String getHttpHeader()
     {
-        return this.cfgConfigurationSource.getProperty("xwiki.authentication.pam.httpHeader");
+        String name = "xwiki.authentication.pam.httpHeader";
+
+        return this.cfg != null ? this.cfg.get(name) : this.cfgConfigurationSource.<String>getProperty(name);
+    }
+
+    /**
+     * @return the secret keys of the SSO authentication cookie, the first one signing new cookies and the others only
+     *         accepted until they are removed, or an empty list to disable the cookie (only in xwiki.cfg, comma
+     *         separated, so that the keys can't be read from wiki pages).
+     * @since 1.1
+     */
+    public List<String> getSSOCookieKeys()
+    {
+        return getParsed("cfg:sso_cookie_keys", key -> {
+            String name = CFG_PAM_SUFFIX + "sso_cookie_keys";
+            String keys = this.cfg != null ? this.cfg.get(name) : this.cfgConfigurationSource.<String>getProperty(name);
+
+            return StringUtils.isEmpty(keys) ? Collections.emptyList()
+                : Collections.unmodifiableList(splitParam(keys, ','));
+        }, Collections.<String>emptyList());
+    }
+
+    /**
+     * @return the name of the SSO authentication cookie (pam_sso_cookie_name, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public String getSSOCookieName()
+    {
+        return getNodeParam("pam_sso_cookie_name", "pamauth_sso");
+    }
+
+    /**
+     * @return the number of milliseconds an SSO authentication cookie is valid (pam_sso_cookie_ttl, only in xwiki.cfg).
+     * @since 1.1
+     */
+    public long getSSOCookieTTL()
+    {
+        return getNodeParamAsLong("pam_sso_cookie_ttl", 300000);
     }
 }
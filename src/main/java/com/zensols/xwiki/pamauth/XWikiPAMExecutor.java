@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the blocking PAM work (account lookups and password verifications) on a bounded pool of daemon threads, with
+ * a hard deadline: when the timeout expires the returned future fails with a {@link TimeoutException} and the worker
+ * thread is interrupted, which stops process based backends.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMExecutor
+{
+    private final int threads;
+
+    private final int queueSize;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService timer;
+
+    /** The results not completed yet, failed by {@link #shutdown()} so that nobody waits for them forever. */
+    private final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param threads the maximum number of threads doing PAM work
+     * @param queueSize the maximum number of tasks waiting for a thread
+     */
+    public XWikiPAMExecutor(int threads, int queueSize)
+    {
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(this.queueSize), createThreadFactory("PAM worker"));
+        this.executor.allowCoreThreadTimeOut(true);
+
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, createThreadFactory("PAM timer"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.timer = scheduler;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name)
+    {
+        final AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + ' ' + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param task the blocking work
+     * @param timeout the number of milliseconds after which the work is cancelled, or 0 for no deadline
+     * @param <T> the type of the result
+     * @return the future result of the task, failing with a {@link TimeoutException} when the deadline expires or a
+     *         {@link RejectedExecutionException} if all threads are busy and the queue is full
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> task, final long timeout)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Future<?> work;
+
+        this.submitted.incrementAndGet();
+        this.pending.add(result);
+        result.whenComplete((value, error) -> this.pending.remove(result));
+        try {
+            work = this.executor.submit(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.rejections.incrementAndGet();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (timeout > 0) {
+            final Future<?> deadline = this.timer.schedule(() -> {
+                if (result.completeExceptionally(new TimeoutException("PAM operation did not complete within "
+                    + timeout + "ms"))) {
+                    this.timeouts.incrementAndGet();
+                    work.cancel(true);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> deadline.cancel(false));
+        }
+
+        return result;
+    }
+
+    /**
+     * Stop accepting work, interrupt the running tasks and fail the results not completed yet, including those of
+     * the tasks still queued, with a {@link RejectedExecutionException}.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+        this.timer.shutdownNow();
+        for (CompletableFuture<?> result : this.pending) {
+            result.completeExceptionally(new RejectedExecutionException("PAM executor shut down"));
+        }
+    }
+
+    /**
+     * @return the number of tasks submitted
+     */
+    public long getSubmittedCount()
+    {
+        return this.submitted.get();
+    }
+
+    /**
+     * @return the number of tasks cancelled because their deadline expired
+     */
+    public long getTimeoutCount()
+    {
+        return this.timeouts.get();
+    }
+
+    /**
+     * @return the number of tasks rejected because all threads were busy and the queue was full
+     */
+    public long getRejectionCount()
+    {
+        return this.rejections.get();
+    }
+
+    /**
+     * @return the number of threads currently doing PAM work
+     */
+    public int getActiveCount()
+    {
+        return this.executor.getActiveCount();
+    }
+}
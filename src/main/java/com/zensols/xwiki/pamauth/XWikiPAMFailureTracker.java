@@ -0,0 +1,301 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks failed logins by user name and by source address and rejects further attempts with an exponential backoff
+ * once too many failures happened within a time window.
+ * <p>
+ * The state of each key is an immutable value swapped with compare and set operations on a concurrent map, so
+ * threads never block each other.  The number of tracked keys is bounded: when full, the keys whose window is over
+ * and then the keys not blocked are purged, at most once a second.  Blocked keys are never dropped, so that spraying
+ * new user names or addresses can't lift a block; new keys are not tracked until there is room again.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMFailureTracker
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMFailureTracker.class);
+
+    private static final String USER_PREFIX = "user:";
+
+    private static final String ADDRESS_PREFIX = "addr:";
+
+    /** Cap the shift of the backoff so it can't overflow. */
+    private static final int MAX_BACKOFF_SHIFT = 30;
+
+    /** The minimum number of milliseconds between two purges of a full tracker. */
+    private static final long PURGE_INTERVAL = 1000;
+
+    private final long window;
+
+    private final int maxUserFailures;
+
+    private final int maxAddressFailures;
+
+    private final long backoff;
+
+    private final long maxBackoff;
+
+    private final int maxSize;
+
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<>();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final AtomicLong nextPurge = new AtomicLong();
+
+    private static final class State
+    {
+        private final int failures;
+
+        private final long windowStart;
+
+        private final long blockedUntil;
+
+        State(int failures, long windowStart, long blockedUntil)
+        {
+            this.failures = failures;
+            this.windowStart = windowStart;
+            this.blockedUntil = blockedUntil;
+        }
+    }
+
+    /**
+     * @param configuration the PAM configuration providing the window, limits and backoff settings
+     */
+    public XWikiPAMFailureTracker(XWikiPAMConfig configuration)
+    {
+        this(configuration.getFailureWindow(), configuration.getFailureMaxUser(),
+             configuration.getFailureMaxAddress(), configuration.getFailureBackoff(),
+             configuration.getFailureMaxBackoff(), configuration.getFailureTrackerSize());
+    }
+
+    /**
+     * @param window the number of milliseconds during which failures are counted
+     * @param maxUserFailures the number of failures per user name in the window before rejecting attempts
+     * @param maxAddressFailures the number of failures per source address in the window before rejecting attempts
+     * @param backoff the number of milliseconds attempts are rejected after the limit is first reached, doubled for
+     *            each further failure
+     * @param maxBackoff the maximum number of milliseconds attempts are rejected
+     * @param maxSize the maximum number of tracked user names and addresses
+     */
+    public XWikiPAMFailureTracker(long window, int maxUserFailures, int maxAddressFailures, long backoff,
+        long maxBackoff, int maxSize)
+    {
+        this.window = window;
+        this.maxUserFailures = maxUserFailures;
+        this.maxAddressFailures = maxAddressFailures;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this tracker was created with the settings of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        return this.window == configuration.getFailureWindow()
+            && this.maxUserFailures == configuration.getFailureMaxUser()
+            && this.maxAddressFailures == configuration.getFailureMaxAddress()
+            && this.backoff == configuration.getFailureBackoff()
+            && this.maxBackoff == configuration.getFailureMaxBackoff()
+            && this.maxSize == configuration.getFailureTrackerSize();
+    }
+
+    /**
+     * Check (and count as rejected) an attempt for the passed user name and source address.
+     *
+     * @param userName the user name given at login
+     * @param address the source address of the request, or null if not known
+     * @return true if the attempt must be rejected without verifying the credentials
+     */
+    public boolean isBlocked(String userName, String address)
+    {
+        long now = System.currentTimeMillis();
+        boolean blocked = isBlocked(userKey(userName), now)
+            || (address != null && isBlocked(ADDRESS_PREFIX + address, now));
+
+        if (blocked) {
+            this.rejections.incrementAndGet();
+        }
+
+        return blocked;
+    }
+
+    /**
+     * Record a failed login.
+     *
+     * @param userName the user name given at login
+     * @param address the source address of the request, or null if not known
+     */
+    public void recordFailure(String userName, String address)
+    {
+        long now = System.currentTimeMillis();
+
+        this.failures.incrementAndGet();
+        recordFailure(userKey(userName), this.maxUserFailures, now);
+        if (address != null) {
+            recordFailure(ADDRESS_PREFIX + address, this.maxAddressFailures, now);
+        }
+    }
+
+    /**
+     * Record a successful login, which clears the failures of the user (but not of the source address).
+     *
+     * @param userName the user name given at login
+     */
+    public void recordSuccess(String userName)
+    {
+        this.states.remove(userKey(userName));
+    }
+
+    /**
+     * @return the number of attempts rejected without verifying the credentials
+     */
+    public long getRejectionCount()
+    {
+        return this.rejections.get();
+    }
+
+    /**
+     * @return the number of recorded failed logins
+     */
+    public long getFailureCount()
+    {
+        return this.failures.get();
+    }
+
+    /**
+     * @return the number of tracked user names and addresses
+     */
+    public int size()
+    {
+        return this.states.size();
+    }
+
+    private String userKey(String userName)
+    {
+        return USER_PREFIX + userName.trim().toLowerCase();
+    }
+
+    private boolean isBlocked(String key, long now)
+    {
+        State state = this.states.get(key);
+
+        return state != null && state.blockedUntil > now;
+    }
+
+    private void recordFailure(String key, int maxFailures, long now)
+    {
+        if (maxFailures <= 0) {
+            return;
+        }
+
+        while (true) {
+            State state = this.states.get(key);
+
+            if (state == null) {
+                if (!makeRoom(now)) {
+                    LOGGER.debug("Not tracking the PAM login failure of [{}]: too many blocked keys", key);
+                    return;
+                }
+                if (this.states.putIfAbsent(key, createState(1, now, maxFailures, now)) == null) {
+                    return;
+                }
+            } else {
+                State newState;
+
+                if (now - state.windowStart > this.window && state.blockedUntil <= now) {
+                    newState = createState(1, now, maxFailures, now);
+                } else {
+                    newState = createState(state.failures + 1, state.windowStart, maxFailures, now);
+                }
+
+                if (this.states.replace(key, state, newState)) {
+                    if (newState.blockedUntil > now && LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Blocking PAM logins for [{}] during {}ms after {} failures", key,
+                                     newState.blockedUntil - now, newState.failures);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private State createState(int failureCount, long windowStart, int maxFailures, long now)
+    {
+        long blockedUntil = 0;
+
+        if (failureCount >= maxFailures) {
+            int shift = Math.min(failureCount - maxFailures, MAX_BACKOFF_SHIFT);
+            blockedUntil = now + Math.min(this.maxBackoff, this.backoff << shift);
+        }
+
+        return new State(failureCount, windowStart, blockedUntil);
+    }
+
+    /**
+     * @return true if a new key can be tracked
+     */
+    private boolean makeRoom(long now)
+    {
+        if (this.states.size() < this.maxSize) {
+            return true;
+        }
+
+        // Scan at most once per interval, not for each new key of a full tracker
+        long next = this.nextPurge.get();
+        if (now >= next && this.nextPurge.compareAndSet(next, now + PURGE_INTERVAL)) {
+            // First drop keys whose window and backoff are over
+            for (Map.Entry<String, State> entry : this.states.entrySet()) {
+                State state = entry.getValue();
+                if (now - state.windowStart > this.window && state.blockedUntil <= now) {
+                    this.states.remove(entry.getKey(), state);
+                }
+            }
+
+            // Still full, drop keys which are not blocked, never blocked ones
+            Iterator<Map.Entry<String, State>> it = this.states.entrySet().iterator();
+            while (this.states.size() >= this.maxSize && it.hasNext()) {
+                Map.Entry<String, State> entry = it.next();
+                if (entry.getValue().blockedUntil <= now) {
+                    this.states.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        return this.states.size() < this.maxSize;
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory index of the UNIX groups of each user, loaded from the group and passwd databases, either through NSS
+ * (<code>getent group</code> and <code>getent passwd</code>) or from files in the <code>/etc/group</code> and
+ * <code>/etc/passwd</code> formats.  A user is a member of the groups listing it and of its primary group, the group
+ * whose gid is the one of its passwd entry, like for <code>id</code>.
+ * <p>
+ * The index is loaded again at most every refresh interval (only if a file changed when reading files); the login
+ * finding it outdated reloads it while the other logins keep using the previous index.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMGroupIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMGroupIndex.class);
+
+    private static final int FIELDS = 4;
+
+    private static final int GID_FIELD = 2;
+
+    private static final int MEMBERS_FIELD = 3;
+
+    private static final int PASSWD_GID_FIELD = 3;
+
+    private static final String SEPARATOR = ":";
+
+    private static final String[] NO_GROUPS = new String[0];
+
+    private final File file;
+
+    private final File passwdFile;
+
+    private final long refreshInterval;
+
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * The groups of each user at some point in time.
+     */
+    private static final class Snapshot
+    {
+        private final Map<String, String[]> groups;
+
+        private final long loaded;
+
+        private final long modified;
+
+        private final long size;
+
+        private final long passwdModified;
+
+        private final long passwdSize;
+
+        Snapshot(Map<String, String[]> groups, long loaded, long[] versions)
+        {
+            this.groups = groups;
+            this.loaded = loaded;
+            this.modified = versions[0];
+            this.size = versions[1];
+            this.passwdModified = versions[2];
+            this.passwdSize = versions[3];
+        }
+
+        boolean isVersion(long[] versions)
+        {
+            return this.modified == versions[0] && this.size == versions[1] && this.passwdModified == versions[2]
+                && this.passwdSize == versions[3];
+        }
+    }
+
+    /**
+     * @param configuration the PAM configuration giving the group database, the passwd file read with a group file,
+     *            and the refresh interval
+     */
+    public XWikiPAMGroupIndex(XWikiPAMConfig configuration)
+    {
+        this(configuration.getGroupFile().isEmpty() ? null : new File(configuration.getGroupFile()),
+            configuration.getGroupFile().isEmpty() ? null : new File(configuration.getPasswdFile()),
+            configuration.getGroupRefreshInterval());
+    }
+
+    /**
+     * @param file the file in the <code>/etc/group</code> format or null to enumerate the groups and the accounts
+     *            known to NSS
+     * @param passwdFile the file in the <code>/etc/passwd</code> format giving the primary groups when reading a
+     *            group file, or null to only index the member lists
+     * @param refreshInterval the minimum number of milliseconds between two loads of the group database
+     */
+    public XWikiPAMGroupIndex(File file, File passwdFile, long refreshInterval)
+    {
+        this.file = file;
+        this.passwdFile = passwdFile;
+        this.refreshInterval = Math.max(0, refreshInterval);
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this index was created with the settings of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        String groupFile = configuration.getGroupFile();
+
+        return (this.file == null ? groupFile.isEmpty() : this.file.getPath().equals(groupFile))
+            && (this.passwdFile == null || this.passwdFile.getPath().equals(configuration.getPasswdFile()))
+            && this.refreshInterval == configuration.getGroupRefreshInterval();
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @return the names of the groups of the user, its primary group included, sorted
+     * @throws XWikiPAMException if the group database can't be read
+     */
+    public List<String> getGroups(String userName) throws XWikiPAMException
+    {
+        String[] groups = getSnapshot().groups.get(userName);
+
+        return groups != null ? Collections.unmodifiableList(Arrays.asList(groups)) : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @param groups the names of UNIX groups
+     * @return true if the user is a member of at least one of the groups, as primary group or listed member
+     * @throws XWikiPAMException if the group database can't be read
+     */
+    public boolean isMemberOfAny(String userName, Collection<String> groups) throws XWikiPAMException
+    {
+        String[] userGroups = getSnapshot().groups.getOrDefault(userName, NO_GROUPS);
+
+        for (String group : userGroups) {
+            if (groups.contains(group)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of users member of at least one group
+     * @throws XWikiPAMException if the group database can't be read
+     */
+    public int size() throws XWikiPAMException
+    {
+        return getSnapshot().groups.size();
+    }
+
+    private Snapshot getSnapshot() throws XWikiPAMException
+    {
+        Snapshot current = this.snapshot;
+
+        if (current != null && System.currentTimeMillis() - current.loaded < this.refreshInterval) {
+            return current;
+        }
+
+        if (current == null) {
+            // Nothing to answer with yet: wait for the first load
+            this.reloadLock.lock();
+        } else if (!this.reloadLock.tryLock()) {
+            return current;
+        }
+
+        try {
+            current = this.snapshot;
+            if (current == null || System.currentTimeMillis() - current.loaded >= this.refreshInterval) {
+                current = load(current);
+                this.snapshot = current;
+            }
+
+            return current;
+        } finally {
+            this.reloadLock.unlock();
+        }
+    }
+
+    private Snapshot load(Snapshot previous) throws XWikiPAMException
+    {
+        long now = System.currentTimeMillis();
+
+        try {
+            if (this.file == null) {
+                try (BufferedReader groups = getent("group"); BufferedReader passwd = getent("passwd")) {
+                    return new Snapshot(read(groups, passwd), now, new long[4]);
+                }
+            }
+
+            long[] versions = {this.file.lastModified(), this.file.length(),
+                this.passwdFile != null ? this.passwdFile.lastModified() : 0,
+                this.passwdFile != null ? this.passwdFile.length() : 0};
+
+            if (previous != null && previous.isVersion(versions)) {
+                return new Snapshot(previous.groups, now, versions);
+            }
+
+            try (BufferedReader groups = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8);
+                BufferedReader passwd = this.passwdFile != null
+                    ? Files.newBufferedReader(this.passwdFile.toPath(), StandardCharsets.UTF_8) : null) {
+                return new Snapshot(read(groups, passwd), now, versions);
+            }
+        } catch (IOException e) {
+            if (previous != null) {
+                LOGGER.warn("Could not reload the group database, keeping the previous one: {}", e.getMessage());
+                return new Snapshot(previous.groups, now, new long[] {previous.modified, previous.size,
+                    previous.passwdModified, previous.passwdSize});
+            }
+
+            throw new XWikiPAMException("Could not read the group database", e);
+        }
+    }
+
+    /**
+     * @param database the NSS database to enumerate
+     * @return the entries of the database
+     * @throws IOException if the database can't be enumerated
+     */
+    private static BufferedReader getent(String database) throws IOException
+    {
+        Process process = new ProcessBuilder("getent", database).redirectErrorStream(false).start();
+        try {
+            byte[] output;
+            try (InputStream input = process.getInputStream()) {
+                output = IOUtils.toByteArray(input);
+            }
+
+            int status = process.waitFor();
+            if (status != 0) {
+                throw new IOException("getent " + database + " failed with status " + status);
+            }
+
+            return new BufferedReader(new StringReader(new String(output, StandardCharsets.UTF_8)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while enumerating " + database, e);
+        } finally {
+            process.destroy();
+        }
+    }
+
+    /**
+     * @param reader the group database
+     * @return the sorted names of the groups listing each user
+     * @throws IOException if the database can't be read
+     */
+    static Map<String, String[]> read(BufferedReader reader) throws IOException
+    {
+        return read(reader, null);
+    }
+
+    /**
+     * @param reader the group database
+     * @param passwdReader the passwd database giving the primary group of each user, or null
+     * @return the sorted names of the groups of each user
+     * @throws IOException if a database can't be read
+     */
+    static Map<String, String[]> read(BufferedReader reader, BufferedReader passwdReader) throws IOException
+    {
+        Map<String, List<String>> memberships = new HashMap<>();
+        Map<String, String> groupsByGid = new HashMap<>();
+
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            String[] fields = line.split(SEPARATOR, -1);
+
+            if (isSkipped(line, fields, FIELDS)) {
+                continue;
+            }
+
+            // The same group name instance is shared by the lists of all its members
+            String group = fields[0];
+            // Like getgrgid, the first group of a gid wins
+            groupsByGid.putIfAbsent(fields[GID_FIELD], group);
+            for (String member : fields[MEMBERS_FIELD].split(",")) {
+                addMembership(memberships, member.trim(), group);
+            }
+        }
+
+        if (passwdReader != null) {
+            for (String line = passwdReader.readLine(); line != null; line = passwdReader.readLine()) {
+                String[] fields = line.split(SEPARATOR, -1);
+
+                if (!isSkipped(line, fields, PASSWD_GID_FIELD + 1)) {
+                    String group = groupsByGid.get(fields[PASSWD_GID_FIELD]);
+                    if (group != null) {
+                        addMembership(memberships, fields[0], group);
+                    }
+                }
+            }
+        }
+
+        Map<String, String[]> index = new HashMap<>(memberships.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<String>> entry : memberships.entrySet()) {
+            String[] groups = entry.getValue().toArray(new String[entry.getValue().size()]);
+            Arrays.sort(groups);
+            index.put(entry.getKey(), groups);
+        }
+
+        return index;
+    }
+
+    /**
+     * @return true for comments, NIS compat entries and malformed lines
+     */
+    private static boolean isSkipped(String line, String[] fields, int minFields)
+    {
+        return line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '+' || line.charAt(0) == '-'
+            || fields.length < minFields || fields[0].isEmpty();
+    }
+
+    private static void addMembership(Map<String, List<String>> memberships, String userName, String group)
+    {
+        if (!userName.isEmpty()) {
+            List<String> groups = memberships.computeIfAbsent(userName, key -> new ArrayList<>(2));
+            if (!groups.contains(group)) {
+                groups.add(group);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import com.xpn.xwiki.web.Utils;
+
+/**
+ * Makes the XWiki groups mapped to UNIX groups (see {@link XWikiPAMConfig#getGroupMappings()}) mirror the UNIX group
+ * membership of users.  Only the differences between the current and the desired membership are recorded, and
+ * {@link #save(String)} saves each group document once, however many users it was changed for.  Since other threads
+ * change the same groups, each group is saved under a lock and reloaded first, the recorded differences being applied
+ * again to its latest version, so no concurrent membership change is lost on this node.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+class XWikiPAMGroupSync
+{
+    private static final String GROUP_CLASS_SPACE = "XWiki";
+
+    private static final String GROUP_CLASS_NAME = "XWikiGroups";
+
+    private static final String MEMBER_FIELD = "member";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final long LOCK_TIMEOUT = 10000;
+
+    /** Serializes the saves of each group on this node. */
+    private static final XWikiPAMLockTable LOCKS = new XWikiPAMLockTable(LOCK_STRIPES, LOCK_TIMEOUT);
+
+    private final Map<String, String> mappings;
+
+    private final XWikiPAMGroupIndex index;
+
+    private final XWikiContext context;
+
+    private final DocumentReferenceResolver<String> resolver;
+
+    /**
+     * The copies of the group documents modified since the last save, giving the membership seen by the next updates.
+     */
+    private final Map<DocumentReference, XWikiDocument> modified = new LinkedHashMap<>();
+
+    /**
+     * The membership changes since the last save by group and user profile: true to add the user, false to remove it.
+     */
+    private final Map<DocumentReference, Map<DocumentReference, MemberChange>> changes = new LinkedHashMap<>();
+
+    /**
+     * The change of the membership of a user in a group.
+     */
+    private static final class MemberChange
+    {
+        private final XWikiDocument userProfile;
+
+        private final boolean add;
+
+        MemberChange(XWikiDocument userProfile, boolean add)
+        {
+            this.userProfile = userProfile;
+            this.add = add;
+        }
+    }
+
+    /**
+     * @param configuration the PAM configuration giving the mapped groups
+     * @param index the UNIX groups of the users
+     * @param context the XWiki context
+     */
+    XWikiPAMGroupSync(XWikiPAMConfig configuration, XWikiPAMGroupIndex index, XWikiContext context)
+    {
+        this.mappings = configuration.getGroupMappings();
+        this.index = index;
+        this.context = context;
+        this.resolver = Utils.getComponent(DocumentReferenceResolver.TYPE_STRING, "current");
+    }
+
+    /**
+     * Add the user to the mapped XWiki groups of its UNIX groups and remove it from the other mapped XWiki groups.
+     *
+     * @param userProfile the profile of the user
+     * @param userName the UNIX user name
+     * @return the number of membership changes, saved by {@link #save(String)}
+     * @throws XWikiException if the UNIX groups or the group documents can't be loaded
+     */
+    int update(XWikiDocument userProfile, String userName) throws XWikiException
+    {
+        List<String> unixGroups = this.index.getGroups(userName);
+        Map<String, Boolean> desired = new LinkedHashMap<>();
+        int count = 0;
+
+        // Several UNIX groups can be mapped to the same XWiki group
+        for (Map.Entry<String, String> mapping : this.mappings.entrySet()) {
+            desired.merge(mapping.getValue(), unixGroups.contains(mapping.getKey()), Boolean::logicalOr);
+        }
+
+        for (Map.Entry<String, Boolean> entry : desired.entrySet()) {
+            DocumentReference groupReference = this.resolver.resolve(entry.getKey());
+            XWikiDocument group = getGroup(groupReference);
+            boolean member = findMember(group, userProfile) != null;
+
+            if (entry.getValue() != member) {
+                apply(modify(group), userProfile, entry.getValue());
+                this.changes.computeIfAbsent(groupReference, reference -> new LinkedHashMap<>())
+                    .put(userProfile.getDocumentReference(), new MemberChange(userProfile, entry.getValue()));
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @param comment the comment of the saved group documents
+     * @return the number of group documents saved
+     * @throws XWikiException if a group document can't be saved
+     */
+    int save(String comment) throws XWikiException
+    {
+        int saved = 0;
+
+        try {
+            for (Map.Entry<DocumentReference, Map<DocumentReference, MemberChange>> entry : this.changes.entrySet()) {
+                if (save(entry.getKey(), entry.getValue().values(), comment)) {
+                    saved++;
+                }
+            }
+        } finally {
+            this.modified.clear();
+            this.changes.clear();
+        }
+
+        return saved;
+    }
+
+    /**
+     * Apply the membership changes to the latest version of a group and save it, holding the lock of the group.
+     *
+     * @return true if the group was saved, false if it already had the changes
+     */
+    private boolean save(DocumentReference groupReference, Iterable<MemberChange> groupChanges, String comment)
+        throws XWikiException
+    {
+        ReentrantLock lock;
+
+        try {
+            lock = LOCKS.tryLock(groupReference.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while waiting to save group " + groupReference, e);
+        }
+        if (lock == null) {
+            throw new XWikiPAMException("Timed out waiting to save group " + groupReference);
+        }
+
+        try {
+            XWikiDocument group = this.context.getWiki().getDocument(groupReference, this.context).clone();
+            boolean changed = false;
+
+            for (MemberChange change : groupChanges) {
+                changed |= apply(group, change.userProfile, change.add);
+            }
+            if (changed) {
+                this.context.getWiki().saveDocument(group, comment, true, this.context);
+            }
+
+            return changed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the membership of the user in the group changed
+     */
+    private boolean apply(XWikiDocument group, XWikiDocument userProfile, boolean add) throws XWikiException
+    {
+        BaseObject memberObj = findMember(group, userProfile);
+
+        if (add && memberObj == null) {
+            DocumentReference groupReference = group.getDocumentReference();
+            memberObj = group.newXObject(getGroupClass(groupReference), this.context);
+            memberObj.setStringValue(MEMBER_FIELD, getMemberName(groupReference, userProfile));
+            return true;
+        } else if (!add && memberObj != null) {
+            group.removeXObject(memberObj);
+            return true;
+        }
+
+        return false;
+    }
+
+    private XWikiDocument getGroup(DocumentReference groupReference) throws XWikiException
+    {
+        XWikiDocument group = this.modified.get(groupReference);
+
+        return group != null ? group : this.context.getWiki().getDocument(groupReference, this.context);
+    }
+
+    private XWikiDocument modify(XWikiDocument group)
+    {
+        return this.modified.computeIfAbsent(group.getDocumentReference(), reference -> group.clone());
+    }
+
+    private BaseObject findMember(XWikiDocument group, XWikiDocument userProfile)
+    {
+        List<BaseObject> members = group.getXObjects(getGroupClass(group.getDocumentReference()));
+
+        if (members != null) {
+            String localName = userProfile.getFullName();
+            String prefixedName = userProfile.getPrefixedFullName();
+
+            for (BaseObject memberObj : members) {
+                if (memberObj != null) {
+                    String member = memberObj.getStringValue(MEMBER_FIELD);
+                    if (member.equals(localName) || member.equals(prefixedName)) {
+                        return memberObj;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static DocumentReference getGroupClass(DocumentReference groupReference)
+    {
+        return new DocumentReference(groupReference.getWikiReference().getName(), GROUP_CLASS_SPACE, GROUP_CLASS_NAME);
+    }
+
+    private static String getMemberName(DocumentReference groupReference, XWikiDocument userProfile)
+    {
+        return groupReference.getWikiReference().equals(userProfile.getDocumentReference().getWikiReference())
+            ? userProfile.getFullName() : userProfile.getPrefixedFullName();
+    }
+}
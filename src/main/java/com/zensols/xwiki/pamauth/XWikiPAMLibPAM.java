@@ -0,0 +1,399 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Verifies passwords by calling libpam in process (through JNA) and looks up accounts with
+ * <code>getpwnam_r</code>, so no process is launched at all.
+ * <p>
+ * A PAM handle is started, used and ended by the calling thread for each verification and never shared, since
+ * libpam handles are not thread safe.  The password is handed to PAM by a single conversation callback that finds the
+ * credentials of the current verification through the application data pointer.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMLibPAM
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMLibPAM.class);
+
+    private static final int PAM_SUCCESS = 0;
+
+    private static final int PAM_BUF_ERR = 5;
+
+    private static final int PAM_CONV_ERR = 19;
+
+    private static final int PAM_PROMPT_ECHO_OFF = 1;
+
+    private static final int PAM_PROMPT_ECHO_ON = 2;
+
+    private static final int PAM_SILENT = 0x8000;
+
+    private static final int PASSWD_BUFFER_SIZE = 16384;
+
+    /** Credentials of the verifications in progress by conversation identifier. */
+    private static final ConcurrentMap<Long, String[]> CONVERSATIONS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong CONVERSATION_IDS = new AtomicLong();
+
+    private final String service;
+
+    private final String configDirectory;
+
+    /**
+     * The libpam functions used.
+     */
+    interface LibPAM extends Library
+    {
+        int pam_start(String service, String user, PamConv conv, PointerByReference pamh);
+
+        int pam_start_confdir(String service, String user, PamConv conv, String confdir, PointerByReference pamh);
+
+        int pam_authenticate(Pointer pamh, int flags);
+
+        int pam_acct_mgmt(Pointer pamh, int flags);
+
+        int pam_end(Pointer pamh, int status);
+
+        String pam_strerror(Pointer pamh, int errnum);
+    }
+
+    /**
+     * The libc functions used.
+     */
+    interface LibC extends Library
+    {
+        int getpwnam_r(String name, Passwd pwd, Pointer buf, NativeLong buflen, PointerByReference result);
+
+        Pointer calloc(NativeLong count, NativeLong size);
+
+        void free(Pointer ptr);
+    }
+
+    /**
+     * <code>struct pam_conv</code>.
+     */
+    @Structure.FieldOrder({ "conv", "appdata_ptr" })
+    public static class PamConv extends Structure
+    {
+        public ConvCallback conv;
+
+        public Pointer appdata_ptr;
+    }
+
+    /**
+     * <code>struct pam_message</code>.
+     */
+    @Structure.FieldOrder({ "msg_style", "msg" })
+    public static class PamMessage extends Structure
+    {
+        public int msg_style;
+
+        public String msg;
+
+        public PamMessage(Pointer p)
+        {
+            super(p);
+            read();
+        }
+    }
+
+    /**
+     * <code>struct pam_response</code>.
+     */
+    @Structure.FieldOrder({ "resp", "resp_retcode" })
+    public static class PamResponse extends Structure
+    {
+        public Pointer resp;
+
+        public int resp_retcode;
+
+        public PamResponse()
+        {
+        }
+
+        public PamResponse(Pointer p)
+        {
+            super(p);
+        }
+    }
+
+    /**
+     * <code>struct passwd</code> (Linux layout).
+     */
+    @Structure.FieldOrder({ "pw_name", "pw_passwd", "pw_uid", "pw_gid", "pw_gecos", "pw_dir", "pw_shell" })
+    public static class Passwd extends Structure
+    {
+        public String pw_name;
+
+        public String pw_passwd;
+
+        public int pw_uid;
+
+        public int pw_gid;
+
+        public String pw_gecos;
+
+        public String pw_dir;
+
+        public String pw_shell;
+    }
+
+    /**
+     * The PAM conversation function.
+     */
+    public interface ConvCallback extends Callback
+    {
+        int callback(int numMsg, Pointer msg, Pointer resp, Pointer appdata);
+    }
+
+    /**
+     * Lazily loads the native libraries the first time the backend is used.
+     */
+    private static final class NativeHolder
+    {
+        private static final LibPAM PAM = Native.load("pam", LibPAM.class);
+
+        private static final LibC C = Native.load("c", LibC.class);
+
+        /** Whether libpam has <code>pam_start_confdir</code> (Linux-PAM 1.4 and later). */
+        private static final boolean CONFDIR = hasFunction("pam", "pam_start_confdir");
+
+        private static final int RESPONSE_SIZE = new PamResponse().size();
+
+        /** Kept in a static field so the native trampoline is never garbage collected. */
+        private static final ConvCallback CONVERSATION = XWikiPAMLibPAM::converse;
+    }
+
+    /**
+     * @param configuration the PAM configuration providing the service name and configuration directory
+     */
+    public XWikiPAMLibPAM(XWikiPAMConfig configuration)
+    {
+        this(configuration.getPAMService(), configuration.getPAMServiceDirectory());
+    }
+
+    /**
+     * @param service the PAM service name (i.e. the file in <code>/etc/pam.d</code>)
+     * @param configDirectory the directory with PAM service files or null for the system default (requires Linux-PAM
+     *            1.4)
+     */
+    public XWikiPAMLibPAM(String service, String configDirectory)
+    {
+        this.service = service;
+        this.configDirectory = StringUtils.isBlank(configDirectory) ? null : configDirectory;
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @param password the password of the user
+     * @return true if the PAM service authenticated the user and the account is valid
+     * @throws XWikiPAMException if libpam can't be loaded or fails to start
+     */
+    public boolean verify(String userName, String password) throws XWikiPAMException
+    {
+        LibPAM pam = getLibPAM();
+        if (this.configDirectory != null && !NativeHolder.CONFDIR) {
+            throw new XWikiPAMException("PAM service directory [" + this.configDirectory
+                + "] needs pam_start_confdir (Linux-PAM 1.4), which the installed libpam lacks");
+        }
+
+        long id = CONVERSATION_IDS.incrementAndGet();
+        PamConv conv = new PamConv();
+        PointerByReference handleRef = new PointerByReference();
+
+        conv.conv = NativeHolder.CONVERSATION;
+        conv.appdata_ptr = new Pointer(id);
+        CONVERSATIONS.put(id, new String[] { userName, password });
+
+        try {
+            int status = this.configDirectory == null
+                ? pam.pam_start(this.service, userName, conv, handleRef)
+                : pam.pam_start_confdir(this.service, userName, conv, this.configDirectory, handleRef);
+
+            if (status != PAM_SUCCESS) {
+                throw new XWikiPAMException("Could not start PAM service [" + this.service + "]: " + status);
+            }
+
+            Pointer handle = handleRef.getValue();
+            try {
+                status = pam.pam_authenticate(handle, PAM_SILENT);
+                if (status == PAM_SUCCESS) {
+                    status = pam.pam_acct_mgmt(handle, PAM_SILENT);
+                }
+                if (status != PAM_SUCCESS && LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("PAM service [{}] rejected user [{}]: {}", this.service, userName,
+                                 pam.pam_strerror(handle, status));
+                }
+            } finally {
+                pam.pam_end(handle, status);
+            }
+
+            return status == PAM_SUCCESS;
+        } finally {
+            CONVERSATIONS.remove(id);
+        }
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @return the account of the user or null if it doesn't exist
+     * @throws XWikiPAMException if libc can't be loaded or the lookup fails
+     */
+    public PAMAccount getAccount(String userName) throws XWikiPAMException
+    {
+        LibC libc = getLibC();
+        Passwd passwd = new Passwd();
+        Memory buffer = new Memory(PASSWD_BUFFER_SIZE);
+        PointerByReference result = new PointerByReference();
+
+        int error = libc.getpwnam_r(userName, passwd, buffer, new NativeLong(PASSWD_BUFFER_SIZE), result);
+        if (error != 0) {
+            throw new XWikiPAMException("Could not look up user [" + userName + "]: errno " + error);
+        }
+
+        PAMAccount account = null;
+        if (result.getValue() != null) {
+            passwd.read();
+            String gecos = passwd.pw_gecos;
+            int comma = gecos == null ? -1 : gecos.indexOf(',');
+            account = new PAMAccount(userName, String.valueOf(passwd.pw_uid & 0xffffffffL),
+                                     comma < 0 ? gecos : gecos.substring(0, comma));
+        }
+
+        return account;
+    }
+
+    private static LibPAM getLibPAM() throws XWikiPAMException
+    {
+        try {
+            return NativeHolder.PAM;
+        } catch (LinkageError e) {
+            throw new XWikiPAMException("Could not load libpam: " + e.getMessage());
+        }
+    }
+
+    private static boolean hasFunction(String library, String function)
+    {
+        try {
+            NativeLibrary.getInstance(library).getFunction(function);
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    private static LibC getLibC() throws XWikiPAMException
+    {
+        try {
+            return NativeHolder.C;
+        } catch (LinkageError e) {
+            throw new XWikiPAMException("Could not load libc: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answer the PAM prompts: the user name for echoed prompts and the password for hidden prompts.  The responses
+     * are allocated with the C allocator since libpam frees them, except when the conversation fails, where they are
+     * freed here with the passwords zeroed first.
+     */
+    private static int converse(int numMsg, Pointer msg, Pointer resp, Pointer appdata)
+    {
+        String[] credentials = CONVERSATIONS.get(Pointer.nativeValue(appdata));
+
+        if (credentials == null || numMsg <= 0) {
+            return PAM_CONV_ERR;
+        }
+
+        Pointer responses = NativeHolder.C.calloc(new NativeLong(numMsg), new NativeLong(NativeHolder.RESPONSE_SIZE));
+        if (responses == null) {
+            return PAM_BUF_ERR;
+        }
+
+        int[] lengths = new int[numMsg];
+        for (int i = 0; i < numMsg; i++) {
+            PamMessage message = new PamMessage(msg.getPointer((long) i * Native.POINTER_SIZE));
+            String answer = null;
+
+            if (message.msg_style == PAM_PROMPT_ECHO_OFF) {
+                answer = credentials[1];
+            } else if (message.msg_style == PAM_PROMPT_ECHO_ON) {
+                answer = credentials[0];
+            }
+
+            if (answer != null) {
+                byte[] bytes = answer.getBytes(StandardCharsets.UTF_8);
+                Pointer str = NativeHolder.C.calloc(new NativeLong(bytes.length + 1), new NativeLong(1));
+                if (str != null) {
+                    str.write(0, bytes, 0, bytes.length);
+                    lengths[i] = bytes.length;
+                }
+                Arrays.fill(bytes, (byte) 0);
+                if (str == null) {
+                    freeResponses(responses, lengths, i);
+                    return PAM_BUF_ERR;
+                }
+
+                PamResponse response = new PamResponse(responses.share((long) i * NativeHolder.RESPONSE_SIZE));
+                response.resp = str;
+                response.write();
+            }
+        }
+
+        resp.setPointer(0, responses);
+
+        return PAM_SUCCESS;
+    }
+
+    /**
+     * Zero and free the response strings allocated so far and the response array.
+     */
+    private static void freeResponses(Pointer responses, int[] lengths, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            Pointer str = responses.getPointer((long) i * NativeHolder.RESPONSE_SIZE);
+            if (str != null) {
+                str.setMemory(0, lengths[i], (byte) 0);
+                NativeHolder.C.free(str);
+            }
+        }
+        NativeHolder.C.free(responses);
+    }
+}
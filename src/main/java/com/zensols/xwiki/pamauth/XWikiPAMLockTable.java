@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size table of locks shared by all keys hashing to the same stripe, so memory stays bounded however many
+ * distinct users are seen.  Locks are acquired with a timeout so a slow authentication can't pile up request threads
+ * forever, and the time spent waiting is measured.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMLockTable
+{
+    private final ReentrantLock[] locks;
+
+    private final long timeout;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two
+     * @param timeout the number of milliseconds to wait for a lock
+     */
+    public XWikiPAMLockTable(int stripes, long timeout)
+    {
+        this.locks = new ReentrantLock[roundStripes(stripes)];
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+        this.timeout = timeout;
+    }
+
+    private static int roundStripes(int stripes)
+    {
+        return stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    }
+
+    /**
+     * Acquire the lock of the stripe of a key, waiting at most the configured timeout.
+     *
+     * @param key the key to lock
+     * @return the acquired lock, which must be unlocked by the caller, or null if it could not be acquired in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public ReentrantLock tryLock(String key) throws InterruptedException
+    {
+        int hash = key.hashCode();
+        ReentrantLock lock = this.locks[(hash ^ (hash >>> 16)) & (this.locks.length - 1)];
+        long start = System.nanoTime();
+        boolean locked = lock.tryLock(this.timeout, TimeUnit.MILLISECONDS);
+        long waited = System.nanoTime() - start;
+
+        this.waitNanos.addAndGet(waited);
+        this.maxWaitNanos.accumulate(waited);
+        if (locked) {
+            this.acquisitions.incrementAndGet();
+            return lock;
+        }
+        this.timeouts.incrementAndGet();
+
+        return null;
+    }
+
+    /**
+     * @return the number of locks in the table
+     */
+    public int getStripeCount()
+    {
+        return this.locks.length;
+    }
+
+    /**
+     * @return the number of successful lock acquisitions
+     */
+    public long getAcquisitionCount()
+    {
+        return this.acquisitions.get();
+    }
+
+    /**
+     * @return the number of lock acquisitions that timed out
+     */
+    public long getTimeoutCount()
+    {
+        return this.timeouts.get();
+    }
+
+    /**
+     * @return the total number of milliseconds threads waited for locks
+     */
+    public long getTotalWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.get());
+    }
+
+    /**
+     * @return the longest number of milliseconds a thread waited for a lock
+     */
+    public long getMaxWaitTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Makes concurrent identical password authentications single-flight: the first one (the leader) verifies the
+ * password and synchronizes the profile, the ones arriving while it runs (the followers) get its outcome.
+ * <p>
+ * Authentications are identical when they are for the same wiki, user name and password; the password is only kept
+ * as a keyed hash (HMAC) with a random per instance key.  Followers don't count as failed logins: they are the same
+ * attempt as their leader.
+ * <p>
+ * A follower never depends on the thread of its leader: it waits a bounded time, then verifies the password itself,
+ * as it also does when the leader gives up by cancelling its outcome (e.g. because its request thread was
+ * interrupted).  The flight ends as soon as the outcome of the leader is completed or cancelled.
+ *
+ * @param <T> the type of the outcome of an authentication
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMLoginCoalescer<T>
+{
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final char KEY_SEP = ':';
+
+    private final SecretKeySpec key;
+
+    private final ConcurrentMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong leaders = new AtomicLong();
+
+    private final AtomicLong followers = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /** Bounds the wait of the followers; its thread stops when no follower waits. */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Create a coalescer with a random key.
+     */
+    public XWikiPAMLoginCoalescer()
+    {
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "PAM login coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.timer.setKeepAliveTime(60, TimeUnit.SECONDS);
+        this.timer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param wikiId the wiki the user logs in
+     * @param userName the user name
+     * @param password the password
+     * @param timeout the number of milliseconds to wait for an identical authentication in flight before starting
+     *            this one, or 0 to wait until it completes
+     * @param executor runs <code>authentication</code> when the identical authentication in flight doesn't complete
+     *            in time or is cancelled
+     * @param authentication starts the authentication when there is none in flight with the same credentials
+     * @return the outcome of the authentication started by this call or of the identical one in flight; when this
+     *         call started the authentication, cancelling the outcome ends the flight
+     */
+    public CompletableFuture<T> authenticate(String wikiId, String userName, String password, long timeout,
+        Executor executor, Supplier<CompletableFuture<T>> authentication)
+    {
+        String flightKey = createKey(wikiId, userName, password);
+        CompletableFuture<T> flight = new CompletableFuture<>();
+        CompletableFuture<T> leader = this.inFlight.putIfAbsent(flightKey, flight);
+
+        if (leader != null) {
+            this.followers.incrementAndGet();
+            return follow(flightKey, leader, timeout, executor, authentication);
+        }
+
+        this.leaders.incrementAndGet();
+        // Authentications starting from now verify the credentials again, however the flight ends
+        flight.whenComplete((value, error) -> this.inFlight.remove(flightKey, flight));
+
+        CompletableFuture<T> outcome;
+        try {
+            outcome = authentication.get();
+        } catch (RuntimeException e) {
+            outcome = new CompletableFuture<>();
+            outcome.completeExceptionally(e);
+        }
+
+        complete(flight, outcome);
+
+        return flight;
+    }
+
+    private CompletableFuture<T> follow(String flightKey, CompletableFuture<T> leader, long timeout,
+        Executor executor, Supplier<CompletableFuture<T>> authentication)
+    {
+        // A new future, so that a follower can't complete or cancel the outcome of the others
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicBoolean settled = new AtomicBoolean();
+        Future<?> deadline = null;
+
+        if (timeout > 0) {
+            deadline = this.timer.schedule(() -> {
+                if (settled.compareAndSet(false, true)) {
+                    // The leader is stuck: the next authentications don't wait for it either
+                    this.inFlight.remove(flightKey, leader);
+                    fallback(result, executor, authentication);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        Future<?> leaderDeadline = deadline;
+        leader.whenComplete((value, error) -> {
+            if (settled.compareAndSet(false, true)) {
+                if (leaderDeadline != null) {
+                    leaderDeadline.cancel(false);
+                }
+                if (isCancellation(error)) {
+                    fallback(result, executor, authentication);
+                } else if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    private void fallback(CompletableFuture<T> result, Executor executor,
+        Supplier<CompletableFuture<T>> authentication)
+    {
+        this.fallbacks.incrementAndGet();
+        try {
+            complete(result, CompletableFuture.supplyAsync(authentication, executor).thenCompose(Function.identity()));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static <T> void complete(CompletableFuture<T> target, CompletableFuture<T> source)
+    {
+        source.whenComplete((value, error) -> {
+            if (error != null) {
+                target.completeExceptionally(error);
+            } else {
+                target.complete(value);
+            }
+        });
+    }
+
+    private static boolean isCancellation(Throwable error)
+    {
+        return error instanceof CancellationException
+            || error instanceof CompletionException && error.getCause() instanceof CancellationException;
+    }
+
+    private String createKey(String wikiId, String userName, String password)
+    {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(this.key);
+            mac.update(userName.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+
+            return wikiId + KEY_SEP + userName + KEY_SEP
+                + Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @return the number of authentications in flight
+     */
+    public int getInFlightCount()
+    {
+        return this.inFlight.size();
+    }
+
+    /**
+     * @return the number of authentications which verified the credentials
+     */
+    public long getLeaderCount()
+    {
+        return this.leaders.get();
+    }
+
+    /**
+     * @return the number of authentications which got the outcome of an identical one in flight
+     */
+    public long getCoalescedCount()
+    {
+        return this.followers.get();
+    }
+
+    /**
+     * @return the number of authentications which verified the credentials themselves because the identical one in
+     *         flight didn't complete in time or was cancelled
+     */
+    public long getFallbackCount()
+    {
+        return this.fallbacks.get();
+    }
+
+    /**
+     * @return the ratio of authentications which got the outcome of an identical one in flight, 0 if there was no
+     *         authentication yet
+     */
+    public double getCoalescingRatio()
+    {
+        long coalesced = this.followers.get();
+        long total = coalesced + this.leaders.get();
+
+        return total == 0 ? 0 : (double) coalesced / total;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Enumerates the system accounts from the passwd database, either through NSS (<code>getent passwd</code>) or from a
+ * file in the <code>/etc/passwd</code> format.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class XWikiPAMPasswd
+{
+    private static final int FIELDS = 7;
+
+    private static final int UID_FIELD = 2;
+
+    private static final int GECOS_FIELD = 4;
+
+    private XWikiPAMPasswd()
+    {
+    }
+
+    /**
+     * @param line a line of the passwd database
+     * @return the account described by the line or null if it is a comment or malformed
+     */
+    public static PAMAccount parse(String line)
+    {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return null;
+        }
+
+        String[] fields = line.split(":", -1);
+        if (fields.length < FIELDS || fields[0].isEmpty()) {
+            return null;
+        }
+
+        try {
+            Long.parseLong(fields[UID_FIELD]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        String gecos = fields[GECOS_FIELD];
+        int comma = gecos.indexOf(',');
+
+        return new PAMAccount(fields[0], fields[UID_FIELD], comma < 0 ? gecos : gecos.substring(0, comma));
+    }
+
+    /**
+     * @param reader the passwd database
+     * @param minUid the lowest uid of the accounts to return
+     * @param maxUid the highest uid of the accounts to return
+     * @return the accounts with a uid in the range, sorted by uid
+     * @throws IOException if the database can't be read
+     */
+    public static List<PAMAccount> read(BufferedReader reader, long minUid, long maxUid) throws IOException
+    {
+        List<PAMAccount> accounts = new ArrayList<>();
+
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            PAMAccount account = parse(line);
+
+            if (account != null) {
+                long uid = Long.parseLong(account.getUid());
+                if (uid >= minUid && uid <= maxUid) {
+                    accounts.add(account);
+                }
+            }
+        }
+
+        accounts.sort(Comparator.comparingLong(account -> Long.parseLong(account.getUid())));
+
+        return accounts;
+    }
+
+    /**
+     * @param file the passwd file or null to enumerate the accounts known to NSS
+     * @param minUid the lowest uid of the accounts to return
+     * @param maxUid the highest uid of the accounts to return
+     * @return the accounts with a uid in the range, sorted by uid
+     * @throws IOException if the database can't be read
+     */
+    public static List<PAMAccount> read(File file, long minUid, long maxUid) throws IOException
+    {
+        if (file != null) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                return read(reader, minUid, maxUid);
+            }
+        }
+
+        Process process = new ProcessBuilder("getent", "passwd").redirectErrorStream(false).start();
+        try {
+            List<PAMAccount> accounts;
+            try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                accounts = read(reader, minUid, maxUid);
+            }
+
+            int status = process.waitFor();
+            if (status != 0) {
+                throw new IOException("getent passwd failed with status " + status);
+            }
+
+            return accounts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while enumerating accounts", e);
+        } finally {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the accounts from a file in the <code>/etc/passwd</code> format without launching any process: the file is
+ * read in a single buffer and indexed by user name (open addressing hash table) and uid (sorted array) with primitive
+ * arrays pointing in the buffer.  Lookups only allocate the returned account.
+ * <p>
+ * The file modification time and size are checked at most every check interval, and the index is rebuilt when they
+ * changed; lookups keep using the previous index meanwhile.  The buffer is a copy rather than a memory mapping, so
+ * that a tool truncating or rewriting the file in place can't make a lookup fail on unmapped pages.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMPasswdIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMPasswdIndex.class);
+
+    private static final byte SEPARATOR = ':';
+
+    private static final byte GECOS_SEPARATOR = ',';
+
+    private static final byte NEWLINE = '\n';
+
+    private static final int UID_FIELD = 2;
+
+    private static final int GECOS_FIELD = 4;
+
+    private static final int FIELDS = 7;
+
+    private static final int ASCII = 0x80;
+
+    private static final int MIN_BUFFER = 4096;
+
+    private final File file;
+
+    private final long checkInterval;
+
+    private final Object rebuildLock = new Object();
+
+    private volatile Snapshot snapshot;
+
+    private volatile long nextCheck;
+
+    /**
+     * An immutable index of a version of the file.
+     */
+    private static final class Snapshot
+    {
+        private final long modified;
+
+        private final long size;
+
+        private final ByteBuffer buffer;
+
+        private int count;
+
+        private int[] nameStarts;
+
+        private int[] nameLengths;
+
+        private int[] gecosStarts;
+
+        private int[] gecosLengths;
+
+        private long[] uids;
+
+        /** Entry index + 1 by hash of the user name, 0 for free slots. */
+        private int[] nameTable;
+
+        /** Entry indexes sorted by uid, then by position in the file. */
+        private int[] uidOrder;
+
+        private long[] sortedUids;
+
+        Snapshot(long modified, long size, ByteBuffer buffer)
+        {
+            this.modified = modified;
+            this.size = size;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * @param file the file in the <code>/etc/passwd</code> format
+     * @param checkInterval the minimum number of milliseconds between two checks of the file for changes
+     */
+    public XWikiPAMPasswdIndex(File file, long checkInterval)
+    {
+        this.file = file;
+        this.checkInterval = Math.max(0, checkInterval);
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this index was created with the settings of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        return this.file.getPath().equals(configuration.getPasswdFile())
+            && this.checkInterval == configuration.getPasswdCheckInterval();
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @return the account with the user name or null if the file doesn't contain it
+     * @throws XWikiPAMException if the file can't be read
+     */
+    public PAMAccount getAccount(String userName) throws XWikiPAMException
+    {
+        Snapshot current = getSnapshot();
+        int[] table = current.nameTable;
+        int mask = table.length - 1;
+
+        for (int slot = hash(userName) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+
+            if (nameEquals(current, entry, userName)) {
+                return createAccount(current, entry);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param uid the UNIX numeric user ID
+     * @return the first account of the file with the uid or null if the file doesn't contain it
+     * @throws XWikiPAMException if the file can't be read
+     */
+    public PAMAccount getAccount(long uid) throws XWikiPAMException
+    {
+        Snapshot current = getSnapshot();
+        int index = Arrays.binarySearch(current.sortedUids, uid);
+
+        if (index < 0) {
+            return null;
+        }
+
+        // Several accounts can share a uid: take the first one in the file
+        while (index > 0 && current.sortedUids[index - 1] == uid) {
+            index--;
+        }
+
+        return createAccount(current, current.uidOrder[index]);
+    }
+
+    /**
+     * @return the number of accounts in the index
+     * @throws XWikiPAMException if the file can't be read
+     */
+    public int size() throws XWikiPAMException
+    {
+        return getSnapshot().count;
+    }
+
+    /**
+     * @param fallback the backend used for the accounts not in the file and to verify the passwords
+     * @return a backend looking up the accounts in this index first
+     */
+    public PAMUserBackend asBackend(final PAMUserBackend fallback)
+    {
+        return new PAMUserBackend()
+        {
+            @Override
+            public PAMAccount getAccount(String userName, XWikiPAMConfig configuration) throws XWikiPAMException
+            {
+                PAMAccount account = XWikiPAMPasswdIndex.this.getAccount(userName);
+
+                return account != null ? account : fallback.getAccount(userName, configuration);
+            }
+
+            @Override
+            public boolean verify(String userName, String password, XWikiPAMConfig configuration)
+                throws XWikiPAMException
+            {
+                return fallback.verify(userName, password, configuration);
+            }
+        };
+    }
+
+    private Snapshot getSnapshot() throws XWikiPAMException
+    {
+        Snapshot current = this.snapshot;
+        long now = System.currentTimeMillis();
+
+        if (current == null || now - this.nextCheck >= 0) {
+            synchronized (this.rebuildLock) {
+                current = this.snapshot;
+                if (current == null || now - this.nextCheck >= 0) {
+                    long modified = this.file.lastModified();
+                    long size = this.file.length();
+
+                    if (current == null || current.modified != modified || current.size != size) {
+                        current = build(modified, size);
+                        this.snapshot = current;
+                    }
+                    this.nextCheck = now + this.checkInterval;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    private Snapshot build(long modified, long size) throws XWikiPAMException
+    {
+        long start = System.nanoTime();
+        ByteBuffer buffer;
+
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            // Read until the end even if the file grows meanwhile: the next check sees the new size
+            buffer = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, Math.max(channel.size(), MIN_BUFFER)));
+            while (channel.read(buffer) > 0) {
+                if (!buffer.hasRemaining()) {
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2).put((ByteBuffer) buffer.flip());
+                }
+            }
+            buffer.flip();
+        } catch (IOException e) {
+            throw new XWikiPAMException("Could not read passwd file [" + this.file + "]", e);
+        }
+
+        Snapshot built = new Snapshot(modified, size, buffer);
+        parse(built);
+        index(built);
+
+        LOGGER.debug("Indexed {} accounts of [{}] in {}ms", built.count, this.file,
+                     (System.nanoTime() - start) / 1000000);
+
+        return built;
+    }
+
+    private static void parse(Snapshot built)
+    {
+        ByteBuffer buffer = built.buffer;
+        int limit = buffer.limit();
+        int capacity = 64;
+        int[] nameStarts = new int[capacity];
+        int[] nameLengths = new int[capacity];
+        int[] gecosStarts = new int[capacity];
+        int[] gecosLengths = new int[capacity];
+        long[] uids = new long[capacity];
+        int count = 0;
+        int[] fields = new int[FIELDS + 1];
+
+        for (int lineStart = 0; lineStart < limit;) {
+            int lineEnd = lineStart;
+            int fieldCount = 1;
+
+            fields[0] = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != NEWLINE) {
+                if (buffer.get(lineEnd) == SEPARATOR && fieldCount < FIELDS) {
+                    fields[fieldCount++] = lineEnd + 1;
+                }
+                lineEnd++;
+            }
+            fields[fieldCount] = lineEnd + 1;
+
+            long uid = fieldCount == FIELDS ? parseUid(buffer, fields[UID_FIELD], fields[UID_FIELD + 1] - 1) : -1;
+            byte first = buffer.get(lineStart);
+            // Skip comments, NIS compat entries and malformed lines
+            if (uid >= 0 && fields[1] - 1 > lineStart && first != '#' && first != '+' && first != '-') {
+                if (count == capacity) {
+                    capacity *= 2;
+                    nameStarts = Arrays.copyOf(nameStarts, capacity);
+                    nameLengths = Arrays.copyOf(nameLengths, capacity);
+                    gecosStarts = Arrays.copyOf(gecosStarts, capacity);
+                    gecosLengths = Arrays.copyOf(gecosLengths, capacity);
+                    uids = Arrays.copyOf(uids, capacity);
+                }
+
+                int gecosStart = fields[GECOS_FIELD];
+                int gecosEnd = gecosStart;
+                while (gecosEnd < fields[GECOS_FIELD + 1] - 1 && buffer.get(gecosEnd) != GECOS_SEPARATOR) {
+                    gecosEnd++;
+                }
+
+                nameStarts[count] = lineStart;
+                nameLengths[count] = fields[1] - 1 - lineStart;
+                gecosStarts[count] = gecosStart;
+                gecosLengths[count] = gecosEnd - gecosStart;
+                uids[count] = uid;
+                count++;
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        built.count = count;
+        built.nameStarts = nameStarts;
+        built.nameLengths = nameLengths;
+        built.gecosStarts = gecosStarts;
+        built.gecosLengths = gecosLengths;
+        built.uids = uids;
+    }
+
+    private static long parseUid(ByteBuffer buffer, int start, int end)
+    {
+        if (start >= end) {
+            return -1;
+        }
+
+        long uid = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || uid > Integer.MAX_VALUE) {
+                return -1;
+            }
+            uid = uid * 10 + digit;
+        }
+
+        return uid;
+    }
+
+    private static void index(Snapshot built)
+    {
+        int count = built.count;
+
+        // Load factor of at most 0.5
+        int tableSize = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+        int[] table = new int[tableSize];
+        int mask = tableSize - 1;
+
+        for (int entry = 0; entry < count; entry++) {
+            int slot = hash(built.buffer, built.nameStarts[entry], built.nameLengths[entry]) & mask;
+            boolean duplicate = false;
+
+            while (table[slot] != 0 && !duplicate) {
+                duplicate = sameName(built, table[slot] - 1, entry);
+                slot = (slot + 1) & mask;
+            }
+
+            // Like getpwnam, the first entry of a name wins
+            if (!duplicate) {
+                table[slot] = entry + 1;
+            }
+        }
+
+        // Sort by uid then entry with a single primitive sort of uid << 32 | entry
+        long[] keys = new long[count];
+        for (int entry = 0; entry < count; entry++) {
+            keys[entry] = built.uids[entry] << 32 | entry;
+        }
+        Arrays.sort(keys);
+
+        int[] uidOrder = new int[count];
+        long[] sortedUids = new long[count];
+        for (int i = 0; i < count; i++) {
+            uidOrder[i] = (int) keys[i];
+            sortedUids[i] = keys[i] >>> 32;
+        }
+
+        built.nameTable = table;
+        built.uidOrder = uidOrder;
+        built.sortedUids = sortedUids;
+    }
+
+    /**
+     * FNV-1a of the name bytes, computed from the chars for ASCII names so lookups don't encode the name.
+     */
+    private static int hash(String name)
+    {
+        int h = 0x811c9dc5;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+
+            if (c >= ASCII) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                return hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+            }
+            h = (h ^ c) * 0x01000193;
+        }
+
+        return mix(h);
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int length)
+    {
+        int h = 0x811c9dc5;
+
+        for (int i = start; i < start + length; i++) {
+            h = (h ^ (buffer.get(i) & 0xff)) * 0x01000193;
+        }
+
+        return mix(h);
+    }
+
+    private static int mix(int h)
+    {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean nameEquals(Snapshot current, int entry, String name)
+    {
+        int start = current.nameStarts[entry];
+        int length = current.nameLengths[entry];
+
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= ASCII) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                return bytes.length == length && equals(current.buffer, start, bytes);
+            }
+        }
+
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (current.buffer.get(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean equals(ByteBuffer buffer, int start, byte[] bytes)
+    {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean sameName(Snapshot built, int entry, int other)
+    {
+        int length = built.nameLengths[entry];
+
+        if (length != built.nameLengths[other]) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (built.buffer.get(built.nameStarts[entry] + i) != built.buffer.get(built.nameStarts[other] + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static PAMAccount createAccount(Snapshot current, int entry)
+    {
+        return new PAMAccount(decode(current.buffer, current.nameStarts[entry], current.nameLengths[entry]),
+            String.valueOf(current.uids[entry]),
+            decode(current.buffer, current.gecosStarts[entry], current.gecosLengths[entry]));
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int length)
+    {
+        byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of long lived helper processes each answering many account lookups and password verifications over their
+ * standard input and output, instead of launching a process per verification.
+ * <p>
+ * The helper reads one request per line and writes one response per line (see the bundled
+ * <code>pamauth-helper.py</code> for the protocol).  Each request must be answered within the PAM timeout, otherwise
+ * the helper is killed and replaced.  Idle helpers are checked with a <code>PING</code> before being reused, and
+ * helpers that exited are restarted on demand.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMProcessPool
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMProcessPool.class);
+
+    private static final String HELPER_RESOURCE = "pamauth-helper.py";
+
+    /** The interpreter of the bundled helper. */
+    private static final String PYTHON = "python3";
+
+    private static final String OK = "OK";
+
+    private static final char SEP = ' ';
+
+    /** Marks the end of the output of a helper process in its response queue. */
+    private static final String EOF = new String("EOF");
+
+    private final List<String> command;
+
+    private final int size;
+
+    private final long timeout;
+
+    private final long checkInterval;
+
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger workers = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong restarts = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /** The source of the bundled helper, loaded once. */
+    private static volatile String helperScript;
+
+    /**
+     * A running helper process.
+     */
+    private final class Worker
+    {
+        private final Process process;
+
+        private final Writer writer;
+
+        private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+        private long lastUsed;
+
+        Worker() throws IOException
+        {
+            this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            this.writer = new OutputStreamWriter(this.process.getOutputStream(), StandardCharsets.UTF_8);
+            this.lastUsed = System.nanoTime();
+
+            Thread reader = new Thread(this::readResponses, "PAM helper reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readResponses()
+        {
+            try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(this.process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    this.responses.add(line);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("PAM helper output closed", e);
+            } finally {
+                this.responses.add(EOF);
+            }
+        }
+
+        /**
+         * @return the response line or null if no response came before the timeout
+         */
+        String request(String line, long timeoutNanos) throws IOException, InterruptedException
+        {
+            this.responses.clear();
+            this.writer.write(line);
+            this.writer.write('\n');
+            this.writer.flush();
+
+            String response = this.responses.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+            if (response == EOF) {
+                throw new IOException("PAM helper process exited with " + this.process.waitFor());
+            }
+            this.lastUsed = System.nanoTime();
+
+            return response;
+        }
+
+        boolean isHealthy(long remainingNanos) throws InterruptedException
+        {
+            if (!this.process.isAlive()) {
+                return false;
+            }
+            if (System.nanoTime() - this.lastUsed < TimeUnit.MILLISECONDS.toNanos(checkInterval)) {
+                return true;
+            }
+
+            try {
+                return "PONG".equals(request("PING", remainingNanos));
+            } catch (IOException e) {
+                LOGGER.debug("PAM helper health check failed", e);
+                return false;
+            }
+        }
+
+        void destroy()
+        {
+            this.process.destroyForcibly();
+        }
+    }
+
+    /**
+     * @param configuration the PAM configuration providing the command, pool size, timeout and check interval
+     * @throws XWikiPAMException if the bundled helper can't be loaded
+     */
+    public XWikiPAMProcessPool(XWikiPAMConfig configuration) throws XWikiPAMException
+    {
+        this(createCommand(configuration.getPoolCommand(), configuration.getPAMService()), configuration.getPoolSize(),
+             configuration.getPAMTimeout(), configuration.getPoolCheckInterval());
+    }
+
+    /**
+     * @param command the helper command and its arguments
+     * @param size the maximum number of helper processes
+     * @param timeout the number of milliseconds to wait for a helper and for its response
+     * @param checkInterval the number of milliseconds a helper can stay idle before being checked on reuse
+     */
+    public XWikiPAMProcessPool(List<String> command, int size, long timeout, long checkInterval)
+    {
+        this.command = new ArrayList<>(command);
+        this.size = Math.max(1, size);
+        this.timeout = timeout;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * @param command the configured helper command line or null for the bundled helper
+     * @param service the PAM service used by the bundled helper
+     * @return the command and its arguments
+     */
+    private static List<String> createCommand(String command, String service) throws XWikiPAMException
+    {
+        if (StringUtils.isNotBlank(command)) {
+            return Arrays.asList(StringUtils.split(command));
+        }
+
+        String script = helperScript;
+
+        if (script == null) {
+            try (InputStream in = XWikiPAMProcessPool.class.getResourceAsStream(HELPER_RESOURCE)) {
+                script = IOUtils.toString(in, StandardCharsets.UTF_8);
+                helperScript = script;
+            } catch (IOException | NullPointerException e) {
+                throw new XWikiPAMException("Could not load the PAM helper script " + HELPER_RESOURCE, e);
+            }
+        }
+
+        return Arrays.asList(PYTHON, "-c", script, service);
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this pool was created with the settings of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        try {
+            return this.size == configuration.getPoolSize() && this.timeout == configuration.getPAMTimeout()
+                && this.checkInterval == configuration.getPoolCheckInterval()
+                && createCommand(configuration.getPoolCommand(), configuration.getPAMService()).equals(this.command);
+        } catch (XWikiPAMException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @return the account of the user or null if it doesn't exist
+     * @throws XWikiPAMException if the helper fails or doesn't answer in time
+     */
+    public PAMAccount getAccount(String userName) throws XWikiPAMException
+    {
+        if (!isValidUserName(userName)) {
+            return null;
+        }
+
+        String response = call("USER" + SEP + userName);
+        PAMAccount account = null;
+
+        if (response.startsWith(OK)) {
+            String[] parts = StringUtils.splitPreserveAllTokens(response, SEP);
+            if (parts.length < 2) {
+                throw new XWikiPAMException("Unexpected PAM helper response: " + response);
+            }
+            String fullName = parts.length > 2
+                ? new String(Base64.getDecoder().decode(parts[2]), StandardCharsets.UTF_8) : null;
+            account = new PAMAccount(userName, parts[1], fullName);
+        }
+
+        return account;
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @param password the password of the user
+     * @return true if the password is valid for the user
+     * @throws XWikiPAMException if the helper fails or doesn't answer in time
+     */
+    public boolean verify(String userName, String password) throws XWikiPAMException
+    {
+        if (!isValidUserName(userName)) {
+            return false;
+        }
+
+        String encoded = Base64.getEncoder().encodeToString(password.getBytes(StandardCharsets.UTF_8));
+
+        return OK.equals(call("AUTH" + SEP + userName + SEP + encoded));
+    }
+
+    private boolean isValidUserName(String userName)
+    {
+        if (StringUtils.isEmpty(userName)) {
+            return false;
+        }
+        for (int i = 0; i < userName.length(); i++) {
+            char c = userName.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String call(String line) throws XWikiPAMException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+        Worker worker = borrow(deadline);
+        String response = null;
+
+        this.requests.incrementAndGet();
+        try {
+            response = worker.request(line, deadline - System.nanoTime());
+        } catch (IOException e) {
+            throw new XWikiPAMException("PAM helper process failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while waiting for the PAM helper", e);
+        } finally {
+            if (response != null) {
+                release(worker);
+            } else {
+                discard(worker);
+            }
+        }
+
+        if (response == null) {
+            this.timeouts.incrementAndGet();
+            throw new XWikiPAMException("PAM helper did not answer within " + this.timeout + "ms");
+        }
+
+        return response;
+    }
+
+    private Worker borrow(long deadline) throws XWikiPAMException
+    {
+        if (this.closed) {
+            throw new XWikiPAMException("PAM helper pool is closed");
+        }
+
+        try {
+            while (true) {
+                Worker worker = this.idle.poll();
+
+                if (worker == null) {
+                    worker = startWorker();
+                }
+                if (worker == null) {
+                    worker = this.idle.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (worker == null) {
+                        this.timeouts.incrementAndGet();
+                        throw new XWikiPAMException("No PAM helper available within " + this.timeout + "ms");
+                    }
+                }
+                if (worker.isHealthy(deadline - System.nanoTime())) {
+                    return worker;
+                }
+
+                LOGGER.info("Restarting unhealthy PAM helper process");
+                discard(worker);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while waiting for a PAM helper", e);
+        }
+    }
+
+    /**
+     * @return a new helper process or null if the pool is already full
+     */
+    private Worker startWorker() throws XWikiPAMException
+    {
+        while (true) {
+            int count = this.workers.get();
+
+            if (count >= this.size) {
+                return null;
+            }
+            if (this.workers.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+
+        try {
+            return new Worker();
+        } catch (IOException e) {
+            this.workers.decrementAndGet();
+            throw new XWikiPAMException("Could not start PAM helper " + this.command.get(0), e);
+        }
+    }
+
+    private void release(Worker worker)
+    {
+        if (this.closed) {
+            discard(worker);
+        } else {
+            this.idle.add(worker);
+        }
+    }
+
+    private void discard(Worker worker)
+    {
+        worker.destroy();
+        this.workers.decrementAndGet();
+        this.restarts.incrementAndGet();
+    }
+
+    /**
+     * Stop all idle helper processes; busy ones are stopped when their current request completes.
+     */
+    public void close()
+    {
+        this.closed = true;
+
+        for (Worker worker = this.idle.poll(); worker != null; worker = this.idle.poll()) {
+            discard(worker);
+        }
+    }
+
+    /**
+     * @return the number of running helper processes
+     */
+    public int getProcessCount()
+    {
+        return this.workers.get();
+    }
+
+    /**
+     * @return the number of requests sent to helper processes
+     */
+    public long getRequestCount()
+    {
+        return this.requests.get();
+    }
+
+    /**
+     * @return the number of helper processes stopped because they failed, timed out or the pool was closed
+     */
+    public long getRestartCount()
+    {
+        return this.restarts.get();
+    }
+
+    /**
+     * @return the number of requests that did not get a helper or a response within the timeout
+     */
+    public long getTimeoutCount()
+    {
+        return this.timeouts.get();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the UNIX user name from the remote user given by the container or the SSO HTTP header, for example to
+ * strip the Kerberos realm of <code>jdoe@EXAMPLE.COM</code>.
+ * <ul>
+ * <li><code>pam_remoteUserParser</code>: a regular expression searched in the remote user; if it doesn't match the
+ * remote user is used as is</li>
+ * <li><code>pam_remoteUserMapping.&lt;group&gt;</code>: the properties set by a group of the expression; the group
+ * listing <code>login</code> gives the user name (the first group if none does)</li>
+ * <li><code>pam_remoteUserMapping.login</code>: <code>value=user|...</code> pairs converting the extracted user name,
+ * compared ignoring case</li>
+ * </ul>
+ * Instances are immutable and compiled once per configuration snapshot; parsing a remote user only allocates the
+ * resulting string.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMRemoteUserParser
+{
+    /**
+     * The property giving the user name in <code>pam_remoteUserMapping.*</code>.
+     */
+    public static final String LOGIN = "login";
+
+    private final Pattern pattern;
+
+    private final int loginGroup;
+
+    private final Map<String, String> loginMapping;
+
+    /** Matchers are reset for each remote user rather than created. */
+    private final ThreadLocal<Matcher> matchers;
+
+    /**
+     * @param configuration the PAM configuration providing the expression and the mappings
+     */
+    public XWikiPAMRemoteUserParser(XWikiPAMConfig configuration)
+    {
+        this(configuration.getRemoteUserPattern(), findLoginGroup(configuration),
+             configuration.getRemoteUserMapping(LOGIN, true));
+    }
+
+    /**
+     * @param pattern the expression searched in the remote user, or null to use the remote user as is
+     * @param loginGroup the group of the expression giving the user name (0 for the whole match)
+     * @param loginMapping the conversions of the extracted user name
+     */
+    public XWikiPAMRemoteUserParser(Pattern pattern, int loginGroup, Map<String, String> loginMapping)
+    {
+        this.pattern = pattern;
+        this.loginGroup = loginGroup;
+
+        if (loginMapping.isEmpty()) {
+            this.loginMapping = Collections.emptyMap();
+        } else {
+            Map<String, String> mapping = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            mapping.putAll(loginMapping);
+            this.loginMapping = Collections.unmodifiableMap(mapping);
+        }
+
+        this.matchers = pattern != null ? ThreadLocal.withInitial(() -> pattern.matcher("")) : null;
+    }
+
+    private static int findLoginGroup(XWikiPAMConfig configuration)
+    {
+        Pattern pattern = configuration.getRemoteUserPattern();
+
+        if (pattern == null) {
+            return 0;
+        }
+
+        int groupCount = pattern.matcher("").groupCount();
+
+        for (int group = 1; group <= groupCount; group++) {
+            List<String> properties = configuration.getRemoteUserMapping(group);
+            if (properties.contains(LOGIN)) {
+                return group;
+            }
+        }
+
+        return Math.min(1, groupCount);
+    }
+
+    /**
+     * @param remoteUser the remote user
+     * @return the UNIX user name
+     */
+    public String parse(String remoteUser)
+    {
+        String userName = remoteUser;
+
+        if (this.matchers != null) {
+            Matcher matcher = this.matchers.get().reset(remoteUser);
+
+            if (matcher.find()) {
+                String group = matcher.group(this.loginGroup);
+                if (group != null) {
+                    userName = group;
+                }
+            }
+        }
+
+        String mapped = this.loginMapping.get(userName);
+
+        return mapped != null ? mapped : userName;
+    }
+
+    /**
+     * @return true if the remote user is used as is
+     */
+    public boolean isIdentity()
+    {
+        return this.pattern == null && this.loginMapping.isEmpty();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs and verifies the stateless SSO authentication cookie, letting any node sharing the key trust the principal a
+ * node resolved for a remote user until the cookie expires, instead of authenticating the remote user again.
+ * <p>
+ * The cookie value is <code>kid.payload.mac</code>: the identifier of the signing key, the Base64 (URL safe) payload
+ * holding the expiration time, the principal and the remote user, and the HMAC-SHA256 of both.  The first configured
+ * key signs new cookies; the other keys are only accepted when verifying, so a new key can be rolled out before the
+ * previous one is dropped.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMSSOCookie
+{
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final char SEPARATOR = '.';
+
+    private static final String FIELD_SEPARATOR = "\n";
+
+    private static final int PAYLOAD_FIELDS = 3;
+
+    private static final int KEY_ID_LENGTH = 8;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final List<String> keys;
+
+    private final long ttl;
+
+    private final String signingKeyId;
+
+    /**
+     * The keys accepted when verifying, by key identifier.
+     */
+    private final Map<String, SecretKeySpec> verificationKeys = new LinkedHashMap<>();
+
+    private final AtomicLong issued = new AtomicLong();
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param keys the secret keys, the first one signing the new cookies
+     * @param ttl the number of milliseconds the cookies are valid
+     */
+    public XWikiPAMSSOCookie(List<String> keys, long ttl)
+    {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("No SSO cookie key");
+        }
+
+        this.keys = new ArrayList<>(keys);
+        this.ttl = Math.max(0, ttl);
+        for (String key : keys) {
+            this.verificationKeys.putIfAbsent(getKeyId(key),
+                new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+        }
+        this.signingKeyId = getKeyId(keys.get(0));
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this signer was created with the settings of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        return this.keys.equals(configuration.getSSOCookieKeys())
+            && this.ttl == configuration.getSSOCookieTTL();
+    }
+
+    /**
+     * @return the number of seconds the cookies are valid, as cookie maximum age
+     */
+    public int getMaxAge()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, this.ttl / 1000);
+    }
+
+    /**
+     * @param principal the name of the principal resolved for the remote user
+     * @param remoteUser the remote user
+     * @param now the current time in milliseconds
+     * @return the cookie value
+     */
+    public String sign(String principal, String remoteUser, long now)
+    {
+        String payload = ENCODER.encodeToString(
+            (now + this.ttl + FIELD_SEPARATOR + principal + FIELD_SEPARATOR + remoteUser)
+                .getBytes(StandardCharsets.UTF_8));
+        String signed = this.signingKeyId + SEPARATOR + payload;
+
+        this.issued.incrementAndGet();
+
+        return signed + SEPARATOR + ENCODER.encodeToString(mac(this.verificationKeys.get(this.signingKeyId), signed));
+    }
+
+    /**
+     * @param value the cookie value
+     * @param remoteUser the current remote user
+     * @param now the current time in milliseconds
+     * @return the name of the principal of the cookie, or null if the cookie wasn't signed with a configured key, is
+     *         expired or was issued for another remote user
+     */
+    public String verify(String value, String remoteUser, long now)
+    {
+        String principal = null;
+        int payloadStart = value.indexOf(SEPARATOR);
+        int macStart = value.lastIndexOf(SEPARATOR);
+
+        if (payloadStart > 0 && macStart > payloadStart) {
+            SecretKeySpec key = this.verificationKeys.get(value.substring(0, payloadStart));
+
+            try {
+                if (key != null && MessageDigest.isEqual(mac(key, value.substring(0, macStart)),
+                    DECODER.decode(value.substring(macStart + 1)))) {
+                    String[] fields = new String(DECODER.decode(value.substring(payloadStart + 1, macStart)),
+                        StandardCharsets.UTF_8).split(FIELD_SEPARATOR, PAYLOAD_FIELDS);
+
+                    if (fields.length == PAYLOAD_FIELDS && Long.parseLong(fields[0]) > now
+                        && fields[2].equals(remoteUser)) {
+                        principal = fields[1];
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // Not Base64 or not a number: not a cookie we issued
+            }
+        }
+
+        (principal != null ? this.accepted : this.rejected).incrementAndGet();
+
+        return principal;
+    }
+
+    private static String getKeyId(String key)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ENCODER.encodeToString(digest).substring(0, KEY_ID_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] mac(SecretKeySpec key, String data)
+    {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @return the number of cookies signed
+     */
+    public long getIssuedCount()
+    {
+        return this.issued.get();
+    }
+
+    /**
+     * @return the number of cookies accepted, each sparing an authentication
+     */
+    public long getAcceptedCount()
+    {
+        return this.accepted.get();
+    }
+
+    /**
+     * @return the number of cookies rejected (forged, expired, signed with a removed key or for another remote user)
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected.get();
+    }
+}
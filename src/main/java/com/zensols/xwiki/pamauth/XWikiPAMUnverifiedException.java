@@ -0,0 +1,47 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+/**
+ * Thrown when a password could not be checked at all: the verification was rejected for lack of capacity or timed
+ * out.  Unlike a wrong password, this is not a failed login.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMUnverifiedException extends XWikiPAMException
+{
+    /**
+     * @param message error message.
+     */
+    public XWikiPAMUnverifiedException(String message)
+    {
+        super(message);
+    }
+
+    /**
+     * @param message error message.
+     * @param e the wrapped exception.
+     */
+    public XWikiPAMUnverifiedException(String message, Exception e)
+    {
+        super(message, e);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves user profile updates on a background thread so they stay out of the login request (write-behind).  Pending
+ * updates of the same user are coalesced: only the last one is saved.
+ * <p>
+ * Updates are saved in the order users were first enqueued.  When the queue is full {@link #enqueue(String, Update)}
+ * refuses the update so the caller can save it itself.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMUpdateQueue
+{
+    /**
+     * A profile update.
+     */
+    @FunctionalInterface
+    public interface Update
+    {
+        /**
+         * @throws Exception if the update fails
+         */
+        void run() throws Exception;
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMUpdateQueue.class);
+
+    private final int capacity;
+
+    /** Pending updates by user key, in the order the keys were enqueued. */
+    private final Map<String, Update> pending = new LinkedHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = this.lock.newCondition();
+
+    private final Thread worker;
+
+    private boolean stopped;
+
+    private final AtomicLong enqueued = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final AtomicLong saves = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong saveNanos = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of users with a pending update
+     */
+    public XWikiPAMUpdateQueue(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.worker = new Thread(this::work, "PAM profile writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * @param key identifies the user profile updated
+     * @param update saves the user profile
+     * @return true if the update will be saved in the background, false if the queue is full or shut down
+     */
+    public boolean enqueue(String key, Update update)
+    {
+        this.lock.lock();
+        try {
+            if (this.stopped) {
+                return false;
+            }
+
+            if (this.pending.containsKey(key)) {
+                // Replaces the pending update but keeps its position
+                this.pending.put(key, update);
+                this.coalesced.incrementAndGet();
+            } else if (this.pending.size() < this.capacity) {
+                this.pending.put(key, update);
+                this.notEmpty.signal();
+            } else {
+                this.rejections.incrementAndGet();
+                return false;
+            }
+
+            this.enqueued.incrementAndGet();
+
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void work()
+    {
+        while (true) {
+            Update update;
+
+            this.lock.lock();
+            try {
+                while (this.pending.isEmpty()) {
+                    if (this.stopped) {
+                        return;
+                    }
+                    this.notEmpty.awaitUninterruptibly();
+                }
+
+                Iterator<Update> it = this.pending.values().iterator();
+                update = it.next();
+                it.remove();
+            } finally {
+                this.lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            try {
+                update.run();
+            } catch (Exception e) {
+                this.failures.incrementAndGet();
+                LOGGER.warn("Failed to save user profile update", e);
+            } finally {
+                this.saveNanos.addAndGet(System.nanoTime() - start);
+                this.saves.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting updates; the background thread exits once the pending updates are saved.
+     */
+    public void shutdown()
+    {
+        this.lock.lock();
+        try {
+            this.stopped = true;
+            this.notEmpty.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of users with a pending update
+     */
+    public int getQueueDepth()
+    {
+        this.lock.lock();
+        try {
+            return this.pending.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of updates accepted
+     */
+    public long getEnqueuedCount()
+    {
+        return this.enqueued.get();
+    }
+
+    /**
+     * @return the number of updates that replaced a pending update of the same user
+     */
+    public long getCoalescedCount()
+    {
+        return this.coalesced.get();
+    }
+
+    /**
+     * @return the fraction of the accepted updates that didn't need their own save
+     */
+    public double getCoalescingRatio()
+    {
+        long count = this.enqueued.get();
+
+        return count == 0 ? 0 : (double) this.coalesced.get() / count;
+    }
+
+    /**
+     * @return the number of updates refused because the queue was full
+     */
+    public long getRejectionCount()
+    {
+        return this.rejections.get();
+    }
+
+    /**
+     * @return the number of updates saved (or failed)
+     */
+    public long getSaveCount()
+    {
+        return this.saves.get();
+    }
+
+    /**
+     * @return the number of updates that failed
+     */
+    public long getFailureCount()
+    {
+        return this.failures.get();
+    }
+
+    /**
+     * @return the average number of milliseconds to save an update
+     */
+    public double getAverageSaveLatency()
+    {
+        long count = this.saves.get();
+
+        return count == 0 ? 0 : this.saveNanos.get() / 1e6 / count;
+    }
+}
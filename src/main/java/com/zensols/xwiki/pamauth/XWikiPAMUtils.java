@@ -19,7 +19,18 @@
  */
 package com.zensols.xwiki.pamauth;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
@@ -28,10 +39,12 @@ import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.classes.BaseClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.model.reference.DocumentReference;
 
-import com.zensols.unix.userauth.UserManager;
-import com.zensols.unix.userauth.User;
+import com.xpn.xwiki.web.Utils;
 
 class XWikiPAMUtils
 {
@@ -45,16 +58,98 @@ class XWikiPAMUtils
      */
     private static final String XWIKI_USER_SPACE = "XWiki";
 
+    /**
+     * The existing pages of the user space named after a user name or the user name with a suffix.
+     */
+    private static final String PROFILE_NAMES_QUERY =
+        "select doc.name from XWikiDocument as doc where doc.space=? and (doc.name=? or doc.name like ? escape '!')";
+
+    private static final char LIKE_ESCAPE = '!';
+
+    /**
+     * Number of times a free profile name is resolved again when the resolved page turns out to exist.
+     */
+    private static final int PROFILE_NAME_ATTEMPTS = 3;
+
+    /**
+     * Time after which a profile name reserved by a provisioning that never completed is available again.
+     */
+    private static final long PROFILE_RESERVATION_TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Profile pages being created on this node, with the time they were reserved, so that concurrent provisionings
+     * resolving the same name don't create the same page.
+     */
+    private static final ConcurrentMap<DocumentReference, Long> RESERVED_PROFILES = new ConcurrentHashMap<>();
+
+    /**
+     * Number of milliseconds between two checks for the profile being created by another node.
+     */
+    private static final long PROVISIONING_POLL = 200;
+
+    /**
+     * Profiles being created on this node by wiki and normalized user name, completed with the created profile, so
+     * that concurrent first logins of a user wait for a single creation.
+     */
+    private static final ConcurrentMap<String, CompletableFuture<DocumentReference>> PROVISIONINGS =
+        new ConcurrentHashMap<>();
+
     private XWikiPAMConfig configuration;
-    private UserManager userManager;
+    private PAMUserBackend backend;
+    private XWikiPAMVerdictCache verdictCache;
+    private XWikiPAMAccountCache accountCache;
+    private XWikiPAMExecutor executor;
+    private XWikiPAMConcurrencyLimiter limiter;
+    private XWikiPAMUpdateQueue updateQueue;
+    private XWikiPAMGroupIndex groupIndex;
 
     XWikiPAMUtils(XWikiPAMConfig configuration)
+    {
+        this(configuration, Utils.getComponent(PAMUserBackend.class, configuration.getBackend()), null, null, null,
+             null, null, null);
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @param backend looks up accounts and verifies passwords
+     * @param verdictCache the cache of successful password verifications or null to always verify
+     * @param accountCache the cache of account attributes used by trusted logins or null to always look them up
+     * @param executor runs the backend operations with the PAM timeout, or null to run them on the calling thread
+     * @param limiter limits the concurrent password verifications, or null for no limit
+     * @param updateQueue saves the updates of existing profiles in the background, or null to save them on the
+     *            calling thread
+     * @param groupIndex the UNIX groups of the users, to check the allowed groups and synchronize the mapped XWiki
+     *            groups, or null to do neither
+     */
+    XWikiPAMUtils(XWikiPAMConfig configuration, PAMUserBackend backend, XWikiPAMVerdictCache verdictCache,
+        XWikiPAMAccountCache accountCache, XWikiPAMExecutor executor, XWikiPAMConcurrencyLimiter limiter,
+        XWikiPAMUpdateQueue updateQueue, XWikiPAMGroupIndex groupIndex)
     {
         this.configuration = configuration;
-        this.userManager = new UserManager();
+        this.backend = backend;
+        this.verdictCache = verdictCache;
+        this.accountCache = accountCache;
+        this.executor = executor;
+        this.limiter = limiter;
+        this.updateQueue = updateQueue;
+        this.groupIndex = groupIndex;
     }
 
     /**
+     * @param context the XWiki context
+     * @return the PAM profile class helper of the current wiki, verified once per wiki
+     * @throws XWikiException if the class can't be loaded or updated
+     */
+    private PAMProfileXClass getProfileClass(XWikiContext context) throws XWikiException
+    {
+        return Utils.<PAMProfileClassCache>getComponent(PAMProfileClassCache.class).getProfileClass(context);
+    }
+
+    /**
+     * Resolve the first free name among <code>XWiki.name</code>, <code>XWiki.name_1</code>,
+     * <code>XWiki.name_2</code>... with a single query over the existing page names and reserve it until the profile
+     * is created (see {@link #releaseUserProfile(DocumentReference)}).
+     *
      * @param validXWikiUserName a valid XWiki username for which to get a profile document
      * @param context the XWiki context
      * @return a (new) XWiki document for the passed username
@@ -62,28 +157,111 @@ class XWikiPAMUtils
      */
     private XWikiDocument getAvailableUserProfile(String validXWikiUserName, XWikiContext context) throws XWikiException
     {
-        DocumentReference userReference =
-            new DocumentReference(context.getWikiId(), XWIKI_USER_SPACE, validXWikiUserName);
-
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("looking up {} in context={} with ref={}", validXWikiUserName, context, userReference);
+            LOGGER.debug("looking up {} in context={}", validXWikiUserName, context);
         }
 
-        // Check if the default profile document is available
-        for (int i = 0; true; ++i) {
-            if (i > 0) {
-                userReference =
-                    new DocumentReference(context.getWikiId(), XWIKI_USER_SPACE, validXWikiUserName + "_" + i);
+        for (int attempt = 0; attempt < PROFILE_NAME_ATTEMPTS; ++attempt) {
+            // Only the pages starting with the user name and an underscore, not any character
+            String suffixedNames = escapeLike(validXWikiUserName + '_') + '%';
+            List<String> pageNames = context.getWiki().getStore().search(PROFILE_NAMES_QUERY, 0, 0,
+                Arrays.asList(XWIKI_USER_SPACE, validXWikiUserName, suffixedNames), context);
+            DocumentReference userReference;
+
+            // Skip the names reserved by concurrent provisionings
+            for (int suffix = getFreeProfileSuffix(validXWikiUserName, pageNames, 0); true;
+                suffix = getFreeProfileSuffix(validXWikiUserName, pageNames, suffix + 1)) {
+                userReference = new DocumentReference(context.getWikiId(), XWIKI_USER_SPACE,
+                    suffix == 0 ? validXWikiUserName : validXWikiUserName + "_" + suffix);
+                if (reserveUserProfile(userReference)) {
+                    break;
+                }
             }
 
             XWikiDocument doc = context.getWiki().getDocument(userReference, context);
 
             // Don't use non user existing document
             if (doc.isNew()) {
-                LOGGER.debug("returning new document");
+                LOGGER.debug("returning new document {}", userReference);
                 return doc;
             }
+
+            // Created since the query (e.g. by another node)
+            releaseUserProfile(userReference);
         }
+
+        throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+            "Could not find a free profile page name for user [" + validXWikiUserName + "]");
+    }
+
+    /**
+     * @param value the literal start of a <code>like</code> pattern
+     * @return the value with the <code>like</code> wildcards and the escape character escaped for
+     *         <code>escape '!'</code>
+     */
+    static String escapeLike(String value)
+    {
+        StringBuilder escaped = new StringBuilder(value.length() + 4);
+
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+
+            if (c == LIKE_ESCAPE || c == '_' || c == '%') {
+                escaped.append(LIKE_ESCAPE);
+            }
+            escaped.append(c);
+        }
+
+        return escaped.toString();
+    }
+
+    /**
+     * @param userName the base name of the profile pages
+     * @param pageNames the names of the existing pages, which might include unrelated pages with the same prefix
+     * @param from the first suffix to consider, where 0 stands for the user name without suffix
+     * @return the smallest suffix starting at <code>from</code> for which no page exists
+     */
+    static int getFreeProfileSuffix(String userName, Collection<String> pageNames, int from)
+    {
+        BitSet used = new BitSet();
+        int prefixLength = userName.length() + 1;
+
+        for (String pageName : pageNames) {
+            if (pageName.equals(userName)) {
+                used.set(0);
+            } else if (pageName.length() > prefixLength && pageName.startsWith(userName)
+                && pageName.charAt(userName.length()) == '_' && pageName.charAt(prefixLength) != '0') {
+                try {
+                    int suffix = Integer.parseInt(pageName.substring(prefixLength));
+                    if (suffix > 0) {
+                        used.set(suffix);
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a profile page of this user name
+                }
+            }
+        }
+
+        return used.nextClearBit(from);
+    }
+
+    private static boolean reserveUserProfile(DocumentReference userReference)
+    {
+        long now = System.nanoTime();
+        Long reserved = RESERVED_PROFILES.putIfAbsent(userReference, now);
+
+        // Take over reservations of provisionings that never completed
+        return reserved == null || (now - reserved > PROFILE_RESERVATION_TIMEOUT
+            && RESERVED_PROFILES.replace(userReference, reserved, now));
+    }
+
+    /**
+     * @param userReference the profile page reserved by {@link #getAvailableUserProfile(String, XWikiContext)}, now
+     *            created or abandoned
+     */
+    private static void releaseUserProfile(DocumentReference userReference)
+    {
+        RESERVED_PROFILES.remove(userReference);
     }
 
     /**
@@ -111,7 +289,7 @@ class XWikiPAMUtils
     public XWikiDocument getUserProfileByUserName(String validXWikiUserName, String userName, XWikiContext context)
         throws XWikiException
     {
-        PAMProfileXClass pamXClass = new PAMProfileXClass(context);
+        PAMProfileXClass pamXClass = getProfileClass(context);
         // Try default profile name (generally in the cache)
         XWikiDocument userProfile = null;
 
@@ -125,8 +303,11 @@ class XWikiPAMUtils
         }
 
         if ((userProfile == null) || !userName.equalsIgnoreCase(pamXClass.getUserName(userProfile))) {
-            // Search for existing profile with provided userName
-            userProfile = pamXClass.searchDocumentByUserName(userName);
+            // Search for existing profile with provided userName, in the index first
+            userProfile = getIndexedUserProfile(pamXClass, userName, context);
+            if (userProfile == null) {
+                userProfile = pamXClass.searchDocumentByUserName(userName);
+            }
 
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("searched userName={} -> profile={}", userName, userProfile);
@@ -145,6 +326,32 @@ class XWikiPAMUtils
         return userProfile;
     }
 
+    /**
+     * @param pamXClass the PAM profile class helper
+     * @param userName the UNIX user name
+     * @param context the XWiki context
+     * @return the profile of the user found with the profile index, or null if the index doesn't know the user
+     * @throws XWikiException when a problem occurs while loading the user profile
+     */
+    private XWikiDocument getIndexedUserProfile(PAMProfileXClass pamXClass, String userName, XWikiContext context)
+        throws XWikiException
+    {
+        PAMProfileIndex index = Utils.getComponent(PAMProfileIndex.class);
+        DocumentReference reference = index.getByUserName(userName, context.getWikiId());
+
+        if (reference != null) {
+            XWikiDocument userProfile = context.getWiki().getDocument(reference, context);
+
+            // The index might be behind a change made on another node
+            if (!userProfile.isNew() && userName.equalsIgnoreCase(pamXClass.getUserName(userProfile))) {
+                LOGGER.debug("indexed userName={} -> profile={}", userName, reference);
+                return userProfile;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Create an XWiki user and set all mapped attributes from PAM to XWiki attributes.
      *
@@ -191,9 +398,12 @@ class XWikiPAMUtils
         }
 
         // Update pam profile object
-        PAMProfileXClass pamXClass = new PAMProfileXClass(context);
+        PAMProfileXClass pamXClass = getProfileClass(context);
 
-        if (pamXClass.updatePAMObject(createdUserProfile, userName, uid)) {
+        boolean needsUpdate = pamXClass.updatePAMObject(createdUserProfile, userName, uid);
+        needsUpdate |= updateSyncState(pamXClass, createdUserProfile, attributes, needsUpdate);
+
+        if (needsUpdate) {
             context.getWiki().saveDocument(createdUserProfile, "Created user profile from PAM server", context);
         }
     }
@@ -210,6 +420,28 @@ class XWikiPAMUtils
      */
     protected void updateUserFromPAM(XWikiDocument userProfile, Map<String, String> userMappings,
                                      String userName, String uid, XWikiContext context) throws XWikiException
+    {
+        if (applyUserFromPAM(userProfile, userMappings, userName, uid, true, context)) {
+            context.getWiki().saveDocument(userProfile, "Synchronized user profile with PAM server", true, context);
+        }
+    }
+
+    /**
+     * Sets attributes on the user object based on attribute values provided by the PAM, without saving the user
+     * profile.
+     *
+     * @param userProfile the XWiki user profile document.
+     * @param userMappings the attributes of the PAM user to update.
+     * @param userName the USERNAME of the PAM user to update
+     * @param uid value of the unique identifier for the user to update.
+     * @param recordSync true to record the synchronization (see {@link XWikiPAMConfig#getSyncInterval()}), which
+     *            only modifies an otherwise unchanged profile when the PAM attributes changed
+     * @param context the XWiki context.
+     * @return true if the user profile was modified and needs to be saved
+     * @throws XWikiException error when updating XWiki user.
+     */
+    boolean applyUserFromPAM(XWikiDocument userProfile, Map<String, String> userMappings, String userName, String uid,
+        boolean recordSync, XWikiContext context) throws XWikiException
     {
         BaseClass userClass = context.getWiki().getUserClass(context);
         BaseObject userObj = userProfile.getXObject(userClass.getDocumentReference());
@@ -229,35 +461,287 @@ class XWikiPAMUtils
         boolean needsUpdate = userObj.apply(clonedUser, false);
 
         // Update pam profile object
-        PAMProfileXClass ldaXClass = new PAMProfileXClass(context);
+        PAMProfileXClass ldaXClass = getProfileClass(context);
         needsUpdate |= ldaXClass.updatePAMObject(userProfile, userName, uid);
+        if (recordSync) {
+            needsUpdate |= updateSyncState(ldaXClass, userProfile, userMappings, needsUpdate);
+        }
 
-        if (needsUpdate) {
-            context.getWiki().saveDocument(userProfile, "Synchronized user profile with PAM server", true, context);
+        return needsUpdate;
+    }
+
+    /**
+     * Save the update of an existing user profile in the background with a copy of the XWiki context, replacing the
+     * update of the same profile still waiting to be saved.
+     *
+     * @param userReference the user profile to update
+     * @param userMappings the attributes of the PAM user
+     * @param userName the UNIX user name
+     * @param uid the UNIX user id
+     * @param context the XWiki context
+     * @return true if the update will be saved in the background, false if it must be saved by the caller
+     */
+    private boolean enqueueUpdate(final DocumentReference userReference, final Map<String, String> userMappings,
+        final String userName, final String uid, XWikiContext context)
+    {
+        if (this.updateQueue == null) {
+            return false;
         }
+
+        final XWikiContext updateContext = context.clone();
+
+        return this.updateQueue.enqueue(userReference.toString(), () -> callInContext(updateContext, () -> {
+            // Reload the profile, it might have changed while the update was waiting
+            XWikiDocument userProfile = updateContext.getWiki().getDocument(userReference, updateContext);
+            if (!userProfile.isNew()) {
+                updateUserFromPAM(userProfile, userMappings, userName, uid, updateContext);
+            }
+            return null;
+        }));
     }
 
-    protected Map<String, String> getUserAttributes(String userName, String password) throws XWikiException {
-        Map<String, String> attributes = null;
-        User user = this.userManager.createUser(userName);
-        boolean userExists = user.exists();
-        boolean isAuthorized = userExists && ((password == null) || user.isAuthorized(password));
-
-        LOGGER.debug("User {}: null password={}, exists={}, authorized={}",
-                     userName, (password == null), userExists, isAuthorized);
-
-        if (userExists && isAuthorized) {
-            String name = user.getFullName();
-            String[] nameParts = name.split(" ");
-
-            attributes = new  java.util.HashMap<String, String>();
-            attributes.put(PAMProfileXClass.PAM_XFIELD_USER_NAME, userName);
-            attributes.put(PAMProfileXClass.PAM_XFIELD_UID, String.valueOf(user.getUserId()));
-            attributes.put("full_name", name);
-            if (nameParts.length == 2) {
-                attributes.put("first_name", nameParts[0]);
-                attributes.put("last_name", nameParts[1]);
+    /**
+     * Run a task on a thread without XWiki execution context (e.g. a background thread), in an execution context
+     * initialized like the ones of the other background threads.  The request and the response of the passed context
+     * are dropped: the request they belong to might be over.
+     *
+     * @param context the XWiki context made current while the task runs, a copy of the context of a request or job
+     * @param task the work needing the XWiki context
+     * @param <T> the type of the result
+     * @return the result of the task
+     * @throws Exception if the execution context can't be initialized or the task fails
+     */
+    static <T> T callInContext(XWikiContext context, Callable<T> task) throws Exception
+    {
+        Execution execution = Utils.getComponent(Execution.class);
+        ExecutionContext executionContext = new ExecutionContext();
+
+        context.setRequest(null);
+        context.setResponse(null);
+        try {
+            // Makes the execution context current before running the initializers
+            Utils.<ExecutionContextManager>getComponent(ExecutionContextManager.class).initialize(executionContext);
+            context.declareInExecutionContext(executionContext);
+            return task.call();
+        } finally {
+            execution.removeContext();
+        }
+    }
+
+    /**
+     * Record the synchronization of a user profile when synchronizations are skipped for some time (see
+     * {@link XWikiPAMConfig#getSyncInterval()}).
+     *
+     * @param pamXClass the PAM profile class helper
+     * @param userProfile the synchronized user profile
+     * @param attributes the PAM attributes the profile was synchronized with
+     * @param saved true if the user profile is saved anyway
+     * @return true if the user profile was modified
+     */
+    private boolean updateSyncState(PAMProfileXClass pamXClass, XWikiDocument userProfile,
+        Map<String, String> attributes, boolean saved)
+    {
+        long interval = this.configuration.getSyncInterval();
+
+        if (interval <= 0) {
+            return false;
+        }
+
+        return pamXClass.updateSyncState(userProfile, PAMProfileXClass.fingerprint(attributes), interval,
+                                         System.currentTimeMillis(), saved);
+    }
+
+    /**
+     * @param userProfile the existing user profile
+     * @param fingerprint the fingerprint of the current PAM attributes or null to only check the time
+     * @param context the XWiki context
+     * @return true if the user profile was synchronized recently enough (with the same attributes) to skip it
+     * @throws XWikiException if the PAM profile class can't be loaded
+     */
+    private boolean isSynchronized(XWikiDocument userProfile, String fingerprint, XWikiContext context)
+        throws XWikiException
+    {
+        long interval = this.configuration.getSyncInterval();
+
+        return interval > 0
+            && getProfileClass(context).isSynchronized(userProfile, fingerprint, interval, System.currentTimeMillis());
+    }
+
+    /**
+     * Verify the credentials of a user (if a password is given) and get the UNIX attributes of the user, waiting at
+     * most the PAM timeout.
+     *
+     * @param userName the UNIX user name
+     * @param password the password of the user or null for trusted authentication
+     * @return the attributes of the user or null if the user doesn't exist or isn't authorized
+     * @throws XWikiException when the user can't be verified or the verification timed out
+     */
+    protected Map<String, String> getUserAttributes(String userName, String password) throws XWikiException
+    {
+        try {
+            return getUserAttributesAsync(userName, password).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while verifying user " + userName, e);
+        } catch (ExecutionException e) {
+            throw XWikiPAMCallerExecutor.unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Verify the credentials of a user (if a password is given) and get the UNIX attributes of the user, first
+     * looking for a previous successful verification in the verdict cache, or for trusted authentication in the
+     * account cache.  The backend is called on the PAM executor, which cancels it after the PAM timeout.  Users who
+     * aren't members of the allowed groups (see {@link XWikiPAMConfig#getAllowedGroups()}) are refused before
+     * anything else.
+     *
+     * @param userName the UNIX user name
+     * @param password the password of the user or null for trusted authentication
+     * @return the future attributes of the user, null if the user doesn't exist or isn't authorized
+     */
+    protected CompletableFuture<Map<String, String>> getUserAttributesAsync(final String userName,
+        final String password)
+    {
+        try {
+            if (!isAllowed(userName)) {
+                LOGGER.debug("User {}: not a member of the allowed groups", userName);
+                return CompletableFuture.completedFuture(null);
             }
+        } catch (XWikiException e) {
+            CompletableFuture<Map<String, String>> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        final boolean cacheable = (password != null) && (this.verdictCache != null);
+
+        if (cacheable) {
+            Map<String, String> attributes = this.verdictCache.get(userName, password);
+
+            if (attributes != null) {
+                LOGGER.debug("User {}: cached verdict attributes: {}", userName, attributes);
+                return CompletableFuture.completedFuture(attributes);
+            }
+        }
+
+        if (password == null && this.accountCache != null) {
+            Map<String, String> attributes = this.accountCache.get(userName, () -> refreshAccount(userName));
+
+            if (attributes != null) {
+                LOGGER.debug("User {}: cached account attributes: {}", userName, attributes);
+                return CompletableFuture.completedFuture(attributes);
+            }
+        }
+
+        CompletableFuture<Map<String, String>> future;
+
+        if (this.executor == null) {
+            future = new CompletableFuture<>();
+            try {
+                future.complete(fetchUserAttributes(userName, password));
+            } catch (XWikiException e) {
+                future.completeExceptionally(e);
+            }
+        } else {
+            future = this.executor.submit(() -> fetchUserAttributes(userName, password),
+                                          this.configuration.getPAMTimeout());
+        }
+
+        if (cacheable || this.accountCache != null) {
+            future = future.thenApply(attributes -> {
+                if (attributes != null) {
+                    if (cacheable) {
+                        this.verdictCache.put(userName, password, attributes);
+                    }
+                    if (this.accountCache != null) {
+                        this.accountCache.put(userName, attributes);
+                    }
+                }
+                return attributes;
+            });
+        }
+
+        return future;
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @return true if there are no allowed groups or the user is a member of one of them
+     * @throws XWikiException if the UNIX groups can't be loaded
+     */
+    private boolean isAllowed(String userName) throws XWikiException
+    {
+        List<String> allowedGroups = this.configuration.getAllowedGroups();
+
+        return allowedGroups.isEmpty() || this.groupIndex == null
+            || this.groupIndex.isMemberOfAny(userName, allowedGroups);
+    }
+
+    /**
+     * Apply the differences between the UNIX groups of the user and its membership in the mapped XWiki groups (see
+     * {@link XWikiPAMConfig#getGroupMappings()}).
+     *
+     * @param userProfile the profile of the user
+     * @param userName the UNIX user name
+     * @param context the XWiki context
+     */
+    private void syncGroups(XWikiDocument userProfile, String userName, XWikiContext context)
+    {
+        if (this.groupIndex == null || this.configuration.getGroupMappings().isEmpty()) {
+            return;
+        }
+
+        try {
+            XWikiPAMGroupSync groupSync = new XWikiPAMGroupSync(this.configuration, this.groupIndex, context);
+
+            if (groupSync.update(userProfile, userName) > 0) {
+                LOGGER.debug("Updating the groups of user [{}]", userName);
+                groupSync.save("Synchronized group membership with PAM server");
+            }
+        } catch (XWikiException e) {
+            LOGGER.error("Failed to synchronize the groups of user [{}]", userName, e);
+        }
+    }
+
+    /**
+     * Look up the account again in the background to replace its cached attributes before they expire.
+     */
+    private void refreshAccount(final String userName)
+    {
+        if (this.executor == null) {
+            // No thread to refresh it: the entry expires and the next login looks the account up
+            return;
+        }
+
+        this.executor.submit(() -> fetchUserAttributes(userName, null), this.configuration.getPAMTimeout())
+            .whenComplete((attributes, error) -> {
+                if (error != null) {
+                    LOGGER.debug("Failed to refresh the account of user {}", userName, error);
+                } else if (attributes != null) {
+                    this.accountCache.put(userName, attributes);
+                } else {
+                    this.accountCache.invalidate(userName);
+                }
+            });
+    }
+
+    private Map<String, String> fetchUserAttributes(String userName, String password) throws XWikiException
+    {
+        Map<String, String> attributes = null;
+        // Verify first so that failed logins don't pay for the account lookup
+        boolean isAuthorized = (password == null) || verify(userName, password);
+
+        if (!isAuthorized && this.verdictCache != null) {
+            // The password may have been changed: don't accept the previous one from the cache any longer
+            this.verdictCache.invalidate(userName);
+        }
+        PAMAccount account = isAuthorized ? this.backend.getAccount(userName, this.configuration) : null;
+
+        LOGGER.debug("User {}: null password={}, authorized={}, account={}",
+                     userName, (password == null), isAuthorized, account);
+
+        if (account != null) {
+            attributes = createAttributes(account);
         }
 
         LOGGER.debug("User {}: attributes: {}", userName, attributes);
@@ -265,6 +749,186 @@ class XWikiPAMUtils
         return attributes;
     }
 
+    /**
+     * Verify the password with the backend within the concurrency limit.
+     */
+    private boolean verify(String userName, String password) throws XWikiException
+    {
+        if (this.limiter == null) {
+            return this.backend.verify(userName, password, this.configuration);
+        }
+
+        try {
+            if (!this.limiter.acquire()) {
+                throw new XWikiPAMUnverifiedException("PAM verification of user " + userName
+                    + " rejected: too many concurrent verifications");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while waiting to verify user " + userName, e);
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        boolean verified = false;
+
+        try {
+            verified = this.backend.verify(userName, password, this.configuration);
+            failed = Thread.currentThread().isInterrupted();
+            return verified;
+        } finally {
+            if (verified || failed) {
+                this.limiter.release(System.nanoTime() - start, failed);
+            } else {
+                // A wrong password: its latency is the PAM fail delay, not the load
+                this.limiter.release();
+            }
+        }
+    }
+
+    /**
+     * @param account the UNIX account
+     * @return the attributes of the XWiki user of the account
+     */
+    static Map<String, String> createAttributes(PAMAccount account)
+    {
+        String name = account.getFullName();
+        String[] nameParts = name.split(" ");
+        Map<String, String> attributes = new java.util.HashMap<String, String>();
+
+        attributes.put(PAMProfileXClass.PAM_XFIELD_USER_NAME, account.getUserName());
+        attributes.put(PAMProfileXClass.PAM_XFIELD_UID, account.getUid());
+        attributes.put("full_name", name);
+        if (nameParts.length == 2) {
+            attributes.put("first_name", nameParts[0]);
+            attributes.put("last_name", nameParts[1]);
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Create the profile of a user, unless another thread or node is already creating it, in which case its profile
+     * is waited for and reused.
+     *
+     * @param userProfile the new profile document reserved for the user
+     * @param userName the UNIX user name
+     * @param attributes the attributes of the PAM user
+     * @param uid the UNIX user id
+     * @param context the XWiki context
+     * @return the profile of the user
+     * @throws XWikiException if the profile can't be created or the creation by another thread or node failed or
+     *             didn't complete in time
+     */
+    private XWikiDocument provisionUser(XWikiDocument userProfile, String userName, Map<String, String> attributes,
+        String uid, XWikiContext context) throws XWikiException
+    {
+        String key = context.getWikiId() + ':' + PAMProfileXClass.normalizeUserName(userName);
+        CompletableFuture<DocumentReference> provisioning = new CompletableFuture<>();
+        CompletableFuture<DocumentReference> inFlight = PROVISIONINGS.putIfAbsent(key, provisioning);
+
+        if (inFlight != null) {
+            releaseUserProfile(userProfile.getDocumentReference());
+            LOGGER.debug("Waiting for the profile of user [{}] being created by another thread", userName);
+
+            return context.getWiki().getDocument(waitForProvisioning(inFlight, userName), context);
+        }
+
+        try {
+            XWikiDocument provisioned = provisionClaimedUser(userProfile, userName, attributes, uid, key, context);
+            provisioning.complete(provisioned.getDocumentReference());
+            return provisioned;
+        } catch (XWikiException | RuntimeException e) {
+            provisioning.completeExceptionally(e);
+            throw e;
+        } finally {
+            PROVISIONINGS.remove(key, provisioning);
+        }
+    }
+
+    private DocumentReference waitForProvisioning(CompletableFuture<DocumentReference> provisioning, String userName)
+        throws XWikiException
+    {
+        try {
+            return provisioning.get(this.configuration.getProvisioningWait(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while waiting for the profile of user " + userName, e);
+        } catch (ExecutionException e) {
+            // The failure of the thread which was creating the profile
+            throw XWikiPAMCallerExecutor.unwrap(e.getCause());
+        } catch (TimeoutException e) {
+            throw new XWikiPAMException("Timed out waiting for the profile of user " + userName, e);
+        }
+    }
+
+    /**
+     * Create the profile of a user once this node holds the provisioning claim of the user, or return the profile
+     * created by the node holding it.
+     */
+    private XWikiDocument provisionClaimedUser(XWikiDocument userProfile, String userName,
+        Map<String, String> attributes, String uid, String key, XWikiContext context) throws XWikiException
+    {
+        PAMProvisioningClaim claim =
+            Utils.getComponent(PAMProvisioningClaim.class, this.configuration.getProvisioningClaim());
+        long deadline = System.currentTimeMillis() + this.configuration.getProvisioningWait();
+        boolean claimed = false;
+
+        try {
+            while (!(claimed = claim(claim, key, context))) {
+                XWikiDocument provisioned = getProfileClass(context).searchDocumentByUserName(userName);
+
+                if (provisioned != null) {
+                    LOGGER.debug("Reusing the profile [{}] created by another node", provisioned);
+                    return provisioned;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new XWikiPAMException("Timed out waiting for the profile of user " + userName
+                        + " being created by another node");
+                }
+                Thread.sleep(PROVISIONING_POLL);
+            }
+
+            // Created by another node before the claim?
+            XWikiDocument provisioned = getProfileClass(context).searchDocumentByUserName(userName);
+            if (provisioned != null) {
+                return provisioned;
+            }
+
+            LOGGER.debug("Creating new XWiki user based on PAM attribues located at [{}]", userName);
+            createUserFromPAM(userProfile, attributes, userName, uid, context);
+            LOGGER.debug("New XWiki user created: [{}]", userProfile.getDocumentReference());
+
+            return context.getWiki().getDocument(userProfile.getDocumentReference(), context);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XWikiPAMException("Interrupted while waiting for the profile of user " + userName, e);
+        } finally {
+            releaseUserProfile(userProfile.getDocumentReference());
+            if (claimed) {
+                try {
+                    claim.release(key, context);
+                } catch (XWikiException e) {
+                    LOGGER.warn("Failed to release the provisioning claim [{}], it will expire", key, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if this node holds the provisioning claim, also when the claim can't be checked, so that logins
+     *         don't depend on it
+     */
+    private boolean claim(PAMProvisioningClaim claim, String key, XWikiContext context)
+    {
+        try {
+            return claim.claim(key, this.configuration.getProvisioningClaimTTL(), context);
+        } catch (XWikiException e) {
+            LOGGER.warn("Failed to claim the provisioning [{}], creating the profile without claim", key, e);
+            return true;
+        }
+    }
+
     /**
      * Update or create XWiki user base on PAM.
      *
@@ -283,39 +947,66 @@ class XWikiPAMUtils
 
         // check if we have to create the user
         if (userProf == null || userProf.isNew() || (password != null)
-            || this.configuration.getPAMParam("pam_update_user", "0").equals("1")) {
+            || (this.configuration.getPAMParam("pam_update_user", "0").equals("1")
+                // Don't even get the attributes of a recently synchronized user
+                && !isSynchronized(userProf, null, context))) {
 
             LOGGER.debug("Getting attributes for user name: {}, profile={}", userName, userProf);
-            Map<String, String> attributes = getUserAttributes(userName, password);
+            userProf = syncUser(userProf, userName, getUserAttributes(userName, password), context);
+        } else if (!isAllowed(userName)) {
+            // Skipping the attributes of a trusted user must not skip the allowed groups
+            LOGGER.debug("User {}: not a member of the allowed groups", userName);
+            userProf = null;
+        }
 
-            if (attributes != null) {
-                String uid = attributes.get(PAMProfileXClass.PAM_XFIELD_UID);
+        return userProf;
+    }
 
-                // Load XWiki user document if we don't already have them
-                if (userProf == null) {
-                    userProf = getAvailableUserProfile(attributes, context);
-                }
+    /**
+     * Update or create XWiki user based on already verified PAM attributes.
+     *
+     * @param userProfile the XWiki user profile document or null if not known yet
+     * @param userName the UNIX user name
+     * @param attributes the attributes of the PAM user or null if the user was not verified
+     * @param context the XWiki context
+     * @return the XWiki user document or null if the user was not verified
+     * @throws XWikiException error when creating the XWiki user
+     */
+    public XWikiDocument syncUser(XWikiDocument userProfile, String userName, Map<String, String> attributes,
+        XWikiContext context) throws XWikiException
+    {
+        XWikiDocument userProf = userProfile;
 
-                LOGGER.debug("Loaded user profile: {}, new={}", userProf, userProf.isNew());
+        if (attributes != null) {
+            String uid = attributes.get(PAMProfileXClass.PAM_XFIELD_UID);
 
-                if (userProf.isNew()) {
-                    LOGGER.debug("Creating new XWiki user based on PAM attribues located at [{}]", userName);
+            // Load XWiki user document if we don't already have them
+            if (userProf == null) {
+                userProf = getAvailableUserProfile(attributes, context);
+            }
 
-                    createUserFromPAM(userProf, attributes, userName, uid, context);
+            LOGGER.debug("Loaded user profile: {}, new={}", userProf, userProf.isNew());
 
-                    LOGGER.debug("New XWiki user created: [{}]", userProf.getDocumentReference());
-                } else {
-                    LOGGER.debug("Updating existing user with PAM attribues located at [{}]", userName);
+            if (userProf.isNew()) {
+                userProf = provisionUser(userProf, userName, attributes, uid, context);
+            } else if (isSynchronized(userProf, PAMProfileXClass.fingerprint(attributes), context)) {
+                LOGGER.debug("Skipping synchronization of unchanged user [{}]", userName);
+            } else {
+                LOGGER.debug("Updating existing user with PAM attribues located at [{}]", userName);
 
+                if (!enqueueUpdate(userProf.getDocumentReference(), attributes, userName, uid, context)) {
                     try {
                         updateUserFromPAM(userProf, attributes, userName, uid, context);
                     } catch (XWikiException e) {
                         LOGGER.error("Failed to synchronise user's informations", e);
                     }
                 }
-            } else {
-                userProf = null;
             }
+
+            // Group membership can change even when the account attributes don't
+            syncGroups(userProf, userName, context);
+        } else {
+            userProf = null;
         }
 
         return userProf;
@@ -0,0 +1,315 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, time limited cache of successful password verifications.
+ * <p>
+ * Entries are keyed by the user name and a keyed hash (HMAC) of a per instance random salt, the user name and the
+ * password, so the plain text password is never kept in memory by the cache.  The HMAC key is generated when the
+ * cache is created and never leaves the instance.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPAMVerdictCache
+{
+    /**
+     * The policy used to pick the entry to drop when the cache is full.
+     */
+    public enum Eviction
+    {
+        /** Drop the least recently used entry. */
+        LRU,
+
+        /** Drop the oldest inserted entry. */
+        FIFO;
+
+        /**
+         * @param name the (case insensitive) name of the policy
+         * @param def the value to use if the name is not a known policy
+         * @return the eviction policy
+         */
+        public static Eviction parse(String name, Eviction def)
+        {
+            Eviction eviction = def;
+
+            if (name != null) {
+                try {
+                    eviction = valueOf(name.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Unknown PAM cache eviction policy [{}], using [{}]", name, def);
+                }
+            }
+
+            return eviction;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XWikiPAMVerdictCache.class);
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final int KEY_LENGTH = 32;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final char KEY_SEP = ':';
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int maxSize;
+
+    private final long ttl;
+
+    private final Eviction eviction;
+
+    private final SecretKeySpec key;
+
+    private final byte[] salt;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry
+    {
+        private final Map<String, String> attributes;
+
+        private final long expires;
+
+        Entry(Map<String, String> attributes, long expires)
+        {
+            this.attributes = attributes;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of verdicts kept in the cache
+     * @param ttl the number of milliseconds a verdict stays valid
+     * @param eviction the policy used when the cache is full
+     */
+    public XWikiPAMVerdictCache(int maxSize, long ttl, Eviction eviction)
+    {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttl = Math.max(0, ttl);
+        this.eviction = eviction;
+
+        SecureRandom random = new SecureRandom();
+        byte[] keyBytes = new byte[KEY_LENGTH];
+        random.nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        this.salt = new byte[SALT_LENGTH];
+        random.nextBytes(this.salt);
+
+        final int capacity = this.maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, eviction == Eviction.LRU)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                boolean remove = size() > capacity;
+
+                if (remove) {
+                    XWikiPAMVerdictCache.this.evictions.incrementAndGet();
+                }
+
+                return remove;
+            }
+        };
+    }
+
+    /**
+     * @param configuration the PAM configuration
+     * @return true if this cache was created with the size, TTL and eviction policy of the passed configuration
+     */
+    public boolean isConfiguredFor(XWikiPAMConfig configuration)
+    {
+        return this.maxSize == configuration.getCacheSize() && this.ttl == configuration.getCacheTTL()
+            && this.eviction == configuration.getCacheEviction();
+    }
+
+    /**
+     * @param userName the UNIX user name
+     * @param password the password of the user
+     * @return a copy of the attributes of a successful verification of the passed credentials, or null if there is no
+     *         such (unexpired) verdict in the cache
+     */
+    public Map<String, String> get(String userName, String password)
+    {
+        String cacheKey = createKey(userName, password);
+        Map<String, String> attributes = null;
+
+        if (cacheKey != null) {
+            synchronized (this.entries) {
+                Entry entry = this.entries.get(cacheKey);
+
+                if (entry != null) {
+                    if (entry.expires - System.nanoTime() > 0) {
+                        attributes = entry.attributes;
+                    } else {
+                        this.entries.remove(cacheKey);
+                    }
+                }
+            }
+        }
+
+        if (attributes == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+            attributes = new HashMap<>(attributes);
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Remember a successful verification of the passed credentials.
+     *
+     * @param userName the UNIX user name
+     * @param password the password of the user
+     * @param attributes the attributes of the user returned by the verification
+     */
+    public void put(String userName, String password, Map<String, String> attributes)
+    {
+        String cacheKey = createKey(userName, password);
+
+        if (cacheKey != null) {
+            Entry entry = new Entry(Collections.unmodifiableMap(new HashMap<>(attributes)),
+                                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.ttl));
+
+            synchronized (this.entries) {
+                this.entries.put(cacheKey, entry);
+            }
+        }
+    }
+
+    /**
+     * Forget all verdicts of a user, for example after a failed login.
+     *
+     * @param userName the UNIX user name
+     */
+    public void invalidate(String userName)
+    {
+        String prefix = userName + KEY_SEP;
+
+        synchronized (this.entries) {
+            Iterator<String> it = this.entries.keySet().iterator();
+
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget all verdicts.
+     */
+    public void clear()
+    {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of verdicts currently in the cache (including expired ones not yet removed)
+     */
+    public int size()
+    {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups answered by the cache
+     */
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups not answered by the cache
+     */
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of verdicts dropped because the cache was full
+     */
+    public long getEvictionCount()
+    {
+        return this.evictions.get();
+    }
+
+    private String createKey(String userName, String password)
+    {
+        StringBuilder sb = new StringBuilder(userName.length() + 1 + 2 * KEY_LENGTH);
+
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(this.key);
+            mac.update(this.salt);
+            mac.update(userName.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+
+            sb.append(userName).append(KEY_SEP);
+            for (byte b : mac.doFinal(password.getBytes(StandardCharsets.UTF_8))) {
+                sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            }
+        } catch (GeneralSecurityException e) {
+            LOGGER.error("Could not hash PAM credentials, not caching verdict", e);
+            return null;
+        }
+
+        return sb.toString();
+    }
+}
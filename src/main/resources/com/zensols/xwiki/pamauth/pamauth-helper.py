@@ -0,0 +1,134 @@
+#
+# Reference helper for the PAM process pool.  Each instance answers many
+# requests, one line per request and one line per response:
+#
+#   PING                            -> PONG
+#   USER <name>                     -> OK <uid> <base64 full name> | NONE
+#   AUTH <name> <base64 password>   -> OK | FAIL
+#
+# Accounts are looked up with the NSS of the C library and passwords verified
+# with libpam (service given as first argument, pwauth by default), both in
+# this process: a request doesn't start any program.  PAM modules may still
+# run their own helpers (pam_unix runs the setuid unix_chkpwd to verify the
+# password of another user when not running as root).  Any program speaking
+# this protocol can be configured instead with pam_pool_command.
+
+import base64
+import ctypes
+import ctypes.util
+import pwd
+import sys
+
+PAM_SUCCESS = 0
+PAM_BUF_ERR = 5
+PAM_PROMPT_ECHO_OFF = 1
+PAM_PROMPT_ECHO_ON = 2
+
+
+class PamMessage(ctypes.Structure):
+    _fields_ = [("msg_style", ctypes.c_int), ("msg", ctypes.c_char_p)]
+
+
+class PamResponse(ctypes.Structure):
+    _fields_ = [("resp", ctypes.c_void_p), ("resp_retcode", ctypes.c_int)]
+
+
+CONV_FUNC = ctypes.CFUNCTYPE(ctypes.c_int, ctypes.c_int, ctypes.POINTER(ctypes.POINTER(PamMessage)),
+                             ctypes.POINTER(ctypes.POINTER(PamResponse)), ctypes.c_void_p)
+
+
+class PamConv(ctypes.Structure):
+    _fields_ = [("conv", CONV_FUNC), ("appdata_ptr", ctypes.c_void_p)]
+
+
+libc = ctypes.CDLL(ctypes.util.find_library("c"))
+libc.calloc.restype = ctypes.c_void_p
+libc.calloc.argtypes = [ctypes.c_size_t, ctypes.c_size_t]
+libc.strdup.restype = ctypes.c_void_p
+libc.strdup.argtypes = [ctypes.c_char_p]
+libc.strlen.restype = ctypes.c_size_t
+libc.strlen.argtypes = [ctypes.c_void_p]
+libc.memset.restype = ctypes.c_void_p
+libc.memset.argtypes = [ctypes.c_void_p, ctypes.c_int, ctypes.c_size_t]
+libc.free.argtypes = [ctypes.c_void_p]
+
+libpam = ctypes.CDLL(ctypes.util.find_library("pam"))
+libpam.pam_start.argtypes = [ctypes.c_char_p, ctypes.c_char_p, ctypes.POINTER(PamConv),
+                             ctypes.POINTER(ctypes.c_void_p)]
+libpam.pam_authenticate.argtypes = [ctypes.c_void_p, ctypes.c_int]
+libpam.pam_acct_mgmt.argtypes = [ctypes.c_void_p, ctypes.c_int]
+libpam.pam_end.argtypes = [ctypes.c_void_p, ctypes.c_int]
+
+
+def clear(pointer):
+    libc.memset(pointer, 0, libc.strlen(pointer))
+    libc.free(pointer)
+
+
+def authenticate(service, name, password):
+    def conversation(count, messages, responses, appdata):
+        array = libc.calloc(count, ctypes.sizeof(PamResponse))
+        if not array:
+            return PAM_BUF_ERR
+        replies = ctypes.cast(array, ctypes.POINTER(PamResponse))
+        for i in range(count):
+            if messages[i].contents.msg_style in (PAM_PROMPT_ECHO_OFF, PAM_PROMPT_ECHO_ON):
+                replies[i].resp = libc.strdup(password)
+                if not replies[i].resp:
+                    for j in range(i):
+                        if replies[j].resp:
+                            clear(replies[j].resp)
+                    libc.free(array)
+                    return PAM_BUF_ERR
+        # libpam frees the responses
+        responses[0] = replies
+        return PAM_SUCCESS
+
+    callback = CONV_FUNC(conversation)
+    handle = ctypes.c_void_p()
+    status = libpam.pam_start(service, name, ctypes.byref(PamConv(callback, None)), ctypes.byref(handle))
+    if status != PAM_SUCCESS:
+        return False
+    status = libpam.pam_authenticate(handle, 0)
+    if status == PAM_SUCCESS:
+        status = libpam.pam_acct_mgmt(handle, 0)
+    libpam.pam_end(handle, status)
+    return status == PAM_SUCCESS
+
+
+def lookup(name):
+    try:
+        entry = pwd.getpwnam(name)
+    except KeyError:
+        return "NONE"
+    fullName = entry.pw_gecos.split(",")[0]
+    return "OK %d %s" % (entry.pw_uid, base64.b64encode(fullName.encode("utf-8")).decode("ascii"))
+
+
+def main():
+    service = (sys.argv[1] if len(sys.argv) > 1 else "pwauth").encode("utf-8")
+    while True:
+        line = sys.stdin.readline()
+        if not line:
+            break
+        fields = line.split()
+        cmd = fields[0] if fields else ""
+        name = fields[1] if len(fields) > 1 else ""
+        try:
+            if cmd == "PING":
+                response = "PONG"
+            elif cmd == "USER":
+                response = lookup(name) if name else "NONE"
+            elif cmd == "AUTH":
+                password = base64.b64decode(fields[2] if len(fields) > 2 else "")
+                response = "OK" if name and authenticate(service, name.encode("utf-8"), password) else "FAIL"
+            else:
+                response = "ERROR"
+        except Exception as e:
+            sys.stderr.write("pamauth-helper: %s\n" % e)
+            response = "ERROR"
+        sys.stdout.write(response + "\n")
+        sys.stdout.flush()
+
+
+main()
@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class PAMProfileXClassTest {
+    @Test
+    public void testFingerprint() throws Exception {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("username", "jdoe");
+        attributes.put("uid", "1000");
+        attributes.put("first_name", "John Doe");
+        Map<String, String> reordered = new LinkedHashMap<>();
+        reordered.put("first_name", "John Doe");
+        reordered.put("uid", "1000");
+        reordered.put("username", "jdoe");
+
+        String fingerprint = PAMProfileXClass.fingerprint(attributes);
+        assertEquals(22, fingerprint.length());
+        assertEquals(fingerprint, PAMProfileXClass.fingerprint(reordered));
+
+        Map<String, String> changed = new HashMap<>(attributes);
+        changed.put("first_name", "John Q. Doe");
+        assertNotEquals(fingerprint, PAMProfileXClass.fingerprint(changed));
+
+        // keys and values can't be shifted into each other
+        Map<String, String> shifted = new HashMap<>(attributes);
+        shifted.remove("uid");
+        shifted.put("uid1", "000");
+        assertNotEquals(fingerprint, PAMProfileXClass.fingerprint(shifted));
+    }
+
+    @Test
+    public void testSyncStateRearms() throws Exception {
+        long interval = 1000;
+        String fingerprint = "fingerprint";
+        String syncedFingerprint = null;
+        long lastSync = 0;
+        int skipped = 0;
+        int recorded = 0;
+
+        // a stable account logging in every 100ms for 10 intervals
+        for (long now = 1; now <= 10 * interval; now += 100) {
+            if (PAMProfileXClass.isSynchronized(syncedFingerprint, lastSync, fingerprint, interval, now)) {
+                ++skipped;
+            } else {
+                // what updateSyncState records for an unchanged profile whose record is no longer current
+                syncedFingerprint = fingerprint;
+                lastSync = now;
+                ++recorded;
+            }
+        }
+
+        // one save per interval keeps skipping the synchronizations after the first interval
+        assertEquals(10, recorded);
+        assertEquals(90, skipped);
+        assertTrue(PAMProfileXClass.isSynchronized(syncedFingerprint, lastSync, null, interval, lastSync + 999));
+        assertFalse(PAMProfileXClass.isSynchronized(syncedFingerprint, lastSync, "changed", interval, lastSync));
+        assertFalse(PAMProfileXClass.isSynchronized(syncedFingerprint, lastSync, fingerprint, 0, lastSync));
+    }
+}
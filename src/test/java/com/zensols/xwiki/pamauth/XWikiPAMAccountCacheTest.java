@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class XWikiPAMAccountCacheTest {
+    private static final Map<String, String> ATTRS = Collections.singletonMap("uid", "1000");
+
+    private static final Runnable NO_REFRESH = () -> {
+        throw new AssertionError("unexpected refresh");
+    };
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        XWikiPAMAccountCache cache = new XWikiPAMAccountCache(10, 60000, 0);
+
+        assertNull(cache.get("jdoe", NO_REFRESH));
+        cache.put("jdoe", ATTRS);
+        assertEquals(ATTRS, cache.get("jdoe", NO_REFRESH));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.invalidate("jdoe");
+        assertNull(cache.get("jdoe", NO_REFRESH));
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        // every read is within the refresh ahead window
+        XWikiPAMAccountCache cache = new XWikiPAMAccountCache(10, 60000, 60000);
+        AtomicInteger refreshes = new AtomicInteger();
+
+        cache.put("jdoe", ATTRS);
+        assertEquals(ATTRS, cache.get("jdoe", refreshes::incrementAndGet));
+        // only one refresh at a time
+        assertEquals(ATTRS, cache.get("jdoe", refreshes::incrementAndGet));
+        assertEquals(1, refreshes.get());
+
+        // the refreshed entry can be refreshed again
+        cache.put("jdoe", ATTRS);
+        assertNotNull(cache.get("jdoe", refreshes::incrementAndGet));
+        assertEquals(2, refreshes.get());
+        assertEquals(2, cache.getRefreshCount());
+    }
+
+    @Test
+    public void testExpiryAndEviction() throws Exception {
+        XWikiPAMAccountCache cache = new XWikiPAMAccountCache(2, 1, 0);
+
+        cache.put("jdoe", ATTRS);
+        Thread.sleep(20);
+        assertNull(cache.get("jdoe", NO_REFRESH));
+        assertEquals(0, cache.size());
+
+        cache = new XWikiPAMAccountCache(2, 60000, 0);
+        cache.put("a", ATTRS);
+        cache.put("b", ATTRS);
+        assertNotNull(cache.get("a", NO_REFRESH));
+        cache.put("c", ATTRS);
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("b", NO_REFRESH));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class XWikiPAMConcurrencyLimiterTest {
+    private static final long MS = 1000000;
+
+    @Test
+    public void testReject() throws Exception {
+        XWikiPAMConcurrencyLimiter limiter = new XWikiPAMConcurrencyLimiter(1, 2, 10);
+
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        assertEquals(2, limiter.getInFlightCount());
+        assertEquals(1, limiter.getRejectionCount());
+
+        limiter.release(10 * MS, false);
+        assertTrue(limiter.acquire());
+    }
+
+    @Test
+    public void testAdapt() throws Exception {
+        XWikiPAMConcurrencyLimiter limiter = new XWikiPAMConcurrencyLimiter(2, 10, 0);
+
+        assertTrue(limiter.acquire());
+        limiter.release(10 * MS, false);
+        assertEquals(10, limiter.getLimit());
+
+        // slow verifications shrink the limit down to the minimum
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(100 * MS, false);
+        }
+        assertEquals(2, limiter.getLimit());
+
+        // fast verifications using the limit grow it back
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire());
+            assertTrue(limiter.acquire());
+            limiter.release(10 * MS, false);
+            limiter.release(10 * MS, false);
+        }
+        assertTrue(limiter.getLimit() > 2);
+
+        int limit = limiter.getLimit();
+        assertTrue(limiter.acquire());
+        limiter.release(0, true);
+        assertTrue(limiter.getLimit() < limit);
+    }
+
+    @Test
+    public void testWrongPasswordNotSampled() throws Exception {
+        XWikiPAMConcurrencyLimiter limiter = new XWikiPAMConcurrencyLimiter(2, 10, 0);
+
+        assertTrue(limiter.acquire());
+        limiter.release(10 * MS, false);
+
+        // wrong passwords answered after the PAM fail delay
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release();
+        }
+        assertEquals(10, limiter.getLimit());
+        assertEquals(0, limiter.getInFlightCount());
+        assertEquals(10.0, limiter.getBaselineLatency(), 0.001);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xwiki.configuration.ConfigurationSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class XWikiPAMConfigTest {
+    private static ConfigurationSource createSource(final Map<String, String> properties) {
+        return (ConfigurationSource) Proxy.newProxyInstance(
+            XWikiPAMConfigTest.class.getClassLoader(), new Class<?>[] { ConfigurationSource.class },
+            (proxy, method, args) -> {
+                if ("getKeys".equals(method.getName())) {
+                    return new ArrayList<>(properties.keySet());
+                } else if ("getProperty".equals(method.getName())) {
+                    return properties.get(args[0]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        Map<String, String> preferences = new HashMap<>();
+        Map<String, String> cfg = new HashMap<>();
+
+        preferences.put("pam", "1");
+        preferences.put("pam_timeout", "2500");
+        preferences.put("pam_cache", "");
+        preferences.put("other", "x");
+        cfg.put("xwiki.authentication.pam.cache", "1");
+        cfg.put("xwiki.authentication.pam.remoteUserMapping.host", "A=b|C=d");
+        cfg.put("xwiki.authentication.pam.httpHeader", "X-Remote-User");
+
+        XWikiPAMConfig live = new XWikiPAMConfig(createSource(preferences), createSource(cfg));
+        XWikiPAMConfig snapshot = live.snapshot();
+
+        assertTrue(snapshot.isSnapshot());
+        assertSame(snapshot, snapshot.snapshot());
+        assertTrue(snapshot.isPAMEnabled());
+        assertEquals(2500, snapshot.getPAMTimeout());
+        assertTrue(snapshot.isCacheEnabled());
+        assertEquals(1000, snapshot.getCacheSize());
+        assertEquals("X-Remote-User", snapshot.getHttpHeader());
+        assertEquals("b", snapshot.getRemoteUserMapping("host", true).get("a"));
+        assertSame(snapshot.getRemoteUserMapping("host", true), snapshot.getRemoteUserMapping("host", true));
+
+        // later changes are only seen by the live configuration
+        preferences.put("pam_timeout", "100");
+        preferences.put("pam", "0");
+        assertEquals(100, live.getPAMTimeout());
+        assertFalse(live.isPAMEnabled());
+        assertEquals(2500, snapshot.getPAMTimeout());
+        assertTrue(snapshot.isPAMEnabled());
+    }
+
+    @Test
+    public void testSnapshotImmutable() throws Exception {
+        Map<String, String> preferences = new HashMap<>();
+
+        preferences.put("pam_remoteUserMapping.1", "a,b");
+
+        XWikiPAMConfig snapshot = new XWikiPAMConfig(createSource(preferences),
+                                                     createSource(new HashMap<String, String>())).snapshot();
+
+        assertEquals(Arrays.asList("a", "b"), snapshot.getRemoteUserMapping(1));
+        try {
+            snapshot.getRemoteUserMapping(1).add("c");
+            fail("expected an immutable list");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRemoteUserParser() throws Exception {
+        Map<String, String> preferences = new HashMap<>();
+
+        preferences.put("pam_remoteUserParser", "^(\\w+)/(\\w+)$");
+        preferences.put("pam_remoteUserMapping.2", "login");
+        preferences.put("pam_remoteUserMapping.login", "ADMIN=root");
+
+        XWikiPAMConfig snapshot = new XWikiPAMConfig(createSource(preferences),
+                                                     createSource(new HashMap<String, String>())).snapshot();
+
+        assertSame(snapshot.getRemoteUserParser(), snapshot.getRemoteUserParser());
+        assertEquals("jdoe", snapshot.getRemoteUserParser().parse("host/jdoe"));
+        assertEquals("root", snapshot.getRemoteUserParser().parse("host/admin"));
+    }
+
+    @Test
+    public void testNodeParameters() throws Exception {
+        Map<String, String> preferences = new HashMap<>();
+        Map<String, String> cfg = new HashMap<>();
+
+        // a wiki can't change the objects shared by all the wikis
+        preferences.put("pam_cache", "1");
+        preferences.put("pam_cache_size", "5");
+        preferences.put("pam_backend", XWikiPAMConfig.BACKEND_MEMORY);
+        preferences.put("pam_memory_password", "password");
+        cfg.put("xwiki.authentication.pam.cache_ttl", "1000");
+
+        XWikiPAMConfig snapshot = new XWikiPAMConfig(createSource(preferences), createSource(cfg)).snapshot();
+
+        assertFalse(snapshot.isCacheEnabled());
+        assertEquals(1000, snapshot.getCacheSize());
+        assertEquals(1000, snapshot.getCacheTTL());
+        assertEquals(XWikiPAMConfig.BACKEND_PWAUTH, snapshot.getBackend());
+        assertNull(snapshot.getMemoryPassword());
+    }
+}
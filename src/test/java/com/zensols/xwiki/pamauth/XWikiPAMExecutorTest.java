@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class XWikiPAMExecutorTest {
+    @Test
+    public void testTimeout() throws Exception {
+        XWikiPAMExecutor executor = new XWikiPAMExecutor(1, 1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<String> future = executor.submit(() -> {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "late";
+        }, 50);
+
+        try {
+            future.get();
+            fail("expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        interrupted.await();
+        assertEquals(1, executor.getTimeoutCount());
+        assertEquals("ok", executor.submit(() -> "ok", 1000).get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejection() throws Exception {
+        XWikiPAMExecutor executor = new XWikiPAMExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        executor.submit(() -> release.await(10, TimeUnit.SECONDS), 0);
+        executor.submit(() -> release.await(10, TimeUnit.SECONDS), 0);
+        CompletableFuture<Boolean> rejected = executor.submit(() -> release.await(10, TimeUnit.SECONDS), 0);
+
+        try {
+            rejected.get();
+            fail("expected rejection");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(1, executor.getRejectionCount());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testShutdownFailsPending() throws Exception {
+        XWikiPAMExecutor executor = new XWikiPAMExecutor(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Boolean> running = executor.submit(() -> {
+            started.countDown();
+            while (true) {
+                try {
+                    return release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // a stuck backend ignoring interrupts
+                }
+            }
+        }, 0);
+        CompletableFuture<String> queued = executor.submit(() -> "queued", 0);
+        started.await();
+        executor.shutdown();
+
+        for (CompletableFuture<?> future : new CompletableFuture<?>[] { running, queued }) {
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail("expected rejection");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        release.countDown();
+    }
+
+    @Test
+    public void testCallerExecutor() throws Exception {
+        XWikiPAMExecutor executor = new XWikiPAMExecutor(1, 1);
+        XWikiPAMCallerExecutor caller = new XWikiPAMCallerExecutor();
+        final Thread thread = Thread.currentThread();
+
+        CompletableFuture<Boolean> future = executor.submit(() -> "jdoe", 1000)
+            .thenApplyAsync(name -> Thread.currentThread() == thread, caller);
+
+        assertTrue(caller.await(future));
+        executor.shutdown();
+    }
+}
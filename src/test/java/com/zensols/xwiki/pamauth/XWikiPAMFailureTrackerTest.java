@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class XWikiPAMFailureTrackerTest {
+    @Test
+    public void testUserBackoff() throws Exception {
+        XWikiPAMFailureTracker tracker = new XWikiPAMFailureTracker(60000, 3, 100, 60000, 120000, 100);
+
+        for (int i = 0; i < 2; i++) {
+            assertFalse(tracker.isBlocked("jdoe", "10.0.0.1"));
+            tracker.recordFailure("jdoe", "10.0.0.1");
+        }
+        assertFalse(tracker.isBlocked("JDoe", "10.0.0.1"));
+        tracker.recordFailure("jdoe", "10.0.0.1");
+        assertTrue(tracker.isBlocked("JDoe", "10.0.0.2"));
+        assertFalse(tracker.isBlocked("other", "10.0.0.1"));
+        assertEquals(1, tracker.getRejectionCount());
+        assertEquals(3, tracker.getFailureCount());
+
+        tracker.recordSuccess("jdoe");
+        assertFalse(tracker.isBlocked("jdoe", "10.0.0.1"));
+    }
+
+    @Test
+    public void testAddressAndBound() throws Exception {
+        XWikiPAMFailureTracker tracker = new XWikiPAMFailureTracker(60000, 0, 2, 60000, 60000, 4);
+
+        tracker.recordFailure("a", "10.0.0.1");
+        tracker.recordFailure("b", "10.0.0.1");
+        assertTrue(tracker.isBlocked("c", "10.0.0.1"));
+        assertFalse(tracker.isBlocked("c", "10.0.0.2"));
+
+        for (int i = 0; i < 10; i++) {
+            tracker.recordFailure("u" + i, "10.1.0." + i);
+        }
+        assertTrue(tracker.size() <= 4);
+    }
+
+    @Test
+    public void testBlockedKeptWhenFull() throws Exception {
+        XWikiPAMFailureTracker tracker = new XWikiPAMFailureTracker(60000, 2, 0, 60000, 60000, 4);
+
+        tracker.recordFailure("jdoe", null);
+        tracker.recordFailure("jdoe", null);
+        assertTrue(tracker.isBlocked("jdoe", null));
+
+        // spraying user names doesn't lift the block
+        for (int i = 0; i < 100; i++) {
+            tracker.recordFailure("u" + i, null);
+        }
+        assertTrue(tracker.size() <= 4);
+        assertTrue(tracker.isBlocked("jdoe", null));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XWikiPAMGroupIndexTest {
+    private static final String GROUP = "root:x:0:\n"
+        + "# comment\n"
+        + "+nisgroup:::\n"
+        + "wheel:x:10:root,jdoe\n"
+        + "dev:x:1000:jdoe, asmith\n"
+        + "broken:x\n"
+        + "users:x:100:asmith,jdoe,jdoe\n";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        this.file = File.createTempFile("group", null);
+        Files.write(this.file.toPath(), GROUP.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Test
+    public void testGroups() throws Exception {
+        XWikiPAMGroupIndex index = new XWikiPAMGroupIndex(this.file, null, 60000);
+
+        assertEquals(3, index.size());
+        assertEquals(Arrays.asList("dev", "users", "wheel"), index.getGroups("jdoe"));
+        assertEquals(Arrays.asList("dev", "users"), index.getGroups("asmith"));
+        assertEquals(Collections.emptyList(), index.getGroups("nobody"));
+        assertTrue(index.isMemberOfAny("root", Arrays.asList("admin", "wheel")));
+        assertFalse(index.isMemberOfAny("asmith", Collections.singleton("wheel")));
+        assertFalse(index.isMemberOfAny("nobody", Collections.singleton("users")));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        XWikiPAMGroupIndex index = new XWikiPAMGroupIndex(this.file, null, 0);
+
+        assertFalse(index.isMemberOfAny("bob", Collections.singleton("dev")));
+        Files.write(this.file.toPath(), (GROUP + "dev2:x:1001:bob\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList("dev2"), index.getGroups("bob"));
+    }
+
+    @Test
+    public void testPrimaryGroups() throws Exception {
+        File passwd = File.createTempFile("passwd", null);
+        try {
+            Files.write(passwd.toPath(), ("root:x:0:0:root:/root:/bin/bash\n"
+                + "jdoe:x:1001:10:John Doe:/home/jdoe:/bin/bash\n"
+                + "staff1:x:1002:50:Staff:/home/staff1:/bin/sh\n"
+                + "orphan:x:1003:4242::/:/bin/false\n"
+                + "# comment\n").getBytes(StandardCharsets.UTF_8));
+            Files.write(this.file.toPath(), (GROUP + "staff:x:50:\n").getBytes(StandardCharsets.UTF_8));
+
+            XWikiPAMGroupIndex index = new XWikiPAMGroupIndex(this.file, passwd, 60000);
+
+            // members of their primary group without being listed, like for id
+            assertEquals(Collections.singletonList("staff"), index.getGroups("staff1"));
+            assertTrue(index.isMemberOfAny("staff1", Collections.singleton("staff")));
+            assertEquals(Arrays.asList("root", "wheel"), index.getGroups("root"));
+            // already listed in its primary group
+            assertEquals(Arrays.asList("dev", "users", "wheel"), index.getGroups("jdoe"));
+            // no group with the gid
+            assertEquals(Collections.emptyList(), index.getGroups("orphan"));
+        } finally {
+            passwd.delete();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs against private pam_permit/pam_deny service stacks; skipped where libpam 1.4+ is not available.
+ */
+public class XWikiPAMLibPAMTest {
+    private File confDir;
+
+    @Before
+    public void setup() throws Exception {
+        confDir = Files.createTempDirectory("pamauth").toFile();
+        Files.write(new File(confDir, "permit").toPath(),
+                    "auth required pam_permit.so\naccount required pam_permit.so\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(confDir, "deny").toPath(),
+                    "auth required pam_deny.so\naccount required pam_permit.so\n".getBytes(StandardCharsets.UTF_8));
+        // checks the password handed over by the conversation callback
+        File check = new File(confDir, "check.sh");
+        Files.write(check.toPath(), "#!/bin/sh\nread -r p\n[ \"$p\" = secret ]\n".getBytes(StandardCharsets.UTF_8));
+        check.setExecutable(true);
+        Files.write(new File(confDir, "exec").toPath(),
+                    ("auth required pam_exec.so quiet expose_authtok " + check.getPath()
+                     + "\naccount required pam_permit.so\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            new XWikiPAMLibPAM("permit", confDir.getPath()).verify("root", "probe");
+        } catch (Throwable e) {
+            assumeNoException(e);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(confDir);
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        assertTrue(new XWikiPAMLibPAM("permit", confDir.getPath()).verify("root", "secret"));
+        assertFalse(new XWikiPAMLibPAM("deny", confDir.getPath()).verify("root", "secret"));
+    }
+
+    @Test
+    public void testConversation() throws Exception {
+        XWikiPAMLibPAM libPAM = new XWikiPAMLibPAM("exec", confDir.getPath());
+
+        assertTrue(libPAM.verify("root", "secret"));
+        assertFalse(libPAM.verify("root", "wrong"));
+    }
+
+    @Test
+    public void testAccount() throws Exception {
+        XWikiPAMLibPAM libPAM = new XWikiPAMLibPAM("permit", confDir.getPath());
+
+        assertEquals("0", libPAM.getAccount("root").getUid());
+        assertNull(libPAM.getAccount("no-such-user-pamauth"));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class XWikiPAMLockTableTest {
+    @Test
+    public void testStripes() throws Exception {
+        assertEquals(64, new XWikiPAMLockTable(64, 0).getStripeCount());
+        assertEquals(128, new XWikiPAMLockTable(100, 0).getStripeCount());
+        assertEquals(1, new XWikiPAMLockTable(0, 0).getStripeCount());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final XWikiPAMLockTable table = new XWikiPAMLockTable(4, 50);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread holder = new Thread(() -> {
+            try {
+                Lock lock = table.tryLock("jdoe");
+                locked.countDown();
+                done.await();
+                lock.unlock();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        locked.await();
+
+        assertNull(table.tryLock("jdoe"));
+        assertEquals(1, table.getTimeoutCount());
+        done.countDown();
+        holder.join();
+
+        Lock lock = table.tryLock("jdoe");
+        assertNotNull(lock);
+        lock.unlock();
+        assertEquals(2, table.getAcquisitionCount());
+    }
+}
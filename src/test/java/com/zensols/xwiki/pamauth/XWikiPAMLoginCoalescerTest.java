@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class XWikiPAMLoginCoalescerTest {
+    @Test
+    public void testCoalesce() throws Exception {
+        XWikiPAMLoginCoalescer<String> coalescer = new XWikiPAMLoginCoalescer<>();
+        AtomicInteger verifications = new AtomicInteger();
+        CompletableFuture<String> verification = new CompletableFuture<>();
+
+        CompletableFuture<String> leader = coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run,
+            () -> {
+                verifications.incrementAndGet();
+                return verification;
+            });
+        CompletableFuture<String> follower = coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run,
+            () -> {
+                verifications.incrementAndGet();
+                return CompletableFuture.completedFuture("follower");
+            });
+        // another password, user or wiki is another authentication
+        CompletableFuture<String> other = coalescer.authenticate("xwiki", "jdoe", "wrong", 0, Runnable::run,
+            () -> CompletableFuture.completedFuture(null));
+        coalescer.authenticate("sub", "jdoe", "secret", 0, Runnable::run,
+            () -> CompletableFuture.completedFuture("sub"));
+
+        assertEquals(1, verifications.get());
+        assertFalse(follower.isDone());
+        assertEquals(1, coalescer.getInFlightCount());
+        verification.complete("xwiki:XWiki.jdoe");
+        assertEquals("xwiki:XWiki.jdoe", leader.get());
+        assertEquals("xwiki:XWiki.jdoe", follower.get());
+        assertEquals(null, other.get());
+        assertEquals(0, coalescer.getInFlightCount());
+        assertEquals(3, coalescer.getLeaderCount());
+        assertEquals(1, coalescer.getCoalescedCount());
+        assertEquals(0.25, coalescer.getCoalescingRatio(), 0.001);
+
+        // once completed, the credentials are verified again
+        coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run, () -> {
+            verifications.incrementAndGet();
+            return CompletableFuture.completedFuture("again");
+        });
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        XWikiPAMLoginCoalescer<String> coalescer = new XWikiPAMLoginCoalescer<>();
+        CompletableFuture<String> verification = new CompletableFuture<>();
+
+        coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run, () -> verification);
+        CompletableFuture<String> follower = coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run,
+            () -> null);
+        verification.completeExceptionally(new XWikiPAMException("timeout"));
+
+        assertTrue(follower.isCompletedExceptionally());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void testLeaderCancelled() throws Exception {
+        XWikiPAMLoginCoalescer<String> coalescer = new XWikiPAMLoginCoalescer<>();
+
+        // the thread of the leader gives up before running its part of the authentication
+        CompletableFuture<String> leader = coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run,
+            CompletableFuture::new);
+        CompletableFuture<String> follower = coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run,
+            () -> CompletableFuture.completedFuture("follower"));
+        leader.cancel(false);
+
+        assertEquals("follower", follower.get(1, TimeUnit.SECONDS));
+        assertEquals(0, coalescer.getInFlightCount());
+        assertEquals(1, coalescer.getFallbackCount());
+    }
+
+    @Test
+    public void testLeaderStuck() throws Exception {
+        XWikiPAMLoginCoalescer<String> coalescer = new XWikiPAMLoginCoalescer<>();
+        CompletableFuture<String> verification = new CompletableFuture<>();
+
+        coalescer.authenticate("xwiki", "jdoe", "secret", 0, Runnable::run, () -> verification);
+        CompletableFuture<String> follower = coalescer.authenticate("xwiki", "jdoe", "secret", 50, Runnable::run,
+            () -> CompletableFuture.completedFuture("follower"));
+
+        assertEquals("follower", follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, coalescer.getFallbackCount());
+        // the next authentications don't wait for the stuck one either
+        assertEquals(0, coalescer.getInFlightCount());
+        verification.complete("leader");
+        assertEquals("follower", follower.get());
+    }
+}
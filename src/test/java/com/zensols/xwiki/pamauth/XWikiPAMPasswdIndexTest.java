@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XWikiPAMPasswdIndexTest {
+    private static final String PASSWD = "root:x:0:0:root:/root:/bin/bash\n"
+        + "# comment\n"
+        + "+@netgroup::::::\n"
+        + "jdoe:x:1001:1001:John Doe,Room 1,555-1234,,:/home/jdoe:/bin/bash\n"
+        + "asmith:x:1000:1000::/home/asmith:/bin/sh\n"
+        + "broken:x:abc:1:Broken:/:/bin/false\n"
+        + "jdoe:x:1002:1002:Duplicate:/home/jdoe2:/bin/bash\n"
+        + "j\u00f6rg:x:1003:1003:J\u00f6rg M\u00fcller:/home/jorg:/bin/bash\n"
+        + "toor:x:0:0:Second root:/root:/bin/bash";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        this.file = File.createTempFile("passwd", null);
+        write(PASSWD);
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    private void write(String content) throws Exception {
+        File next = File.createTempFile("passwd", null);
+        Files.write(next.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Files.move(next.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        XWikiPAMPasswdIndex index = new XWikiPAMPasswdIndex(this.file, 1000);
+
+        assertEquals(6, index.size());
+        PAMAccount account = index.getAccount("jdoe");
+        assertEquals("1001", account.getUid());
+        assertEquals("John Doe", account.getFullName());
+        assertEquals("", index.getAccount("asmith").getFullName());
+        assertEquals("J\u00f6rg M\u00fcller", index.getAccount("j\u00f6rg").getFullName());
+        // last line without a newline
+        assertEquals("0", index.getAccount("toor").getUid());
+        assertNull(index.getAccount("jdo"));
+        assertNull(index.getAccount("broken"));
+        assertNull(index.getAccount("+@netgroup"));
+
+        assertEquals("asmith", index.getAccount(1000).getUserName());
+        assertEquals("jdoe", index.getAccount(1002).getUserName());
+        // the first account of a shared uid
+        assertEquals("root", index.getAccount(0).getUserName());
+        assertNull(index.getAccount(4242));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        XWikiPAMPasswdIndex index = new XWikiPAMPasswdIndex(this.file, 0);
+
+        assertNull(index.getAccount("bob"));
+        write(PASSWD + "\nbob:x:1010:1010:Bob:/home/bob:/bin/sh\n");
+        assertEquals("1010", index.getAccount("bob").getUid());
+        assertEquals("bob", index.getAccount(1010).getUserName());
+    }
+
+    @Test
+    public void testTruncatedInPlace() throws Exception {
+        XWikiPAMPasswdIndex index = new XWikiPAMPasswdIndex(this.file, 60000);
+
+        assertEquals("1001", index.getAccount("jdoe").getUid());
+        // rewritten in place instead of renamed over: the index keeps its own copy until the next check
+        Files.write(this.file.toPath(), new byte[0]);
+        assertEquals("1001", index.getAccount("jdoe").getUid());
+        assertEquals("J\u00f6rg M\u00fcller", index.getAccount("j\u00f6rg").getFullName());
+    }
+
+    @Test
+    public void testLarge() throws Exception {
+        StringBuilder passwd = new StringBuilder();
+        int count = 100000;
+
+        for (int i = 0; i < count; i++) {
+            passwd.append("user").append(i).append(":x:").append(10000 + i).append(":100:User ").append(i)
+                .append(":/home/user").append(i).append(":/bin/sh\n");
+        }
+        write(passwd.toString());
+
+        XWikiPAMPasswdIndex index = new XWikiPAMPasswdIndex(this.file, 1000);
+        assertEquals(count, index.size());
+        for (int i = 0; i < count; i += 997) {
+            assertEquals(String.valueOf(10000 + i), index.getAccount("user" + i).getUid());
+            assertEquals("user" + i, index.getAccount(10000 + i).getUserName());
+        }
+        assertNull(index.getAccount("user" + count));
+    }
+}
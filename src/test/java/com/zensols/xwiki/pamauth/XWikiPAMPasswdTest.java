@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class XWikiPAMPasswdTest {
+    private static final String PASSWD = "root:x:0:0:root:/root:/bin/bash\n"
+        + "# comment\n"
+        + "jdoe:x:1001:1001:John Doe,Room 1,555-1234,,:/home/jdoe:/bin/bash\n"
+        + "asmith:x:1000:1000::/home/asmith:/bin/sh\n"
+        + "broken:x:abc:1:Broken:/:/bin/false\n"
+        + "nobody:x:65534:65534:nobody:/nonexistent:/usr/sbin/nologin\n";
+
+    @Test
+    public void testParse() throws Exception {
+        PAMAccount account = XWikiPAMPasswd.parse("jdoe:x:1001:1001:John Doe,Room 1,555-1234,,:/home/jdoe:/bin/bash");
+
+        assertEquals("jdoe", account.getUserName());
+        assertEquals("1001", account.getUid());
+        assertEquals("John Doe", account.getFullName());
+        assertNull(XWikiPAMPasswd.parse("# jdoe:x:1001:1001::/home/jdoe:/bin/bash"));
+        assertNull(XWikiPAMPasswd.parse("jdoe:x:1001"));
+    }
+
+    @Test
+    public void testReadRange() throws Exception {
+        List<PAMAccount> accounts = XWikiPAMPasswd.read(new BufferedReader(new StringReader(PASSWD)), 1000, 59999);
+
+        assertEquals(2, accounts.size());
+        // sorted by uid
+        assertEquals("asmith", accounts.get(0).getUserName());
+        assertEquals("", accounts.get(0).getFullName());
+        assertEquals("jdoe", accounts.get(1).getUserName());
+    }
+}
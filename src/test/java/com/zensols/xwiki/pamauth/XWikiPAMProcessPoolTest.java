@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class XWikiPAMProcessPoolTest {
+    /** Fake helper: knows user jdoe with password "secret" (base64 c2VjcmV0) and sleeps for user slow. */
+    private static final String HELPER = "while read -r cmd name arg; do case \"$cmd\" in "
+        + "PING) echo PONG ;; "
+        + "USER) if [ \"$name\" = jdoe ]; then echo 'OK 1000 Sm9obiBEb2U='; "
+        + "elif [ \"$name\" = slow ]; then sleep 5; else echo NONE; fi ;; "
+        + "AUTH) if [ \"$arg\" = c2VjcmV0 ]; then echo OK; else echo FAIL; fi ;; "
+        + "esac; done";
+
+    private XWikiPAMProcessPool createPool(int size) {
+        return new XWikiPAMProcessPool(Arrays.asList("/bin/sh", "-c", HELPER), size, 1000, 0);
+    }
+
+    @Test
+    public void testLookupAndVerify() throws Exception {
+        XWikiPAMProcessPool pool = createPool(2);
+
+        try {
+            for (int i = 0; i < 5; i++) {
+                PAMAccount account = pool.getAccount("jdoe");
+                assertEquals("1000", account.getUid());
+                assertEquals("John Doe", account.getFullName());
+                assertTrue(pool.verify("jdoe", "secret"));
+                assertFalse(pool.verify("jdoe", "wrong"));
+            }
+            assertNull(pool.getAccount("nobody"));
+            assertNull(pool.getAccount("bad name"));
+            // all requests were served by a single helper process
+            assertEquals(1, pool.getProcessCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testTimeoutRestarts() throws Exception {
+        XWikiPAMProcessPool pool = createPool(1);
+
+        try {
+            try {
+                pool.getAccount("slow");
+                fail("expected timeout");
+            } catch (XWikiPAMException e) {
+                // expected
+            }
+            assertEquals(1, pool.getTimeoutCount());
+            assertEquals(0, pool.getProcessCount());
+            assertEquals("1000", pool.getAccount("jdoe").getUid());
+        } finally {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class XWikiPAMRemoteUserParserTest {
+    @Test
+    public void testIdentity() throws Exception {
+        XWikiPAMRemoteUserParser parser = new XWikiPAMRemoteUserParser(null, 0,
+            Collections.<String, String>emptyMap());
+
+        assertTrue(parser.isIdentity());
+        assertEquals("jdoe@EXAMPLE.COM", parser.parse("jdoe@EXAMPLE.COM"));
+    }
+
+    @Test
+    public void testRealm() throws Exception {
+        XWikiPAMRemoteUserParser parser = new XWikiPAMRemoteUserParser(Pattern.compile("^([^@]+)@(.+)$"), 1,
+            Collections.singletonMap("Administrator", "root"));
+
+        assertFalse(parser.isIdentity());
+        assertEquals("jdoe", parser.parse("jdoe@EXAMPLE.COM"));
+        assertEquals("root", parser.parse("administrator@EXAMPLE.COM"));
+        // no match: the remote user is used as is
+        assertEquals("jdoe", parser.parse("jdoe"));
+    }
+
+    @Test
+    public void testGroup() throws Exception {
+        XWikiPAMRemoteUserParser parser = new XWikiPAMRemoteUserParser(Pattern.compile("^(\\w+)\\\\(\\w+)$"), 2,
+            Collections.<String, String>emptyMap());
+
+        assertEquals("jdoe", parser.parse("DOMAIN\\jdoe"));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class XWikiPAMSSOCookieTest {
+    private static final String PRINCIPAL = "xwiki:XWiki.jdoe";
+
+    private static final String REMOTE_USER = "jdoe@EXAMPLE.COM";
+
+    @Test
+    public void testVerify() throws Exception {
+        XWikiPAMSSOCookie cookie = new XWikiPAMSSOCookie(Collections.singletonList("first secret key"), 60000);
+        String value = cookie.sign(PRINCIPAL, REMOTE_USER, 1000);
+
+        assertEquals(PRINCIPAL, cookie.verify(value, REMOTE_USER, 1000));
+        assertEquals(PRINCIPAL, cookie.verify(value, REMOTE_USER, 60999));
+        // expired
+        assertNull(cookie.verify(value, REMOTE_USER, 61000));
+        // issued for another remote user
+        assertNull(cookie.verify(value, "asmith@EXAMPLE.COM", 1000));
+        // tampered payload or signature
+        int payload = value.indexOf('.') + 1;
+        char changed = value.charAt(payload) == 'A' ? 'B' : 'A';
+        assertNull(cookie.verify(value.substring(0, payload) + changed + value.substring(payload + 1), REMOTE_USER,
+            1000));
+        assertNull(cookie.verify(value.substring(0, value.length() - 1) + "!", REMOTE_USER, 1000));
+        assertNull(cookie.verify("garbage", REMOTE_USER, 1000));
+        assertEquals(1, cookie.getIssuedCount());
+        assertEquals(2, cookie.getAcceptedCount());
+        assertEquals(5, cookie.getRejectedCount());
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        XWikiPAMSSOCookie previous = new XWikiPAMSSOCookie(Collections.singletonList("first secret key"), 60000);
+        XWikiPAMSSOCookie rotated =
+            new XWikiPAMSSOCookie(Arrays.asList("second secret key", "first secret key"), 60000);
+        XWikiPAMSSOCookie retired = new XWikiPAMSSOCookie(Collections.singletonList("second secret key"), 60000);
+        String oldValue = previous.sign(PRINCIPAL, REMOTE_USER, 0);
+        String newValue = rotated.sign(PRINCIPAL, REMOTE_USER, 0);
+
+        assertEquals(PRINCIPAL, rotated.verify(oldValue, REMOTE_USER, 0));
+        assertEquals(PRINCIPAL, retired.verify(newValue, REMOTE_USER, 0));
+        assertNull(retired.verify(oldValue, REMOTE_USER, 0));
+        // nodes still on the previous key can't verify the new cookies
+        assertNull(previous.verify(newValue, REMOTE_USER, 0));
+    }
+}
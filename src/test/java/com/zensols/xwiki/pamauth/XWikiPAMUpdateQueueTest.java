@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class XWikiPAMUpdateQueueTest {
+    @Test
+    public void testCoalesce() throws Exception {
+        XWikiPAMUpdateQueue queue = new XWikiPAMUpdateQueue(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> saved = new CopyOnWriteArrayList<>();
+
+        try {
+            // keep the writer busy while the next updates are enqueued
+            assertTrue(queue.enqueue("busy", () -> {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            assertTrue(queue.enqueue("jdoe", () -> saved.add("jdoe 1")));
+            assertTrue(queue.enqueue("asmith", () -> saved.add("asmith")));
+            assertTrue(queue.enqueue("jdoe", () -> saved.add("jdoe 2")));
+            // full
+            assertFalse(queue.enqueue("bob", () -> saved.add("bob")));
+
+            assertEquals(2, queue.getQueueDepth());
+            assertEquals(1, queue.getCoalescedCount());
+            assertEquals(1, queue.getRejectionCount());
+            assertEquals(0.25, queue.getCoalescingRatio(), 0.001);
+
+            release.countDown();
+            queue.shutdown();
+            for (int i = 0; i < 100 && queue.getSaveCount() < 3; i++) {
+                Thread.sleep(50);
+            }
+
+            // the pending updates are saved after shutdown, in the order they were first enqueued
+            assertEquals(3, queue.getSaveCount());
+            assertEquals(2, saved.size());
+            assertEquals("jdoe 2", saved.get(0));
+            assertEquals("asmith", saved.get(1));
+            assertFalse(queue.enqueue("bob", () -> saved.add("bob")));
+        } finally {
+            release.countDown();
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        XWikiPAMUpdateQueue queue = new XWikiPAMUpdateQueue(10);
+
+        try {
+            assertTrue(queue.enqueue("jdoe", () -> {
+                throw new XWikiPAMException("save failed");
+            }));
+            for (int i = 0; i < 100 && queue.getSaveCount() < 1; i++) {
+                Thread.sleep(50);
+            }
+
+            assertEquals(1, queue.getFailureCount());
+        } finally {
+            queue.shutdown();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class XWikiPAMUtilsTest {
+    @Test
+    public void testFreeProfileSuffix() throws Exception {
+        assertEquals(0, XWikiPAMUtils.getFreeProfileSuffix("jdoe", Collections.<String>emptyList(), 0));
+        assertEquals(1, XWikiPAMUtils.getFreeProfileSuffix("jdoe", Arrays.asList("jdoe"), 0));
+        assertEquals(3, XWikiPAMUtils.getFreeProfileSuffix("jdoe",
+            Arrays.asList("jdoe_2", "jdoe", "jdoe_1", "jdoe_4"), 0));
+        // a free suffix below the existing ones is reused
+        assertEquals(1, XWikiPAMUtils.getFreeProfileSuffix("jdoe", Arrays.asList("jdoe", "jdoe_2"), 0));
+        assertEquals(3, XWikiPAMUtils.getFreeProfileSuffix("jdoe", Arrays.asList("jdoe", "jdoe_2"), 2));
+    }
+
+    @Test
+    public void testFreeProfileSuffixIgnoresOtherPages() throws Exception {
+        assertEquals(1, XWikiPAMUtils.getFreeProfileSuffix("jdoe",
+            Arrays.asList("jdoe", "jdoe_smith", "jdoe_01", "jdoe_1_2", "jdoeX1"), 0));
+    }
+
+    @Test
+    public void testEscapeLike() throws Exception {
+        assertEquals("jdoe!_", XWikiPAMUtils.escapeLike("jdoe_"));
+        assertEquals("a!%b!!c!_", XWikiPAMUtils.escapeLike("a%b!c_"));
+    }
+}
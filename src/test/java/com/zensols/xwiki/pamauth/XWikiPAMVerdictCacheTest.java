@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.zensols.xwiki.pamauth;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+public class XWikiPAMVerdictCacheTest {
+    private static final Map<String, String> ATTRS = Collections.singletonMap("uid", "1000");
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        XWikiPAMVerdictCache cache = new XWikiPAMVerdictCache(10, 60000, XWikiPAMVerdictCache.Eviction.LRU);
+
+        assertNull(cache.get("jdoe", "secret"));
+        cache.put("jdoe", "secret", ATTRS);
+        assertEquals(ATTRS, cache.get("jdoe", "secret"));
+        assertNull(cache.get("jdoe", "wrong"));
+        assertNull(cache.get("other", "secret"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+
+        cache.invalidate("jdoe");
+        assertNull(cache.get("jdoe", "secret"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        XWikiPAMVerdictCache cache = new XWikiPAMVerdictCache(2, 60000, XWikiPAMVerdictCache.Eviction.LRU);
+
+        cache.put("a", "p", ATTRS);
+        cache.put("b", "p", ATTRS);
+        // touch a so that b is the least recently used
+        assertNotNull(cache.get("a", "p"));
+        cache.put("c", "p", ATTRS);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get("a", "p"));
+        assertNull(cache.get("b", "p"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        XWikiPAMVerdictCache cache = new XWikiPAMVerdictCache(10, 1, XWikiPAMVerdictCache.Eviction.FIFO);
+
+        cache.put("jdoe", "secret", ATTRS);
+        Thread.sleep(20);
+        assertNull(cache.get("jdoe", "secret"));
+        assertEquals(0, cache.size());
+    }
+}